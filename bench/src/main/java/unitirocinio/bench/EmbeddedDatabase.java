@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+/**
+ * MariaDB incorporato per i benchmark, con lo schema caricato da
+ * unitirocinio_db.sql.
+ *
+ * Il percorso dello schema si imposta con la proprietà di sistema
+ * unitirocinio.schema (predefinito: ../unitirocinio_db.sql, cioè la radice
+ * del progetto quando si lancia dalla cartella bench).
+ *
+ * @author Luca Gambetta
+ */
+final class EmbeddedDatabase {
+
+  private static final String DB_NAME = "unitirocinio";
+
+  private final DB db;
+  private final int port;
+
+  private EmbeddedDatabase(DB db, int port) {
+    this.db = db;
+    this.port = port;
+  }
+
+  /**
+   * Avvia un database vuoto su una porta libera e vi carica lo schema
+   *
+   * @return il database avviato
+   * @throws Exception
+   */
+  static EmbeddedDatabase start() throws Exception {
+    DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+    config.setPort(0);
+    if ("root".equals(System.getProperty("user.name"))) {
+      // mysqld rifiuta di partire come root se non lo si chiede esplicitamente (container, CI)
+      config.addArg("--user=root");
+    }
+    DB db = DB.newEmbeddedDB(config.build());
+    db.start();
+
+    EmbeddedDatabase database = new EmbeddedDatabase(db, config.getPort());
+    try {
+      database.loadSchema(Paths.get(System.getProperty("unitirocinio.schema", "../unitirocinio_db.sql")));
+    }
+    catch(Exception e) {
+      database.stop();
+      throw e;
+    }
+    return database;
+  }
+
+  /**
+   * Ricrea il database ed esegue lo script dello schema, un'istruzione alla volta
+   */
+  private void loadSchema(Path schema) throws Exception {
+    String sql = new String(Files.readAllBytes(schema), StandardCharsets.UTF_8)
+            .replaceAll("(?s)/\\*.*?\\*/", "")
+            .replaceAll("--[^\n]*", "");
+
+    try (Connection conn = DriverManager.getConnection("jdbc:mysql://localhost:" + port + "/?user=root&useSSL=false");
+         Statement stmt = conn.createStatement()) {
+      stmt.execute("DROP DATABASE IF EXISTS " + DB_NAME);
+      stmt.execute("CREATE DATABASE " + DB_NAME + " CHARACTER SET utf8");
+    }
+
+    try (Connection conn = DriverManager.getConnection(url());
+         Statement stmt = conn.createStatement()) {
+      for (String s : sql.split(";")) {
+        if (!s.trim().isEmpty()) {
+          stmt.execute(s);
+        }
+      }
+    }
+  }
+
+  /**
+   * Ritorna una sorgente di connessioni al database dei benchmark
+   *
+   * @return la sorgente di connessioni
+   */
+  DataSource dataSource() {
+    MysqlDataSource ds = new MysqlDataSource();
+    ds.setURL(url());
+    return ds;
+  }
+
+  /**
+   * Ritorna l'URL JDBC del database
+   *
+   * @return l'URL
+   */
+  String url() {
+    return "jdbc:mysql://localhost:" + port + "/" + DB_NAME + "?user=root&useSSL=false";
+  }
+
+  /**
+   * Ferma il database
+   */
+  void stop() {
+    try {
+      db.stop();
+    }
+    catch(Exception e) {
+      // Niente da fare
+    }
+  }
+}
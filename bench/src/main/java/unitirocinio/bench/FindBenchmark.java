@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import unitirocinio.model.TipoUtente;
+import unitirocinio.model.User;
+import unitirocinio.model.UserManager;
+
+/**
+ * Letture per ID e per login, per ogni tipo di utente, con un thread e con
+ * più thread in concorrenza.
+ *
+ * Con fetchMode=SEPARATE si misura il percorso di userFactory (query su
+ * utenti e poi sulla tabella del sottotipo), con JOINED quello della query
+ * unica.
+ *
+ * @author Luca Gambetta
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FindBenchmark extends UserManagerState {
+
+  @Param({"STUDENTE", "OPERATORE", "TUTOR_ACCADEMICO", "TUTOR_AZIENDALE", "AZIENDA"})
+  public TipoUtente tipo;
+
+  @Param({"JOINED", "SEPARATE"})
+  public UserManager.FetchMode fetchMode;
+
+  @Override
+  protected void configure() {
+    userManager.setFetchMode(fetchMode);
+  }
+
+  @Benchmark
+  public User find() throws Exception {
+    return userManager.find(randomId(tipo));
+  }
+
+  @Benchmark
+  public User findByLogin() throws Exception {
+    return userManager.findByLogin(randomLogin(tipo));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public User findConcurrent() throws Exception {
+    return userManager.find(randomId(tipo));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public User findByLoginConcurrent() throws Exception {
+    return userManager.findByLogin(randomLogin(tipo));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import unitirocinio.model.InMemoryUserRepository;
+import unitirocinio.model.TipoUtente;
+import unitirocinio.model.User;
+
+/**
+ * Letture e scritture sull'archivio in memoria, senza database.
+ *
+ * @author Luca Gambetta
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryBenchmark {
+
+  @Param({"1000", "100000"})
+  public int datasetSize;
+
+  private InMemoryUserRepository repository;
+  private long[] ids;
+  private String[] logins;
+
+  @Setup(Level.Trial)
+  public void seed() throws Exception {
+    repository = new InMemoryUserRepository();
+    ids = new long[datasetSize];
+    logins = new String[datasetSize];
+    TipoUtente[] tipi = TipoUtente.values();
+    for (int i = 0; i < datasetSize; i++) {
+      User user = repository.save(Users.newUser(tipi[i % tipi.length], 1L, "password"));
+      ids[i] = user.getId();
+      logins[i] = user.getLogin();
+    }
+  }
+
+  @Benchmark
+  public User find() throws Exception {
+    return repository.find(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+  }
+
+  @Benchmark
+  public User findByLogin() {
+    return repository.findByLogin(logins[ThreadLocalRandom.current().nextInt(logins.length)]);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public User findConcurrent() throws Exception {
+    return repository.find(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public User findByLoginConcurrent() {
+    return repository.findByLogin(logins[ThreadLocalRandom.current().nextInt(logins.length)]);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public User saveConcurrent() throws Exception {
+    return repository.save(Users.newUser(TipoUtente.STUDENTE, 1L, "password"));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import unitirocinio.model.User;
+
+/**
+ * Carichi misti di letture e scritture su tutti i tipi di utente: i thread
+ * di ogni gruppo lavorano in contemporanea sullo stesso UserManager.
+ *
+ * @author Luca Gambetta
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MixedBenchmark extends UserManagerState {
+
+  // Prevalenza di letture: 7 lettori e 1 scrittore
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(4)
+  public User readMostlyFind() throws Exception {
+    return userManager.find(randomId(randomTipo()));
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(3)
+  public User readMostlyFindByLogin() throws Exception {
+    return userManager.findByLogin(randomLogin(randomTipo()));
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(1)
+  public User readMostlySave() throws Exception {
+    return userManager.save(Users.newUser(randomTipo(), aziendaId, password));
+  }
+
+  // Letture e scritture in parti uguali
+
+  @Benchmark
+  @Group("balanced")
+  @GroupThreads(4)
+  public User balancedFind() throws Exception {
+    return userManager.find(randomId(randomTipo()));
+  }
+
+  @Benchmark
+  @Group("balanced")
+  @GroupThreads(4)
+  public User balancedSave() throws Exception {
+    return userManager.save(Users.newUser(randomTipo(), aziendaId, password));
+  }
+}
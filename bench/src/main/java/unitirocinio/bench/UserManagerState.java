@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import unitirocinio.model.PasswordHasher;
+import unitirocinio.model.TipoUtente;
+import unitirocinio.model.User;
+import unitirocinio.model.UserManager;
+
+/**
+ * Stato comune ai benchmark: avvia il database incorporato, lo popola con
+ * datasetSize utenti divisi in parti uguali tra i tipi e configura lo
+ * UserManager con un pool di connessioni.
+ *
+ * @author Luca Gambetta
+ */
+@State(Scope.Benchmark)
+public abstract class UserManagerState {
+
+  /**
+   * Numero totale di utenti caricati prima delle misure
+   */
+  @Param({"1000", "100000"})
+  public int datasetSize;
+
+  /**
+   * Dimensione del pool di connessioni
+   */
+  @Param({"8"})
+  public int poolSize;
+
+  protected EmbeddedDatabase database;
+  protected UserManager userManager;
+
+  /**
+   * Hash usato come password di tutti gli utenti: i benchmark misurano la
+   * persistenza, non il calcolo degli hash
+   */
+  protected String password;
+
+  /**
+   * ID di un'azienda esistente, per i tutor aziendali
+   */
+  protected long aziendaId;
+
+  private final Map<TipoUtente, long[]> ids = new EnumMap<>(TipoUtente.class);
+  private final Map<TipoUtente, String[]> logins = new EnumMap<>(TipoUtente.class);
+
+  @Setup(Level.Trial)
+  public void startDatabase() throws Exception {
+    database = EmbeddedDatabase.start();
+    userManager = UserManager.getInstance();
+    userManager.setDataSource(database.dataSource(), poolSize);
+    userManager.setPasswordHasher(new PasswordHasher(PasswordHasher.MIN_ITERATIONS, 1, 16, 5000));
+    password = userManager.encryptPassword("password");
+
+    // Prima le aziende, a cui fanno riferimento i tutor aziendali
+    int perTipo = Math.max(1, datasetSize / TipoUtente.values().length);
+    seed(TipoUtente.AZIENDA, perTipo);
+    aziendaId = ids.get(TipoUtente.AZIENDA)[0];
+    for (TipoUtente tipo : TipoUtente.values()) {
+      if (tipo != TipoUtente.AZIENDA) {
+        seed(tipo, perTipo);
+      }
+    }
+    configure();
+  }
+
+  /**
+   * Configura lo UserManager per il benchmark, dopo il caricamento dei dati
+   *
+   * @throws Exception
+   */
+  protected void configure() throws Exception {
+  }
+
+  private void seed(TipoUtente tipo, int count) throws Exception {
+    List<User> users = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      users.add(Users.newUser(tipo, aziendaId, password));
+    }
+    userManager.saveAll(users);
+
+    long[] idArray = new long[count];
+    String[] loginArray = new String[count];
+    for (int i = 0; i < count; i++) {
+      idArray[i] = users.get(i).getId();
+      loginArray[i] = users.get(i).getLogin();
+    }
+    ids.put(tipo, idArray);
+    logins.put(tipo, loginArray);
+  }
+
+  @TearDown(Level.Trial)
+  public void stopDatabase() {
+    userManager.setDataSource(null);
+    database.stop();
+  }
+
+  /**
+   * Ritorna l'ID di un utente esistente del tipo indicato, scelto a caso
+   *
+   * @param tipo il tipo di utente
+   * @return l'ID
+   */
+  protected long randomId(TipoUtente tipo) {
+    long[] a = ids.get(tipo);
+    return a[ThreadLocalRandom.current().nextInt(a.length)];
+  }
+
+  /**
+   * Ritorna la login di un utente esistente del tipo indicato, scelta a caso
+   *
+   * @param tipo il tipo di utente
+   * @return la login
+   */
+  protected String randomLogin(TipoUtente tipo) {
+    String[] a = logins.get(tipo);
+    return a[ThreadLocalRandom.current().nextInt(a.length)];
+  }
+
+  /**
+   * Ritorna un tipo di utente scelto a caso
+   *
+   * @return il tipo
+   */
+  protected static TipoUtente randomTipo() {
+    TipoUtente[] tipi = TipoUtente.values();
+    return tipi[ThreadLocalRandom.current().nextInt(tipi.length)];
+  }
+}
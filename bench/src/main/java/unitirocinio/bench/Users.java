@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import unitirocinio.model.Azienda;
+import unitirocinio.model.OperatoreUfficioTirocinio;
+import unitirocinio.model.Studente;
+import unitirocinio.model.TipoUtente;
+import unitirocinio.model.TutorAccademico;
+import unitirocinio.model.TutorAziendale;
+import unitirocinio.model.User;
+
+/**
+ * Crea utenti sintetici con valori univoci per i benchmark
+ *
+ * @author Luca Gambetta
+ */
+final class Users {
+
+  /**
+   * Progressivo condiviso da tutti i thread, per login e codici univoci
+   */
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  private Users() {
+  }
+
+  /**
+   * Crea un nuovo utente del tipo indicato, non ancora salvato
+   *
+   * @param tipo il tipo di utente
+   * @param aziendaId l'azienda dei tutor aziendali
+   * @param password l'hash della password
+   * @return l'utente
+   */
+  static User newUser(TipoUtente tipo, long aziendaId, String password) {
+    long n = SEQUENCE.incrementAndGet();
+    String login = tipo.getValue() + n + "@bench.it";
+    String cf = String.format("CF%014d", n);
+    User user;
+
+    switch(tipo) {
+      case STUDENTE:
+        user = new Studente(login, login, "M" + n, 0L);
+        break;
+      case OPERATORE:
+        user = new OperatoreUfficioTirocinio(login, login, cf, OperatoreUfficioTirocinio.Ruolo.OPERATORE, 0L);
+        break;
+      case TUTOR_ACCADEMICO:
+        user = new TutorAccademico(login, login, cf, 0L);
+        break;
+      case TUTOR_AZIENDALE:
+        TutorAziendale tutor = new TutorAziendale(login, login, cf, aziendaId, 0L);
+        tutor.setTelefono("089000000");
+        user = tutor;
+        break;
+      default:
+        Azienda azienda = new Azienda(login, login, "IT" + n, 0L);
+        azienda.setNomeRappresentanteLegale("Mario");
+        azienda.setCognomeRappresentanteLegale("Rossi");
+        azienda.setStatoConvenzione(Azienda.StatoConvenzione.ATTIVA);
+        azienda.setRifConvenzione("CONV" + n);
+        azienda.setDataConvenzione(1483228800L);
+        azienda.setIndirizzoSedeLegale("Via Giovanni Paolo II, 132");
+        azienda.setCittaSedeLegale("Fisciano");
+        user = azienda;
+        break;
+    }
+
+    user.setNome("Nome" + n);
+    user.setCognome("Cognome" + n);
+    user.setPassword(password);
+    return user;
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Esegue in modo asincrono le operazioni di UserManager.
+ *
+ * Ogni operazione gira su un proprio thread virtuale, se la JVM li mette a
+ * disposizione, altrimenti su un pool di thread daemon. Il numero di
+ * operazioni in esecuzione è limitato alla dimensione del pool di
+ * connessioni: le altre attendono in coda senza occupare thread.
+ *
+ * Se il future di un'operazione viene annullato o scade (ad esempio con
+ * orTimeout) l'operazione in coda non viene eseguita, mentre per quella in
+ * corso viene chiamato Statement.cancel sullo statement in esecuzione, o
+ * interrotto il thread se sta ancora attendendo una connessione. Lo statement
+ * smette di essere annullabile quando la sua connessione torna al pool, perché
+ * può passare a un'altra operazione. Dopo il primo commit l'operazione non si
+ * può più annullare: il future riporta il suo esito.
+ *
+ * @author Luca Gambetta
+ */
+final class AsyncExecutor implements Executor {
+
+  /**
+   * L'operazione in esecuzione sul thread corrente
+   */
+  private static final ThreadLocal<Call<?>> CURRENT = new ThreadLocal<>();
+
+  private final ExecutorService executor;
+  private final boolean virtualThreads;
+
+  /**
+   * Operazioni in attesa di un posto libero
+   */
+  private final ConcurrentLinkedQueue<Call<?>> queue = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Operazioni in esecuzione
+   */
+  private final AtomicInteger running = new AtomicInteger();
+
+  /**
+   * Numero massimo di operazioni in esecuzione
+   */
+  private volatile int concurrency;
+
+  /**
+   * Crea un esecutore
+   *
+   * @param concurrency numero massimo di operazioni in esecuzione
+   */
+  AsyncExecutor(int concurrency) {
+    setConcurrency(concurrency);
+
+    ExecutorService virtual = null;
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      virtual = (ExecutorService) m.invoke(null);
+    }
+    catch(ReflectiveOperationException e) {
+      // JVM senza thread virtuali
+    }
+
+    if (virtual != null) {
+      executor = virtual;
+      virtualThreads = true;
+    } else {
+      final AtomicInteger count = new AtomicInteger();
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "unitirocinio-async-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      virtualThreads = false;
+    }
+  }
+
+  /**
+   * Accoda un'operazione
+   *
+   * @param task l'operazione
+   * @return il future del risultato
+   */
+  <T> CompletableFuture<T> submit(Callable<T> task) {
+    Call<T> call = new Call<>(task);
+    queue.add(call);
+    drain();
+    return call;
+  }
+
+  /**
+   * Accoda un'operazione senza risultato
+   *
+   * @param task l'operazione
+   */
+  @Override
+  public void execute(Runnable task) {
+    submit(Executors.callable(task));
+  }
+
+  /**
+   * Avvia le operazioni in coda finché ci sono posti liberi
+   */
+  private void drain() {
+    while (!queue.isEmpty()) {
+      int r = running.get();
+      if (r >= concurrency) {
+        return;
+      }
+      if (!running.compareAndSet(r, r + 1)) {
+        continue;
+      }
+
+      Call<?> call = queue.poll();
+      if (call == null) {
+        running.decrementAndGet();
+        continue;
+      }
+
+      try {
+        executor.execute(call);
+      }
+      catch(RejectedExecutionException e) {
+        running.decrementAndGet();
+        call.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Registra lo statement che l'operazione del thread corrente sta per
+   * eseguire, così che un annullamento possa interromperlo.
+   *
+   * @param st lo statement
+   * @throws SQLException se l'operazione è già stata annullata
+   */
+  static void statementPrepared(Statement st) throws SQLException {
+    Call<?> call = CURRENT.get();
+    if (call != null) {
+      call.prepared(st);
+    }
+  }
+
+  /**
+   * Segnala che l'operazione del thread corrente ha restituito la sua
+   * connessione: i suoi statement non vanno più annullati.
+   */
+  static void connectionReleased() {
+    Call<?> call = CURRENT.get();
+    if (call != null) {
+      call.setStatement(null);
+    }
+  }
+
+  /**
+   * Da chiamare prima del commit: da quel momento l'operazione del thread
+   * corrente non può più essere annullata né scadere.
+   *
+   * @throws SQLException se l'operazione è già stata annullata, per fare
+   *         rollback invece del commit
+   */
+  static void beforeCommit() throws SQLException {
+    Call<?> call = CURRENT.get();
+    if (call != null) {
+      call.committing();
+    }
+  }
+
+  /**
+   * Imposta il numero massimo di operazioni in esecuzione
+   *
+   * @param concurrency il numero di operazioni
+   */
+  void setConcurrency(int concurrency) {
+    if (concurrency <= 0) {
+      throw new IllegalArgumentException("Invalid concurrency");
+    }
+    this.concurrency = concurrency;
+    drain();
+  }
+
+  int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Ritorna un esecutore sugli stessi thread che non occupa i posti delle
+   * operazioni, per i compiti che possono attendere una connessione tenuta da
+   * un'operazione in coda
+   */
+  Executor unbounded() {
+    return executor;
+  }
+
+  /**
+   * Ritorna il numero di operazioni in coda
+   */
+  int getQueueLength() {
+    return queue.size();
+  }
+
+  boolean usesVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Un'operazione con il suo risultato
+   */
+  private final class Call<T> extends CompletableFuture<T> implements Runnable {
+
+    private final Callable<T> task;
+
+    /**
+     * Il thread che esegue l'operazione, null se non è in esecuzione
+     */
+    private Thread thread;
+
+    /**
+     * Lo statement in esecuzione, null se si attende una connessione
+     */
+    private Statement statement;
+
+    /**
+     * Vero dopo il primo commit: gli annullamenti vengono ignorati
+     */
+    private boolean committed;
+
+    /**
+     * Vero se è iniziato un annullamento: il commit non va eseguito
+     */
+    private boolean aborting;
+
+    Call(Callable<T> task) {
+      this.task = task;
+      whenComplete((v, e) -> {
+        if (e != null) {
+          abort();
+        }
+      });
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (isDone()) {
+          return;
+        }
+
+        synchronized (this) {
+          thread = Thread.currentThread();
+        }
+        CURRENT.set(this);
+        try {
+          complete(task.call());
+        }
+        catch(Throwable e) {
+          completeExceptionally(e);
+        }
+        finally {
+          CURRENT.remove();
+          synchronized (this) {
+            thread = null;
+            statement = null;
+          }
+          // Un'interruzione arrivata durante l'annullamento non deve restare al thread
+          Thread.interrupted();
+        }
+      }
+      finally {
+        running.decrementAndGet();
+        drain();
+      }
+    }
+
+    synchronized void setStatement(Statement st) {
+      statement = st;
+    }
+
+    synchronized void prepared(Statement st) throws SQLException {
+      if (isDone()) {
+        throw new SQLException("Operation cancelled");
+      }
+      statement = st;
+    }
+
+    synchronized void committing() throws SQLException {
+      if (aborting || isDone()) {
+        throw new SQLException("Operation cancelled");
+      }
+      committed = true;
+    }
+
+    /**
+     * Riserva l'annullamento, se l'operazione non ha ancora fatto commit o
+     * se a chiederlo è l'operazione stessa
+     */
+    private synchronized boolean mayAbort() {
+      if (committed && Thread.currentThread() != thread) {
+        return false;
+      }
+      aborting = true;
+      return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return mayAbort() && super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+      return mayAbort() && super.completeExceptionally(ex);
+    }
+
+    /**
+     * Interrompe l'operazione in corso
+     */
+    private synchronized void abort() {
+      if (thread == null) {
+        return;
+      }
+
+      if (statement == null) {
+        thread.interrupt();
+        return;
+      }
+
+      try {
+        statement.cancel();
+      }
+      catch(SQLException e) {
+        // Lo statement è già concluso o chiuso
+      }
+    }
+  }
+}
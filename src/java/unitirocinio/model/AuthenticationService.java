@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Autenticazione degli utenti con token di sessione.
+ *
+ * Le credenziali vengono verificate una sola volta da login, sul primario e
+ * non sulla cache o sulle repliche, e login rilascia un token opaco casuale;
+ * le richieste successive si autenticano con il token, cercato in una mappa
+ * in memoria senza accessi al database.
+ *
+ * Una sessione scade se non viene usata per il tempo di inattività indicato;
+ * ogni uso ne sposta in avanti la scadenza. Superato il numero massimo di
+ * sessioni vengono chiuse le più vecchie. Quando UserManager scrive un
+ * utente le sue sessioni vengono aggiornate, o chiuse se è cambiata la
+ * password.
+ *
+ * @author Luca Gambetta
+ */
+public class AuthenticationService implements UserListener {
+
+  /**
+   * Byte casuali di un token
+   */
+  private static final int TOKEN_BYTES = 32;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final UserManager manager;
+
+  /**
+   * Durata di una sessione inattiva, in millisecondi
+   */
+  private final long idleTimeout;
+
+  /**
+   * Numero massimo di sessioni aperte
+   */
+  private final int maxSessions;
+
+  /**
+   * Sessioni per token
+   */
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Token delle sessioni di ogni utente, per ID
+   */
+  private final ConcurrentHashMap<Long, Set<String>> byUser = new ConcurrentHashMap<>();
+
+  /**
+   * Sessioni in ordine di apertura, per la chiusura delle più vecchie
+   */
+  private final ConcurrentLinkedQueue<Session> openingOrder = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Lunghezza della coda delle aperture
+   */
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Crea il servizio e lo registra presso lo UserManager per ricevere gli
+   * utenti scritti
+   *
+   * @param manager il gestore degli utenti
+   * @param idleTimeout durata di una sessione inattiva, in millisecondi
+   * @param maxSessions numero massimo di sessioni aperte
+   */
+  public AuthenticationService(UserManager manager, long idleTimeout, int maxSessions) {
+    if (idleTimeout <= 0 || maxSessions <= 0) {
+      throw new IllegalArgumentException("Invalid session parameters");
+    }
+    this.manager = manager;
+    this.idleTimeout = idleTimeout;
+    this.maxSessions = maxSessions;
+    manager.addUserListener(this);
+  }
+
+  /**
+   * Verifica le credenziali di un utente e apre una sessione
+   *
+   * @param login la login
+   * @param password la password in chiaro
+   * @return il token della sessione o null se le credenziali non sono valide
+   * @throws SQLException
+   * @throws Exception
+   */
+  public String login(String login, String password) throws SQLException, Exception {
+    if (login == null || password == null) {
+      throw new NullPointerException();
+    }
+
+    User user = manager.findByLoginOnPrimary(login);
+    if (user == null || !manager.verifyPassword(user, password)) {
+      failures.incrementAndGet();
+      return null;
+    }
+
+    Session s = new Session(newToken(), UserCache.copy(user), System.currentTimeMillis() + idleTimeout);
+    byUser.computeIfAbsent(s.userId, k -> ConcurrentHashMap.newKeySet()).add(s.token);
+    sessions.put(s.token, s);
+    openingOrder.add(s);
+    queued.incrementAndGet();
+
+    // Un cambio di password salvato dopo la lettura ma prima della
+    // registrazione non ha trovato la sessione: da qui in poi la trova
+    if (!Objects.equals(user.getPassword(), manager.currentPassword(s.userId))) {
+      remove(s);
+      failures.incrementAndGet();
+      return null;
+    }
+    evict();
+    return s.token;
+  }
+
+  /**
+   * Ritorna l'utente di una sessione, spostandone in avanti la scadenza
+   *
+   * @param token il token rilasciato da login
+   * @return una copia dell'utente o null se la sessione non esiste o è scaduta
+   */
+  public User authenticate(String token) {
+    if (token == null) {
+      return null;
+    }
+    Session s = sessions.get(token);
+    if (s == null) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    if (now > s.expires) {
+      remove(s);
+      return null;
+    }
+    s.expires = now + idleTimeout;
+    return UserCache.copy(s.user);
+  }
+
+  /**
+   * Chiude una sessione
+   *
+   * @param token il token della sessione
+   * @return true se la sessione era aperta
+   */
+  public boolean logout(String token) {
+    Session s = token != null ? sessions.get(token) : null;
+    return s != null && remove(s);
+  }
+
+  /**
+   * Chiude tutte le sessioni di un utente
+   *
+   * @param userId l'ID dell'utente
+   * @return il numero di sessioni chiuse
+   */
+  public int revokeAll(long userId) {
+    Set<String> tokens = byUser.remove(userId);
+    int n = 0;
+    if (tokens != null) {
+      for (String token : tokens) {
+        if (sessions.remove(token) != null) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Aggiorna l'utente delle sessioni aperte dopo una scrittura, chiudendole
+   * se è cambiata la password
+   *
+   * @param user l'utente scritto
+   */
+  @Override
+  public void userSaved(User user) {
+    Long id = user.getId();
+    Set<String> tokens = id != null ? byUser.get(id) : null;
+    if (tokens == null) {
+      return;
+    }
+
+    User copy = UserCache.copy(user);
+    for (String token : tokens) {
+      Session s = sessions.get(token);
+      if (s == null) {
+        continue;
+      }
+      if (!Objects.equals(s.user.getPassword(), user.getPassword())) {
+        revokeAll(id);
+        return;
+      }
+      s.user = copy;
+    }
+  }
+
+  /**
+   * Chiude tutte le sessioni e smette di ricevere gli utenti scritti
+   */
+  public void close() {
+    manager.removeUserListener(this);
+    sessions.clear();
+    byUser.clear();
+    openingOrder.clear();
+    queued.set(0);
+  }
+
+  /**
+   * Ritorna il numero di sessioni aperte, comprese quelle scadute ma non
+   * ancora rimosse
+   *
+   * @return il numero di sessioni
+   */
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Ritorna il numero di login con credenziali non valide
+   *
+   * @return il numero di fallimenti
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * Ritorna il numero di sessioni chiuse per far posto ad altre
+   *
+   * @return il numero di chiusure
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Ritorna la durata di una sessione inattiva
+   *
+   * @return la durata in millisecondi
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Chiude le sessioni più vecchie oltre il limite e scarta dalla coda
+   * quelle già chiuse
+   */
+  private void evict() {
+    long now = System.currentTimeMillis();
+    while (sessions.size() > maxSessions || queued.get() > 2 * maxSessions) {
+      Session eldest = openingOrder.poll();
+      if (eldest == null) {
+        break;
+      }
+      queued.decrementAndGet();
+      if (sessions.get(eldest.token) != eldest) {
+        continue;
+      }
+      if (now > eldest.expires) {
+        remove(eldest);
+      } else if (sessions.size() > maxSessions) {
+        if (remove(eldest)) {
+          evictions.incrementAndGet();
+        }
+      } else {
+        openingOrder.add(eldest);
+        queued.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Rimuove una sessione dalla mappa dei token e da quella degli utenti
+   *
+   * @return true se la sessione era ancora aperta
+   */
+  private boolean remove(Session s) {
+    byUser.computeIfPresent(s.userId, (id, tokens) -> {
+      tokens.remove(s.token);
+      return tokens.isEmpty() ? null : tokens;
+    });
+    return sessions.remove(s.token, s);
+  }
+
+  /**
+   * Genera un token casuale, codificato in Base64 per gli URL
+   */
+  private static String newToken() {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    RANDOM.nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  /**
+   * Una sessione aperta
+   */
+  private static final class Session {
+
+    final String token;
+    final long userId;
+    volatile User user;
+    volatile long expires;
+
+    Session(String token, User user, long expires) {
+      this.token = token;
+      this.userId = user.getId();
+      this.user = user;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.text.Normalizer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Indice in memoria dei valori già usati nelle colonne UNIQUE degli utenti,
+ * con un filtro di Bloom per ogni colonna.
+ *
+ * Se il filtro esclude un valore questo è sicuramente libero e non serve
+ * interrogare il database. Se invece il valore potrebbe essere presente
+ * occorre verificarlo con una query; i valori trovati liberi vengono
+ * ricordati per un breve periodo, così che le verifiche ripetute dello stesso
+ * valore (ad esempio mentre si compila un modulo) non ripetano la query.
+ *
+ * I valori vengono normalizzati come li confronta MySQL con le collation
+ * _general_ci: senza distinzione tra maiuscole e minuscole, senza accenti e
+ * senza spazi finali. L'indice conosce solo le scritture che passano da
+ * UserManager: le modifiche fatte direttamente sul database richiedono una
+ * ricostruzione.
+ *
+ * @author Luca Gambetta
+ */
+public class AvailabilityIndex {
+
+  /**
+   * Probabilità di falso positivo predefinita dei filtri
+   */
+  public static final double DEFAULT_FPP = 0.01;
+
+  /**
+   * Durata predefinita di un valore verificato libero, in millisecondi
+   */
+  public static final long DEFAULT_FREE_TTL = 60000;
+
+  /**
+   * Numero massimo di valori verificati liberi ricordati
+   */
+  private static final int MAX_FREE = 10000;
+
+  /**
+   * Numero di contatori delle aggiunte, potenza di due
+   */
+  private static final int EPOCHS = 1024;
+
+  /**
+   * Un filtro per ogni colonna
+   */
+  private final Map<UniqueKey, BloomFilter> filters = new EnumMap<>(UniqueKey.class);
+
+  /**
+   * Valori verificati liberi sul database, con la loro scadenza
+   */
+  private final ConcurrentHashMap<String, Long> free = new ConcurrentHashMap<>();
+
+  /**
+   * Durata di un valore verificato libero, in millisecondi
+   */
+  private final long freeTtl;
+
+  /**
+   * Contatori delle aggiunte per gruppo di valori, incrementati da add prima
+   * di dimenticare il valore libero. Due valori dello stesso gruppo al più
+   * impediscono di ricordare libero un valore che lo è davvero.
+   */
+  private final AtomicLongArray epochs = new AtomicLongArray(EPOCHS);
+
+  private final AtomicLong checks = new AtomicLong();
+  private final AtomicLong filterHits = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  /**
+   * Crea un indice vuoto
+   *
+   * @param expectedInsertions numero di valori previsto per ogni colonna
+   * @param fpp probabilità di falso positivo dei filtri
+   * @param freeTtl durata di un valore verificato libero, in millisecondi
+   */
+  public AvailabilityIndex(long expectedInsertions, double fpp, long freeTtl) {
+    for (UniqueKey key : UniqueKey.values()) {
+      filters.put(key, new BloomFilter(expectedInsertions, fpp));
+    }
+    this.freeTtl = freeTtl;
+  }
+
+  /**
+   * Crea un indice vuoto con i parametri predefiniti
+   *
+   * @param expectedInsertions numero di valori previsto per ogni colonna
+   */
+  public AvailabilityIndex(long expectedInsertions) {
+    this(expectedInsertions, DEFAULT_FPP, DEFAULT_FREE_TTL);
+  }
+
+  /**
+   * Aggiunge un valore usato
+   *
+   * @param key la colonna
+   * @param value il valore
+   */
+  public void add(UniqueKey key, String value) {
+    if (value == null) {
+      return;
+    }
+    String v = normalize(value);
+    String fk = freeKey(key, v);
+    filters.get(key).add(v);
+    epochs.incrementAndGet(epochIndex(fk));
+    free.remove(fk);
+  }
+
+  /**
+   * Aggiunge tutti i valori UNIQUE di un utente salvato
+   *
+   * @param user l'utente
+   */
+  public void add(User user) {
+    for (UniqueKey key : UniqueKey.values()) {
+      add(key, key.valueOf(user));
+    }
+  }
+
+  /**
+   * Verifica se un valore potrebbe essere già usato
+   *
+   * @param key la colonna
+   * @param value il valore
+   * @return false se il valore è sicuramente libero, true se va verificato sul database
+   */
+  public boolean mightBeTaken(UniqueKey key, String value) {
+    checks.incrementAndGet();
+    String v = normalize(value);
+    if (!filters.get(key).mightContain(v)) {
+      return false;
+    }
+
+    String fk = freeKey(key, v);
+    Long expires = free.get(fk);
+    if (expires != null) {
+      if (System.currentTimeMillis() <= expires) {
+        return false;
+      }
+      free.remove(fk, expires);
+    }
+
+    filterHits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Ritorna il contatore delle aggiunte di un valore, da leggere prima della
+   * query che ne verifica la disponibilità
+   *
+   * @param key la colonna
+   * @param value il valore
+   * @return il contatore da passare a confirmFree
+   */
+  public long epoch(UniqueKey key, String value) {
+    return epochs.get(epochIndex(freeKey(key, normalize(value))));
+  }
+
+  /**
+   * Ricorda che un valore segnalato dal filtro è risultato libero sul database.
+   * Il valore non viene ricordato se dalla lettura del contatore è stato
+   * aggiunto: un salvataggio concluso durante la query lo ha appena usato.
+   *
+   * @param key la colonna
+   * @param value il valore
+   * @param epoch il valore di epoch() letto prima della query
+   */
+  public void confirmFree(UniqueKey key, String value, long epoch) {
+    falsePositives.incrementAndGet();
+    String fk = freeKey(key, normalize(value));
+    int i = epochIndex(fk);
+    if (epochs.get(i) != epoch) {
+      return;
+    }
+    if (free.size() >= MAX_FREE) {
+      free.clear();
+    }
+    Long expires = System.currentTimeMillis() + freeTtl;
+    free.put(fk, expires);
+    if (epochs.get(i) != epoch) {
+      // Aggiunto durante l'inserimento
+      free.remove(fk, expires);
+    }
+  }
+
+  private static String freeKey(UniqueKey key, String normalized) {
+    return key.ordinal() + ":" + normalized;
+  }
+
+  private static int epochIndex(String freeKey) {
+    int h = freeKey.hashCode();
+    return (h ^ (h >>> 16)) & (EPOCHS - 1);
+  }
+
+  /**
+   * Normalizza un valore come lo confronta il database
+   */
+  static String normalize(String value) {
+    // Caso più comune: ASCII minuscolo senza spazi finali, già normalizzato
+    int len = value.length();
+    int i = 0;
+    while (i < len) {
+      char c = value.charAt(i);
+      if (c > 0x7f || (c >= 'A' && c <= 'Z')) {
+        break;
+      }
+      i++;
+    }
+    if (i == len && (len == 0 || value.charAt(len - 1) != ' ')) {
+      return value;
+    }
+
+    int end = len;
+    while (end > 0 && value.charAt(end - 1) == ' ') {
+      end--;
+    }
+    String v = value.substring(0, end);
+    for (int j = 0; j < v.length(); j++) {
+      if (v.charAt(j) > 0x7f) {
+        v = Normalizer.normalize(v, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        break;
+      }
+    }
+    return v.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Ritorna il numero di verifiche eseguite
+   *
+   * @return il numero di verifiche
+   */
+  public long getChecks() {
+    return checks.get();
+  }
+
+  /**
+   * Ritorna il numero di verifiche che hanno richiesto una query
+   *
+   * @return il numero di query
+   */
+  public long getFilterHits() {
+    return filterHits.get();
+  }
+
+  /**
+   * Ritorna il numero di valori segnalati dal filtro e risultati liberi
+   *
+   * @return il numero di falsi positivi
+   */
+  public long getFalsePositives() {
+    return falsePositives.get();
+  }
+}
@@ -23,26 +23,32 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella un'azienda
  *
  * @author Luca Gambetta
  */
+@MappedUser(tipo = TipoUtente.AZIENDA, table = "aziende", alias = "a", key = "azienda_id", identifier = "partita_iva")
 public class Azienda extends User {
 
   /**
    * Partita IVA dell'azienda
    */
+  @MappedColumn("partita_iva")
   protected String partitaIva;
 
   /**
    * Nome del rappresentante legale
    */
+  @MappedColumn("nome_rappresentante")
   protected String nomeRappresentanteLegale;
 
   /**
    * Cognome del rappresentante aziendale
    */
+  @MappedColumn("cognome_rappresentante")
   protected String cognomeRappresentanteLegale;
 
   /**
@@ -52,38 +58,53 @@ public class Azienda extends User {
     /**
      * La convenzione è attiva
      */
+    @DbValue("attiva")
     ATTIVA,
     /**
      * La convenzione non è più attiva
      */
+    @DbValue(value = "non_attiva", fallback = true)
     NON_ATTIVA
   };
 
   /**
    * Stato corrente della convenzione con l'università
    */
+  @MappedColumn("stato_convenzione")
   protected StatoConvenzione statoConvenzione;
 
   /**
    * Riferimento alla convenzione stipulata con l'Università
    */
+  @MappedColumn("rif_convenzione")
   protected String rifConvenzione;
 
   /**
-   * Data della stipula della convenzione, come timestamp
+   * Data della stipula della convenzione, come timestamp: non viene ancora
+   * riletta dal database
    */
+  @MappedColumn(value = "data_convenzione", write = "CAST(FROM_UNIXTIME(?) AS DATE)", read = false)
   protected long dataConvenzione;
 
   /**
    * Indirizzo della sede legale
    */
+  @MappedColumn("indirizzo_sede_legale")
   protected String indirizzoSedeLegale;
 
   /**
    * Città della sede legale
    */
+  @MappedColumn("citta_sede_legale")
   protected String cittaSedeLegale;
 
+  /**
+   * Crea un'azienda vuota, per la lettura dal database
+   */
+  Azienda() {
+    super(null, null, null);
+  }
+
   /**
    * Crea una nuova istanza dell'azienda
    *
@@ -104,6 +125,7 @@ public class Azienda extends User {
    * @return la partita IVA dell'azienda
    */
   public String getPartitaIva() {
+    hydrate();
     return partitaIva;
   }
 
@@ -113,6 +135,10 @@ public class Azienda extends User {
    * @param partitaIva la partita IVA dell'azienda
    */
   public void setPartitaIva(String partitaIva) {
+    hydrate();
+    if (!Objects.equals(this.partitaIva, partitaIva)) {
+      markDirty(UserColumn.PARTITA_IVA);
+    }
     this.partitaIva = partitaIva;
   }
 
@@ -122,6 +148,7 @@ public class Azienda extends User {
    * @return il nome del rappresentante
    */
   public String getNomeRappresentanteLegale() {
+    hydrate();
     return nomeRappresentanteLegale;
   }
 
@@ -131,6 +158,10 @@ public class Azienda extends User {
    * @param nomeRappresentante il nome del rappresentante legale
    */
   public void setNomeRappresentanteLegale(String nomeRappresentante) {
+    hydrate();
+    if (!Objects.equals(this.nomeRappresentanteLegale, nomeRappresentante)) {
+      markDirty(UserColumn.NOME_RAPPRESENTANTE);
+    }
     this.nomeRappresentanteLegale = nomeRappresentante;
   }
 
@@ -140,6 +171,7 @@ public class Azienda extends User {
    * @return il cognome del rappresentante legale
    */
   public String getCognomeRappresentanteLegale() {
+    hydrate();
     return cognomeRappresentanteLegale;
   }
 
@@ -149,6 +181,10 @@ public class Azienda extends User {
    * @param cognomeRappresentante il cognome del rappresentante legale
    */
   public void setCognomeRappresentanteLegale(String cognomeRappresentante) {
+    hydrate();
+    if (!Objects.equals(this.cognomeRappresentanteLegale, cognomeRappresentante)) {
+      markDirty(UserColumn.COGNOME_RAPPRESENTANTE);
+    }
     this.cognomeRappresentanteLegale = cognomeRappresentante;
   }
 
@@ -158,6 +194,7 @@ public class Azienda extends User {
    * @return lo stato della convenzione
    */
   public StatoConvenzione getStatoConvenzione() {
+    hydrate();
     return statoConvenzione;
   }
 
@@ -167,6 +204,10 @@ public class Azienda extends User {
    * @param statoConvenzione lo stato della convenzione con l'università
    */
   public void setStatoConvenzione(StatoConvenzione statoConvenzione) {
+    hydrate();
+    if (!Objects.equals(this.statoConvenzione, statoConvenzione)) {
+      markDirty(UserColumn.STATO_CONVENZIONE);
+    }
     this.statoConvenzione = statoConvenzione;
   }
 
@@ -177,6 +218,7 @@ public class Azienda extends User {
    * @return il riferimento alla convenzione
    */
   public String getRifConvenzione() {
+    hydrate();
     return rifConvenzione;
   }
 
@@ -187,6 +229,10 @@ public class Azienda extends User {
    * @param rifConvenzione il riferimento alla convenzione
    */
   public void setRifConvenzione(String rifConvenzione) {
+    hydrate();
+    if (!Objects.equals(this.rifConvenzione, rifConvenzione)) {
+      markDirty(UserColumn.RIF_CONVENZIONE);
+    }
     this.rifConvenzione = rifConvenzione;
   }
 
@@ -196,6 +242,7 @@ public class Azienda extends User {
    * @return un timestamp
    */
   public long getDataConvenzione() {
+    hydrate();
     return dataConvenzione;
   }
 
@@ -205,6 +252,10 @@ public class Azienda extends User {
    * @param dataConvenzione un timestamp
    */
   public void setDataConvenzione(long dataConvenzione) {
+    hydrate();
+    if (this.dataConvenzione != dataConvenzione) {
+      markDirty(UserColumn.DATA_CONVENZIONE);
+    }
     this.dataConvenzione = dataConvenzione;
   }
 
@@ -214,6 +265,7 @@ public class Azienda extends User {
    * @return l'indirizzo della sede legale
    */
   public String getIndirizzoSedeLegale() {
+    hydrate();
     return indirizzoSedeLegale;
   }
 
@@ -223,6 +275,10 @@ public class Azienda extends User {
    * @param indirizzoSedeLegale l'indirizzo della sede legale
    */
   public void setIndirizzoSedeLegale(String indirizzoSedeLegale) {
+    hydrate();
+    if (!Objects.equals(this.indirizzoSedeLegale, indirizzoSedeLegale)) {
+      markDirty(UserColumn.INDIRIZZO_SEDE_LEGALE);
+    }
     this.indirizzoSedeLegale = indirizzoSedeLegale;
   }
 
@@ -232,6 +288,7 @@ public class Azienda extends User {
    * @return il nome della città
    */
   public String getCittaSedeLegale() {
+    hydrate();
     return cittaSedeLegale;
   }
 
@@ -241,6 +298,10 @@ public class Azienda extends User {
    * @param cittaSedeLegale il nome della città
    */
   public void setCittaSedeLegale(String cittaSedeLegale) {
+    hydrate();
+    if (!Objects.equals(this.cittaSedeLegale, cittaSedeLegale)) {
+      markDirty(UserColumn.CITTA_SEDE_LEGALE);
+    }
     this.cittaSedeLegale = cittaSedeLegale;
   }
 
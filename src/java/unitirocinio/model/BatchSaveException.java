@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Segnala che UserManager.saveAll non ha salvato alcuni utenti.
+ *
+ * Gli utenti dei blocchi falliti sono stati annullati per intero e hanno
+ * mantenuto l'ID che avevano prima della chiamata; gli altri sono stati
+ * salvati regolarmente.
+ *
+ * @author Luca Gambetta
+ */
+public class BatchSaveException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Utenti non salvati
+   */
+  private final List<User> rejected;
+
+  /**
+   * Utenti che hanno causato il fallimento del proprio blocco
+   */
+  private final List<User> failed;
+
+  /**
+   * Crea l'eccezione
+   *
+   * @param rejected gli utenti non salvati
+   * @param failed gli utenti indicati dal database come causa dell'errore
+   * @param cause il primo errore riscontrato
+   */
+  public BatchSaveException(List<User> rejected, List<User> failed, Throwable cause) {
+    super(rejected.size() + " users not saved", cause);
+    this.rejected = Collections.unmodifiableList(rejected);
+    this.failed = Collections.unmodifiableList(failed);
+  }
+
+  /**
+   * Ritorna tutti gli utenti non salvati, cioè quelli dei blocchi annullati
+   *
+   * @return gli utenti non salvati
+   */
+  public List<User> getRejectedUsers() {
+    return rejected;
+  }
+
+  /**
+   * Ritorna gli utenti che il database ha indicato come causa dell'errore
+   * (ad esempio per un vincolo UNIQUE violato). Può essere vuota se il driver
+   * non fornisce il dettaglio del batch.
+   *
+   * @return gli utenti che hanno causato l'errore
+   */
+  public List<User> getFailedUsers() {
+    return failed;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro di Bloom per stringhe.
+ *
+ * mightContain() non dà mai falsi negativi: se ritorna false la stringa non
+ * è sicuramente mai stata aggiunta. Può invece dare falsi positivi, con una
+ * probabilità che cresce quando si superano gli inserimenti previsti.
+ * Inserimenti e ricerche possono avvenire da più thread contemporaneamente.
+ *
+ * @author Luca Gambetta
+ */
+public class BloomFilter {
+
+  /**
+   * I bit del filtro
+   */
+  private final AtomicLongArray bits;
+
+  /**
+   * Numero di bit del filtro
+   */
+  private final long size;
+
+  /**
+   * Numero di funzioni hash
+   */
+  private final int hashes;
+
+  /**
+   * Crea un filtro dimensionato per il numero di elementi previsto
+   *
+   * @param expectedInsertions numero di elementi previsto
+   * @param fpp probabilità di falso positivo desiderata, tra 0 e 1
+   */
+  public BloomFilter(long expectedInsertions, double fpp) {
+    if (expectedInsertions <= 0 || fpp <= 0.0 || fpp >= 1.0) {
+      throw new IllegalArgumentException("Invalid Bloom filter parameters");
+    }
+
+    long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    m = Math.max(64, (m + 63) / 64 * 64);
+    this.size = m;
+    this.hashes = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+    this.bits = new AtomicLongArray((int) (m / 64));
+  }
+
+  /**
+   * Aggiunge una stringa al filtro
+   *
+   * @param value la stringa
+   */
+  public void add(String value) {
+    long h = hash(value);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+    for (int i = 1; i <= hashes; i++) {
+      long bit = index(h1 + i * h2);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long old;
+      do {
+        old = bits.get(word);
+        if ((old & mask) != 0) {
+          break;
+        }
+      } while (!bits.compareAndSet(word, old, old | mask));
+    }
+  }
+
+  /**
+   * Verifica se una stringa può essere stata aggiunta al filtro
+   *
+   * @param value la stringa
+   * @return false se la stringa non è sicuramente presente
+   */
+  public boolean mightContain(String value) {
+    long h = hash(value);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+    for (int i = 1; i <= hashes; i++) {
+      long bit = index(h1 + i * h2);
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long index(int combined) {
+    return (combined & 0x7fffffffL) % size;
+  }
+
+  /**
+   * Hash a 64 bit della stringa: FNV-1a sui caratteri seguito dal mescolamento finale di MurmurHash3
+   */
+  private static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Ritorna il numero di bit del filtro
+   *
+   * @return la dimensione in bit
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Ritorna il numero di funzioni hash usate
+   *
+   * @return il numero di funzioni hash
+   */
+  public int getHashCount() {
+    return hashes;
+  }
+}
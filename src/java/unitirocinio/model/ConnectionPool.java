@@ -0,0 +1,456 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * Pool limitato di connessioni al database ottenute da un DataSource.
+ *
+ * Ogni operazione prende in prestito una connessione con borrow() e la
+ * restituisce con release(): al massimo maxSize connessioni possono essere
+ * in uso contemporaneamente, gli altri thread attendono fino al timeout.
+ *
+ * @author Luca Gambetta
+ */
+public class ConnectionPool {
+
+  /**
+   * Dimensione predefinita del pool
+   */
+  public static final int DEFAULT_MAX_SIZE = 10;
+
+  /**
+   * Attesa massima predefinita per ottenere una connessione, in millisecondi
+   */
+  public static final long DEFAULT_BORROW_TIMEOUT = 30000L;
+
+  /**
+   * Una connessione inattiva viene validata prima del prestito solo se è
+   * rimasta ferma nel pool per più di questo tempo, in millisecondi
+   */
+  private static final long VALIDATION_INTERVAL = 5000L;
+
+  /**
+   * Sorgente delle connessioni fisiche
+   */
+  private final DataSource dataSource;
+
+  /**
+   * Numero massimo di connessioni aperte
+   */
+  private final int maxSize;
+
+  /**
+   * Un permesso per ogni connessione che può essere prestata
+   */
+  private final Semaphore permits;
+
+  /**
+   * Connessioni inattive: la più recente è in testa
+   */
+  private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+
+  /**
+   * Connessioni attualmente in prestito
+   */
+  private final AtomicInteger active = new AtomicInteger();
+
+  // Statistiche sui tempi di attesa
+  private final AtomicLong borrowCount = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+
+  /**
+   * Attesa massima per ottenere una connessione, in millisecondi
+   */
+  private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Cache degli statement di ciascuna connessione aperta
+   */
+  private final ConcurrentHashMap<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+
+  /**
+   * Contatori comuni alle cache degli statement
+   */
+  private final StatementCache.Statistics statementStatistics = new StatementCache.Statistics();
+
+  /**
+   * Dimensione delle cache degli statement
+   */
+  private volatile int statementCacheSize = StatementCache.DEFAULT_SIZE;
+
+  /**
+   * Crea un pool con la dimensione predefinita
+   *
+   * @param dataSource la sorgente delle connessioni
+   */
+  public ConnectionPool(DataSource dataSource) {
+    this(dataSource, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Crea un pool
+   *
+   * @param dataSource la sorgente delle connessioni
+   * @param maxSize numero massimo di connessioni contemporanee
+   */
+  public ConnectionPool(DataSource dataSource, int maxSize) {
+    if (dataSource == null) {
+      throw new NullPointerException();
+    }
+
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Invalid pool size");
+    }
+
+    this.dataSource = dataSource;
+    this.maxSize = maxSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Prende in prestito una connessione, attendendo se il pool è esaurito.
+   *
+   * La connessione va sempre restituita con release() o invalidate().
+   *
+   * @return una connessione con autocommit attivo
+   * @throws SQLException se il timeout scade o la connessione non può essere aperta
+   */
+  public Connection borrow() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool closed");
+    }
+
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+        timeoutCount.incrementAndGet();
+        throw new SQLException("Timeout waiting for a DB connection");
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a DB connection", e);
+    }
+    recordWait(System.nanoTime() - start);
+
+    try {
+      Connection c = takeIdle();
+      if (c == null) {
+        c = dataSource.getConnection();
+      }
+      active.incrementAndGet();
+      return c;
+    }
+    catch(SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Restituisce al pool una connessione presa in prestito.
+   *
+   * Un'eventuale transazione lasciata aperta viene annullata.
+   *
+   * @param c la connessione da restituire
+   */
+  public void release(Connection c) {
+    if (c == null) {
+      return;
+    }
+
+    boolean reusable = !closed;
+    try {
+      if (reusable && c.isClosed()) {
+        reusable = false;
+      }
+      if (reusable && !c.getAutoCommit()) {
+        c.rollback();
+        c.setAutoCommit(true);
+      }
+    }
+    catch(SQLException e) {
+      reusable = false;
+    }
+
+    if (reusable) {
+      idle.offerFirst(new IdleConnection(c));
+    } else {
+      closeQuietly(c);
+    }
+
+    active.decrementAndGet();
+    permits.release();
+  }
+
+  /**
+   * Restituisce una connessione non più utilizzabile: viene chiusa e il
+   * suo posto nel pool torna disponibile.
+   *
+   * @param c la connessione da scartare
+   */
+  public void invalidate(Connection c) {
+    if (c == null) {
+      return;
+    }
+
+    closeQuietly(c);
+    active.decrementAndGet();
+    permits.release();
+  }
+
+  /**
+   * Chiude il pool e tutte le connessioni inattive. Le connessioni in
+   * prestito vengono chiuse quando restituite.
+   */
+  public void close() {
+    closed = true;
+    IdleConnection ic;
+    while ((ic = idle.pollFirst()) != null) {
+      closeQuietly(ic.connection);
+    }
+  }
+
+  /**
+   * Estrae una connessione inattiva ancora valida, se c'è
+   */
+  private Connection takeIdle() {
+    IdleConnection ic;
+    while ((ic = idle.pollFirst()) != null) {
+      try {
+        if (System.currentTimeMillis() - ic.since < VALIDATION_INTERVAL || ic.connection.isValid(1)) {
+          return ic.connection;
+        }
+      }
+      catch(SQLException e) {
+        // La connessione viene scartata
+      }
+      closeQuietly(ic.connection);
+    }
+    return null;
+  }
+
+  private void recordWait(long nanos) {
+    borrowCount.incrementAndGet();
+    totalWaitNanos.addAndGet(nanos);
+
+    long max = maxWaitNanos.get();
+    while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /**
+   * Ritorna la cache degli statement di una connessione presa in prestito
+   *
+   * @param c la connessione
+   * @return la cache legata alla connessione
+   */
+  public StatementCache getStatementCache(Connection c) {
+    StatementCache cache = statementCaches.get(c);
+    if (cache == null) {
+      cache = new StatementCache(c, statementCacheSize, statementStatistics);
+      statementCaches.put(c, cache);
+    }
+    return cache;
+  }
+
+  /**
+   * Ritorna i contatori di utilizzo delle cache degli statement
+   *
+   * @return le statistiche delle cache
+   */
+  public StatementCache.Statistics getStatementCacheStatistics() {
+    return statementStatistics;
+  }
+
+  /**
+   * Imposta il numero di statement tenuti in cache per ogni connessione
+   *
+   * @param size numero massimo di statement, almeno StatementCache.MIN_SIZE
+   */
+  public void setStatementCacheSize(int size) {
+    if (size < StatementCache.MIN_SIZE) {
+      throw new IllegalArgumentException("Invalid cache size");
+    }
+    statementCacheSize = size;
+    for (StatementCache cache : statementCaches.values()) {
+      cache.setMaxSize(size);
+    }
+  }
+
+  /**
+   * Chiude una connessione fisica insieme alla sua cache degli statement
+   */
+  private void closeQuietly(Connection c) {
+    StatementCache cache = statementCaches.remove(c);
+    if (cache != null) {
+      cache.close();
+    }
+
+    try {
+      c.close();
+    }
+    catch(SQLException e) {
+      // Niente da fare
+    }
+  }
+
+  /**
+   * Ritorna la sorgente delle connessioni del pool
+   *
+   * @return il DataSource
+   */
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  /**
+   * Ritorna il numero massimo di connessioni del pool
+   *
+   * @return la dimensione del pool
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Ritorna il numero di connessioni attualmente in prestito
+   *
+   * @return le connessioni attive
+   */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  /**
+   * Ritorna il numero di connessioni aperte ma inutilizzate
+   *
+   * @return le connessioni inattive
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Ritorna il numero di thread in attesa di una connessione
+   *
+   * @return i thread in attesa
+   */
+  public int getWaitingCount() {
+    return permits.getQueueLength();
+  }
+
+  /**
+   * Ritorna il numero di prestiti effettuati
+   *
+   * @return il numero di prestiti
+   */
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+
+  /**
+   * Ritorna il numero di richieste fallite per timeout
+   *
+   * @return il numero di timeout
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Ritorna il tempo complessivo passato in attesa di una connessione
+   *
+   * @return il tempo di attesa in nanosecondi
+   */
+  public long getTotalWaitNanos() {
+    return totalWaitNanos.get();
+  }
+
+  /**
+   * Ritorna l'attesa media per ottenere una connessione
+   *
+   * @return l'attesa media in millisecondi
+   */
+  public double getAverageWaitMillis() {
+    long n = borrowCount.get();
+    return n == 0 ? 0.0 : totalWaitNanos.get() / (n * 1000000.0);
+  }
+
+  /**
+   * Ritorna l'attesa più lunga registrata per ottenere una connessione
+   *
+   * @return l'attesa massima in millisecondi
+   */
+  public double getMaxWaitMillis() {
+    return maxWaitNanos.get() / 1000000.0;
+  }
+
+  /**
+   * Ritorna l'attesa massima per ottenere una connessione
+   *
+   * @return il timeout in millisecondi
+   */
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  /**
+   * Imposta l'attesa massima per ottenere una connessione
+   *
+   * @param borrowTimeout il timeout in millisecondi
+   */
+  public void setBorrowTimeout(long borrowTimeout) {
+    this.borrowTimeout = borrowTimeout;
+  }
+
+  /**
+   * Una connessione inattiva con l'istante in cui è tornata nel pool
+   */
+  private static final class IdleConnection {
+
+    final Connection connection;
+    final long since;
+
+    IdleConnection(Connection connection) {
+      this.connection = connection;
+      this.since = System.currentTimeMillis();
+    }
+  }
+}
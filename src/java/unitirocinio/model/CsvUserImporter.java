@@ -0,0 +1,627 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Importa studenti e aziende da file CSV.
+ *
+ * Il file viene letto in streaming: le righe vengono raggruppate in blocchi,
+ * convertite e validate in parallelo e salvate con UserManager.saveAll, un
+ * blocco per transazione. In memoria restano solo i blocchi in lavorazione,
+ * qualunque sia la dimensione del file.
+ *
+ * La prima riga deve contenere i nomi delle colonne, separati da virgola.
+ * Le righe scartate vengono scritte nel file degli errori insieme al numero di
+ * riga e al motivo.
+ *
+ * Le password presenti nel file vengono cifrate con il PasswordHasher dello
+ * UserManager, che ne calcola al più tante insieme quanti sono i suoi thread:
+ * con le password il tempo di importazione è dominato dal loro calcolo. Se
+ * l'hasher resta sovraccarico, le righe interessate vengono scartate.
+ *
+ * @author Luca Gambetta
+ */
+public class CsvUserImporter {
+
+  /**
+   * Tracciati CSV supportati
+   */
+  public enum Format {
+    /**
+     * Studenti: login, email, nome, cognome, matricola e, facoltativa, password
+     */
+    STUDENTI("login", "email", "nome", "cognome", "matricola"),
+    /**
+     * Aziende: le colonne di utenti più quelle della tabella aziende, con
+     * data_convenzione nel formato AAAA-MM-GG e, facoltativa, password
+     */
+    AZIENDE("login", "email", "nome", "cognome", "partita_iva", "nome_rappresentante", "cognome_rappresentante",
+            "stato_convenzione", "rif_convenzione", "data_convenzione", "indirizzo_sede_legale", "citta_sede_legale");
+
+    private final String[] columns;
+
+    private Format(String... columns) {
+      this.columns = columns;
+    }
+  }
+
+  /**
+   * Il gestore usato per salvare gli utenti
+   */
+  private final UserManager userManager;
+
+  /**
+   * Numero di thread usati per convertire le righe
+   */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Numero di righe per blocco
+   */
+  private int blockSize = UserManager.DEFAULT_BATCH_SIZE;
+
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Crea un importatore
+   *
+   * @param userManager il gestore con cui salvare gli utenti
+   */
+  public CsvUserImporter(UserManager userManager) {
+    this.userManager = userManager;
+  }
+
+  /**
+   * Importa un file CSV
+   *
+   * @param format il tracciato del file
+   * @param csv il file da importare, in UTF-8
+   * @param errors il file in cui scrivere le righe scartate
+   * @return il riepilogo dell'importazione
+   * @throws Exception in caso di errore di lettura o di accesso al database
+   */
+  public Result importFile(Format format, Path csv, Path errors) throws Exception {
+    try (BufferedReader in = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+         BufferedWriter err = Files.newBufferedWriter(errors, StandardCharsets.UTF_8)) {
+      return importCsv(format, in, err);
+    }
+  }
+
+  /**
+   * Importa dati CSV
+   *
+   * @param format il tracciato dei dati
+   * @param in i dati da importare
+   * @param errors dove scrivere le righe scartate
+   * @return il riepilogo dell'importazione
+   * @throws Exception in caso di errore di lettura o di accesso al database
+   */
+  public Result importCsv(Format format, Reader in, Writer errors) throws Exception {
+    long start = System.nanoTime();
+    Result result = new Result();
+    CsvReader reader = new CsvReader(in);
+
+    List<String> header = reader.next();
+    if (header == null) {
+      return result;
+    }
+    Map<String, Integer> columns = new HashMap<>();
+    for (int i = 0; i < header.size(); i++) {
+      columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+    }
+    for (String c : format.columns) {
+      if (!columns.containsKey(c)) {
+        throw new IOException("Missing column: " + c);
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+    try {
+      List<Row> rows = new ArrayList<>(blockSize);
+      List<String> record;
+      while ((record = reader.next()) != null) {
+        result.read++;
+        rows.add(new Row(reader.getRecordLine(), record));
+        if (rows.size() == blockSize) {
+          submit(executor, pending, format, columns, rows);
+          rows = new ArrayList<>(blockSize);
+          // Limita i blocchi in memoria
+          while (pending.size() > parallelism * 2) {
+            write(pending.removeFirst(), errors, result);
+          }
+        }
+      }
+      if (!rows.isEmpty()) {
+        submit(executor, pending, format, columns, rows);
+      }
+      while (!pending.isEmpty()) {
+        write(pending.removeFirst(), errors, result);
+      }
+    }
+    finally {
+      for (Future<Block> f : pending) {
+        f.cancel(true);
+      }
+      executor.shutdownNow();
+      errors.flush();
+    }
+
+    result.elapsedMillis = (System.nanoTime() - start) / 1000000L;
+    return result;
+  }
+
+  private void submit(ExecutorService executor, ArrayDeque<Future<Block>> pending, Format format,
+          Map<String, Integer> columns, List<Row> rows) {
+    pending.addLast(executor.submit(() -> convert(format, columns, rows)));
+  }
+
+  /**
+   * Converte un blocco di righe in utenti, separando quelle non valide
+   */
+  private Block convert(Format format, Map<String, Integer> columns, List<Row> rows) {
+    Block block = new Block(rows.size());
+    List<User> users = new ArrayList<>(rows.size());
+    List<CompletableFuture<String>> hashes = new ArrayList<>(rows.size());
+    for (Row row : rows) {
+      try {
+        User user = format == Format.STUDENTI ? toStudente(columns, row) : toAzienda(columns, row);
+        // Le password del blocco vengono calcolate insieme sul pool dell'hasher,
+        // che fa attendere l'invio quando è pieno
+        hashes.add(password(columns, row, user));
+        users.add(user);
+        block.rows.put(user, row);
+      }
+      catch(IllegalArgumentException | RejectedExecutionException e) {
+        row.error = e.getMessage();
+        block.invalid.add(row);
+      }
+    }
+
+    for (int i = 0; i < users.size(); i++) {
+      User user = users.get(i);
+      CompletableFuture<String> hash = hashes.get(i);
+      if (hash != null) {
+        try {
+          user.setPassword(hash.join());
+        }
+        catch(CompletionException e) {
+          Row row = block.rows.remove(user);
+          row.error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+          block.invalid.add(row);
+          continue;
+        }
+      }
+      block.users.add(user);
+    }
+    return block;
+  }
+
+  /**
+   * Salva un blocco convertito e registra le righe scartate
+   */
+  private void write(Future<Block> future, Writer errors, Result result) throws Exception {
+    Block block;
+    try {
+      block = future.get();
+    }
+    catch(ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+
+    for (Row row : block.invalid) {
+      writeError(errors, row);
+      result.rejected++;
+    }
+
+    try {
+      userManager.saveAll(block.users);
+      result.imported += block.users.size();
+    }
+    catch(BatchSaveException e) {
+      result.imported += block.users.size() - e.getRejectedUsers().size();
+      // Ripete uno alla volta gli utenti dei blocchi annullati, per scartare solo quelli non validi
+      for (User user : e.getRejectedUsers()) {
+        try {
+          userManager.save(user);
+          result.imported++;
+        }
+        catch(Exception ex) {
+          Row row = block.rows.get(user);
+          row.error = ex.getMessage();
+          writeError(errors, row);
+          result.rejected++;
+        }
+      }
+    }
+  }
+
+  private void writeError(Writer errors, Row row) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(row.line).append(',');
+    appendField(sb, row.error);
+    for (String field : row.fields) {
+      sb.append(',');
+      appendField(sb, field);
+    }
+    sb.append('\n');
+    errors.write(sb.toString());
+  }
+
+  private static void appendField(StringBuilder sb, String field) {
+    if (field == null) {
+      return;
+    }
+    if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+      sb.append(field);
+      return;
+    }
+    sb.append('"').append(field.replace("\"", "\"\"")).append('"');
+  }
+
+  private Studente toStudente(Map<String, Integer> columns, Row row) {
+    Studente user = new Studente(
+            field(columns, row, "login", 100),
+            email(columns, row),
+            field(columns, row, "matricola", 15),
+            0L);
+    fillUtente(columns, row, user);
+    return user;
+  }
+
+  private Azienda toAzienda(Map<String, Integer> columns, Row row) {
+    Azienda user = new Azienda(
+            field(columns, row, "login", 100),
+            email(columns, row),
+            field(columns, row, "partita_iva", 30),
+            0L);
+    fillUtente(columns, row, user);
+    user.setNomeRappresentanteLegale(field(columns, row, "nome_rappresentante", 100));
+    user.setCognomeRappresentanteLegale(field(columns, row, "cognome_rappresentante", 100));
+    user.setRifConvenzione(field(columns, row, "rif_convenzione", 30));
+    user.setIndirizzoSedeLegale(field(columns, row, "indirizzo_sede_legale", 100));
+    user.setCittaSedeLegale(field(columns, row, "citta_sede_legale", 60));
+
+    String stato = field(columns, row, "stato_convenzione", 20);
+    switch(stato) {
+      case "attiva":
+        user.setStatoConvenzione(Azienda.StatoConvenzione.ATTIVA);
+        break;
+      case "non_attiva":
+        user.setStatoConvenzione(Azienda.StatoConvenzione.NON_ATTIVA);
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid stato_convenzione: " + stato);
+    }
+
+    String data = field(columns, row, "data_convenzione", 10);
+    try {
+      user.setDataConvenzione(LocalDate.parse(data).atStartOfDay(ZoneId.systemDefault()).toEpochSecond());
+    }
+    catch(DateTimeParseException e) {
+      throw new IllegalArgumentException("Invalid data_convenzione: " + data);
+    }
+    return user;
+  }
+
+  /**
+   * Imposta i dati comuni a tutti gli utenti
+   */
+  private static void fillUtente(Map<String, Integer> columns, Row row, User user) {
+    user.setNome(field(columns, row, "nome", 100));
+    user.setCognome(field(columns, row, "cognome", 100));
+  }
+
+  /**
+   * Avvia il calcolo dell'hash della password della riga. Senza password
+   * imposta un valore che non corrisponde a nessuna password.
+   *
+   * @return l'hash in calcolo, null se la riga non ha una password
+   * @throws RejectedExecutionException se l'hasher resta sovraccarico
+   */
+  private CompletableFuture<String> password(Map<String, Integer> columns, Row row, User user) {
+    Integer idx = columns.get("password");
+    String password = idx != null && idx < row.fields.size() ? row.fields.get(idx) : null;
+    if (password != null && !password.isEmpty()) {
+      return userManager.getPasswordHasher().hashAsync(password);
+    }
+
+    // Nessuna password: l'utente dovrà impostarla con la procedura di recupero
+    byte[] token = new byte[16];
+    random.nextBytes(token);
+    user.setPassword("!" + Base64.getEncoder().encodeToString(token));
+    return null;
+  }
+
+  private static String email(Map<String, Integer> columns, Row row) {
+    String email = field(columns, row, "email", 100);
+    int at = email.indexOf('@');
+    if (at <= 0 || at == email.length() - 1) {
+      throw new IllegalArgumentException("Invalid email: " + email);
+    }
+    return email;
+  }
+
+  /**
+   * Ritorna un campo obbligatorio della riga, verificandone la lunghezza
+   */
+  private static String field(Map<String, Integer> columns, Row row, String name, int maxLength) {
+    int idx = columns.get(name);
+    String value = idx < row.fields.size() ? row.fields.get(idx).trim() : "";
+    if (value.isEmpty()) {
+      throw new IllegalArgumentException("Missing " + name);
+    }
+    if (value.length() > maxLength) {
+      throw new IllegalArgumentException(name + " too long");
+    }
+    return value;
+  }
+
+  /**
+   * Ritorna il numero di thread usati per convertire le righe
+   *
+   * @return il numero di thread
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Imposta il numero di thread usati per convertire le righe
+   *
+   * @param parallelism il numero di thread
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Invalid parallelism");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Ritorna il numero di righe salvate in ogni transazione
+   *
+   * @return la dimensione dei blocchi
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Imposta il numero di righe salvate in ogni transazione
+   *
+   * @param blockSize la dimensione dei blocchi
+   */
+  public void setBlockSize(int blockSize) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size");
+    }
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Riepilogo di un'importazione
+   */
+  public static class Result {
+
+    private long read;
+    private long imported;
+    private long rejected;
+    private long elapsedMillis;
+
+    /**
+     * Ritorna il numero di righe lette, esclusa l'intestazione
+     *
+     * @return le righe lette
+     */
+    public long getRead() {
+      return read;
+    }
+
+    /**
+     * Ritorna il numero di utenti salvati
+     *
+     * @return gli utenti salvati
+     */
+    public long getImported() {
+      return imported;
+    }
+
+    /**
+     * Ritorna il numero di righe scartate
+     *
+     * @return le righe scartate
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /**
+     * Ritorna la durata dell'importazione
+     *
+     * @return la durata in millisecondi
+     */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /**
+   * Una riga del file con il suo numero
+   */
+  private static final class Row {
+
+    final long line;
+    final List<String> fields;
+    String error;
+
+    Row(long line, List<String> fields) {
+      this.line = line;
+      this.fields = fields;
+    }
+  }
+
+  /**
+   * Un blocco di righe convertite
+   */
+  private static final class Block {
+
+    final List<User> users;
+    final IdentityHashMap<User, Row> rows;
+    final List<Row> invalid = new ArrayList<>();
+
+    Block(int size) {
+      users = new ArrayList<>(size);
+      rows = new IdentityHashMap<>(size);
+    }
+  }
+
+  /**
+   * Lettore di record CSV: campi separati da virgola, eventualmente tra
+   * virgolette doppie, con "" per le virgolette all'interno di un campo.
+   * Un campo tra virgolette può contenere a capo.
+   */
+  static final class CsvReader {
+
+    private final Reader in;
+    private long line = 1;
+    private long recordLine;
+    private int peeked = -2;
+
+    CsvReader(Reader in) {
+      this.in = in instanceof BufferedReader ? in : new BufferedReader(in);
+    }
+
+    /**
+     * Ritorna il numero della riga su cui inizia l'ultimo record letto
+     */
+    long getRecordLine() {
+      return recordLine;
+    }
+
+    /**
+     * Legge il prossimo record
+     *
+     * @return i campi del record o null a fine file
+     */
+    List<String> next() throws IOException {
+      int c = read();
+      // Salta le righe vuote
+      while (c == '\n' || c == '\r') {
+        c = read();
+      }
+      if (c == -1) {
+        return null;
+      }
+
+      recordLine = line;
+      List<String> fields = new ArrayList<>();
+      StringBuilder sb = new StringBuilder();
+      boolean quoted = false;
+
+      while (true) {
+        if (quoted) {
+          if (c == -1) {
+            throw new IOException("Unterminated quoted field at line " + recordLine);
+          }
+          if (c == '"') {
+            int n = read();
+            if (n == '"') {
+              sb.append('"');
+            } else {
+              quoted = false;
+              c = n;
+              continue;
+            }
+          } else {
+            sb.append((char) c);
+          }
+        } else if (c == '"' && sb.length() == 0) {
+          quoted = true;
+        } else if (c == ',') {
+          fields.add(sb.toString());
+          sb.setLength(0);
+        } else if (c == '\n' || c == '\r' || c == -1) {
+          if (c == '\r') {
+            int n = read();
+            if (n != '\n') {
+              unread(n);
+            }
+          }
+          fields.add(sb.toString());
+          return fields;
+        } else {
+          sb.append((char) c);
+        }
+        c = read();
+      }
+    }
+
+    private int read() throws IOException {
+      int c;
+      if (peeked != -2) {
+        c = peeked;
+        peeked = -2;
+      } else {
+        c = in.read();
+        if (c == '\n') {
+          line++;
+        }
+      }
+      return c;
+    }
+
+    private void unread(int c) {
+      peeked = c;
+    }
+  }
+}
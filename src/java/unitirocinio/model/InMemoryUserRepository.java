@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Archivio degli utenti interamente in memoria, senza database: per demo,
+ * test di carico e nodi che non hanno accesso a MySQL.
+ *
+ * Gli ID sono assegnati in sequenza come fa AUTO_INCREMENT e gli utenti
+ * sono conservati in un array a blocchi indicizzato direttamente dall'ID,
+ * senza lock e senza boxing delle chiavi; le login sono in una mappa
+ * concorrente. I vincoli di unicità sono applicati con putIfAbsent, senza
+ * lock: un salvataggio che ne viola uno annulla le chiavi già riservate e
+ * lancia una SQLIntegrityConstraintViolationException, come il database.
+ * I valori vengono confrontati come nelle collation _general_ci.
+ *
+ * Gli utenti salvati e restituiti sono copie.
+ *
+ * @author Luca Gambetta
+ */
+public class InMemoryUserRepository implements UserRepository {
+
+  /**
+   * Bit dell'ID che indicano la posizione nel blocco
+   */
+  private static final int CHUNK_BITS = 14;
+
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  /**
+   * Numero massimo di blocchi: oltre un miliardo di utenti
+   */
+  private static final int MAX_CHUNKS = 1 << 16;
+
+  /**
+   * Blocchi di utenti indicizzati per ID, creati quando servono
+   */
+  private final AtomicReferenceArray<AtomicReferenceArray<User>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+  /**
+   * Ultimo ID assegnato
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Utenti per login normalizzata
+   */
+  private final ConcurrentHashMap<String, User> byLogin = new ConcurrentHashMap<>();
+
+  /**
+   * ID dei proprietari dei valori univoci dei sottotipi, per colonna
+   */
+  private final Map<UniqueKey, ConcurrentHashMap<String, Long>> uniqueValues = new EnumMap<>(UniqueKey.class);
+
+  /**
+   * Crea un archivio vuoto
+   */
+  public InMemoryUserRepository() {
+    for (UniqueKey key : UniqueKey.values()) {
+      if (key != UniqueKey.LOGIN) {
+        uniqueValues.put(key, new ConcurrentHashMap<String, Long>());
+      }
+    }
+  }
+
+  @Override
+  public User save(User user) throws Exception {
+    UserManager.tipoUtente(user);
+    if (user.getLogin() == null) {
+      throw new NullPointerException();
+    }
+
+    // Come AUTO_INCREMENT, un salvataggio fallito lascia un buco negli ID
+    long id = sequence.incrementAndGet();
+    if (id >= (long) MAX_CHUNKS * CHUNK_SIZE) {
+      throw new IllegalStateException("Repository full");
+    }
+
+    UniqueKey reserved = null;
+    String login = AvailabilityIndex.normalize(user.getLogin());
+    User stored = UserCache.copy(user);
+    stored.setId(id);
+    stored.setDataIscrizione(System.currentTimeMillis() / 1000);
+    stored.clearDirty();
+
+    if (byLogin.putIfAbsent(login, stored) != null) {
+      throw duplicate(user.getLogin(), UniqueKey.LOGIN);
+    }
+    try {
+      for (Map.Entry<UniqueKey, ConcurrentHashMap<String, Long>> e : uniqueValues.entrySet()) {
+        String value = e.getKey().valueOf(user);
+        if (value == null) {
+          continue;
+        }
+        if (e.getValue().putIfAbsent(AvailabilityIndex.normalize(value), id) != null) {
+          throw duplicate(value, e.getKey());
+        }
+        reserved = e.getKey();
+      }
+    }
+    catch(SQLIntegrityConstraintViolationException e) {
+      release(stored, reserved);
+      byLogin.remove(login, stored);
+      throw e;
+    }
+
+    slot(id, true).set((int) (id & (CHUNK_SIZE - 1)), stored);
+    user.setId(id);
+    user.setDataIscrizione(stored.getDataIscrizione());
+    return user;
+  }
+
+  /**
+   * Rilascia i valori univoci riservati fino alla colonna indicata compresa
+   */
+  private void release(User stored, UniqueKey last) {
+    if (last == null) {
+      return;
+    }
+    for (Map.Entry<UniqueKey, ConcurrentHashMap<String, Long>> e : uniqueValues.entrySet()) {
+      String value = e.getKey().valueOf(stored);
+      if (value != null) {
+        e.getValue().remove(AvailabilityIndex.normalize(value), stored.getId());
+      }
+      if (e.getKey() == last) {
+        return;
+      }
+    }
+  }
+
+  private static SQLIntegrityConstraintViolationException duplicate(String value, UniqueKey key) {
+    return new SQLIntegrityConstraintViolationException(
+            "Duplicate entry '" + value + "' for key '" + key.getColumn() + "'", "23000", 1062);
+  }
+
+  @Override
+  public User find(Long id) throws Exception {
+    if (id == null) {
+      throw new NullPointerException();
+    }
+
+    if (id <= 0) {
+      throw new Exception("Invalid ID");
+    }
+
+    if (id > sequence.get()) {
+      return null;
+    }
+    User user = stored(id);
+    return user != null ? UserCache.copy(user) : null;
+  }
+
+  @Override
+  public User findByLogin(String login) {
+    if (login == null) {
+      throw new NullPointerException();
+    }
+
+    User user = byLogin.get(AvailabilityIndex.normalize(login));
+    // Un utente è visibile per login solo dopo che il salvataggio è completato
+    return user != null && stored(user.getId()) == user ? UserCache.copy(user) : null;
+  }
+
+  /**
+   * Ritorna l'utente salvato con un ID
+   */
+  private User stored(long id) {
+    AtomicReferenceArray<User> chunk = slot(id, false);
+    return chunk != null ? chunk.get((int) (id & (CHUNK_SIZE - 1))) : null;
+  }
+
+  /**
+   * Ritorna il blocco che contiene un ID, creandolo se richiesto
+   */
+  private AtomicReferenceArray<User> slot(long id, boolean create) {
+    int index = (int) (id >>> CHUNK_BITS);
+    AtomicReferenceArray<User> chunk = chunks.get(index);
+    if (chunk == null && create) {
+      chunks.compareAndSet(index, null, new AtomicReferenceArray<User>(CHUNK_SIZE));
+      chunk = chunks.get(index);
+    }
+    return chunk;
+  }
+
+  /**
+   * Ritorna il numero di utenti salvati
+   *
+   * @return il numero di utenti
+   */
+  public int size() {
+    return byLogin.size();
+  }
+}
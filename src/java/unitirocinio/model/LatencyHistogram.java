@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma delle latenze a bucket log-lineari, sul modello di
+ * HdrHistogram.
+ *
+ * Ogni potenza di due è divisa in 32 bucket, quindi i percentili hanno un
+ * errore relativo massimo di circa il 3%; i valori sotto i 64 ns sono
+ * esatti e quelli oltre circa 73 minuti finiscono nell'ultimo bucket. La
+ * registrazione di una misura non alloca memoria e non prende lock, e può
+ * avvenire da più thread contemporaneamente.
+ *
+ * @author Luca Gambetta
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+  /**
+   * Bit di precisione all'interno di ogni potenza di due
+   */
+  private static final int SUB_BITS = 5;
+
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  /**
+   * Bit più significativo del valore massimo registrabile
+   */
+  private static final int MAX_MSB = 41;
+
+  private static final long MAX_VALUE = (1L << (MAX_MSB + 1)) - 1;
+
+  private static final int BUCKETS = (MAX_MSB - SUB_BITS + 2) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Registra una misura
+   *
+   * @param nanos la latenza in nanosecondi
+   */
+  public void record(long nanos) {
+    long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+    counts.incrementAndGet(index(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * Registra il tempo trascorso da un istante ottenuto con System.nanoTime()
+   *
+   * @param startNanos l'istante di inizio
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  private static int index(long v) {
+    if (v < 2 * SUB_COUNT) {
+      return (int) v;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+    return shift * SUB_COUNT + (int) (v >>> shift);
+  }
+
+  /**
+   * Valore più alto compreso in un bucket
+   */
+  private static long highestValue(int index) {
+    if (index < 2 * SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    long sub = index - shift * SUB_COUNT;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Ritorna il valore sotto cui cade la percentuale indicata delle misure
+   *
+   * @param percentile il percentile, tra 0 e 100
+   * @return la latenza in nanosecondi, 0 se non ci sono misure
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0.0 : millis(sum.get()) / n;
+  }
+
+  @Override
+  public double getP50Millis() {
+    return millis(getValueAtPercentile(50));
+  }
+
+  @Override
+  public double getP90Millis() {
+    return millis(getValueAtPercentile(90));
+  }
+
+  @Override
+  public double getP99Millis() {
+    return millis(getValueAtPercentile(99));
+  }
+
+  @Override
+  public double getP999Millis() {
+    return millis(getValueAtPercentile(99.9));
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return millis(max.get());
+  }
+
+  /**
+   * Ritorna la latenza massima della finestra
+   *
+   * @return la latenza in nanosecondi
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  @Override
+  public void resetWindow() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1000000.0;
+  }
+}
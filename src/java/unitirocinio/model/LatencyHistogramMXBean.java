@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Interfaccia JMX di un istogramma delle latenze.
+ *
+ * I valori si riferiscono alla finestra corrente, che parte dall'ultima
+ * chiamata a resetWindow().
+ *
+ * @author Luca Gambetta
+ */
+public interface LatencyHistogramMXBean {
+
+  /**
+   * Ritorna il numero di misure nella finestra
+   *
+   * @return il numero di misure nella finestra
+   */
+  long getCount();
+
+  /**
+   * Ritorna la latenza media in millisecondi
+   *
+   * @return la latenza media in millisecondi
+   */
+  double getMeanMillis();
+
+  /**
+   * Ritorna la mediana in millisecondi
+   *
+   * @return la mediana in millisecondi
+   */
+  double getP50Millis();
+
+  /**
+   * Ritorna il 90° percentile in millisecondi
+   *
+   * @return il 90° percentile in millisecondi
+   */
+  double getP90Millis();
+
+  /**
+   * Ritorna il 99° percentile in millisecondi
+   *
+   * @return il 99° percentile in millisecondi
+   */
+  double getP99Millis();
+
+  /**
+   * Ritorna il 99,9° percentile in millisecondi
+   *
+   * @return il 99,9° percentile in millisecondi
+   */
+  double getP999Millis();
+
+  /**
+   * Ritorna la latenza massima in millisecondi
+   *
+   * @return la latenza massima in millisecondi
+   */
+  double getMaxMillis();
+
+  /**
+   * Azzera le misure e inizia una nuova finestra
+   */
+  void resetWindow();
+}
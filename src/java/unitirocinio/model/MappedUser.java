@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indica la tabella di un sottotipo di User.
+ *
+ * Per ogni classe annotata il processore unitirocinio.processor.UserMapperProcessor
+ * genera in compilazione un UserMapper con le colonne dei campi annotati con
+ * MappedColumn. La classe deve avere un costruttore senza argomenti visibile
+ * nel package.
+ *
+ * @author Luca Gambetta
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+@interface MappedUser {
+
+  /**
+   * Il valore di tipo_utente per la classe
+   */
+  TipoUtente tipo();
+
+  /**
+   * La tabella del sottotipo
+   */
+  String table();
+
+  /**
+   * L'alias della tabella nella SELECT unita a utenti
+   */
+  String alias();
+
+  /**
+   * La colonna con l'ID dell'utente
+   */
+  String key();
+
+  /**
+   * La colonna che identifica l'utente nei riepiloghi, come la matricola
+   */
+  String identifier();
+}
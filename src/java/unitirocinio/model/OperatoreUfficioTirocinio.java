@@ -23,16 +23,21 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella un operatore dell'ufficio tirocinio e stage
  * 
  * @author Luca Gambetta
  */
+@MappedUser(tipo = TipoUtente.OPERATORE, table = "operatori_ufficio_tirocinio", alias = "o", key = "operatore_id",
+        identifier = "codice_fiscale")
 public class OperatoreUfficioTirocinio extends User {
 
   /**
    * Codice fiscale dell'operatore
    */
+  @MappedColumn("codice_fiscale")
   protected String codiceFiscale;
 
   /**
@@ -42,22 +47,33 @@ public class OperatoreUfficioTirocinio extends User {
     /**
      * L'utente è un operatore semplice
      */
+    @DbValue(value = "operatore", fallback = true)
     OPERATORE,
     /**
      * L'utente è presidente del consiglio didattico
      */
+    @DbValue("presidente_cons_did")
     PRESIDENTE_CONSIGLIO_DIDATTICO,
     /**
      * L'utente è il direttore del dipartimento
      */
+    @DbValue("direttore_dip")
     DIRETTORE_DIPARTIMENTO
   };
 
   /**
    * Ruolo dell'operatore in seno all'ufficio stage e tirocinio
    */
+  @MappedColumn("ruolo")
   protected Ruolo ruolo;
 
+  /**
+   * Crea un operatore vuoto, per la lettura dal database
+   */
+  OperatoreUfficioTirocinio() {
+    super(null, null, null);
+  }
+
   /**
    * Crea una nuova istanza della classe.
    * 
@@ -81,6 +97,7 @@ public class OperatoreUfficioTirocinio extends User {
    * @return il codice fiscale dell'operatore
    */
   public String getCodiceFiscale() {
+    hydrate();
     return codiceFiscale;
   }
 
@@ -90,6 +107,10 @@ public class OperatoreUfficioTirocinio extends User {
    * @param codiceFiscale il codice fiscale dell'operatore
    */
   public void setCodiceFiscale(String codiceFiscale) {
+    hydrate();
+    if (!Objects.equals(this.codiceFiscale, codiceFiscale)) {
+      markDirty(UserColumn.OPERATORE_CODICE_FISCALE);
+    }
     this.codiceFiscale = codiceFiscale;
   }
 
@@ -99,6 +120,7 @@ public class OperatoreUfficioTirocinio extends User {
    * @return il ruolo dell'operatore
    */
   public Ruolo getRuolo() {
+    hydrate();
     return ruolo;
   }
 
@@ -108,6 +130,10 @@ public class OperatoreUfficioTirocinio extends User {
    * @param ruolo il ruolo dell'operatore
    */
   public void setRuolo(Ruolo ruolo) {
+    hydrate();
+    if (!Objects.equals(this.ruolo, ruolo)) {
+      markDirty(UserColumn.OPERATORE_RUOLO);
+    }
     this.ruolo = ruolo;
   }
 
@@ -0,0 +1,433 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Calcola e verifica gli hash delle password con PBKDF2-HMAC-SHA256.
+ *
+ * Gli hash hanno il formato pbkdf2-sha256$iterazioni$salt$hash, con salt e
+ * hash in Base64: contengono i parametri con cui sono stati calcolati, così
+ * che aumentare il numero di iterazioni non invalidi quelli già salvati
+ * (needsRehash indica quali ricalcolare al prossimo accesso).
+ *
+ * Il calcolo avviene su un pool di thread dedicato con una coda limitata:
+ * quando pool e coda sono pieni chi chiede un hash attende al massimo per
+ * il tempo indicato, poi riceve una RejectedExecutionException.
+ *
+ * @author Luca Gambetta
+ */
+public class PasswordHasher {
+
+  /**
+   * Identificativo dell'algoritmo nel formato degli hash
+   */
+  public static final String ALGORITHM = "pbkdf2-sha256";
+
+  /**
+   * Numero minimo di iterazioni, anche su macchine lente
+   */
+  public static final int MIN_ITERATIONS = 10000;
+
+  /**
+   * Tempo predefinito per il calcolo di un hash, in millisecondi
+   */
+  public static final long DEFAULT_TARGET_MILLIS = 100;
+
+  /**
+   * Lunghezza predefinita della coda dei calcoli in attesa
+   */
+  public static final int DEFAULT_QUEUE_LIMIT = 64;
+
+  /**
+   * Attesa massima predefinita per l'accodamento di un calcolo, in millisecondi
+   */
+  public static final long DEFAULT_SUBMIT_TIMEOUT = 5000;
+
+  private static final String PREFIX = ALGORITHM + "$";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+
+  /**
+   * Numero di iterazioni per i nuovi hash
+   */
+  private final int iterations;
+
+  /**
+   * Esegue i calcoli
+   */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Posti disponibili tra thread e coda
+   */
+  private final Semaphore slots;
+
+  /**
+   * Attesa massima per un posto, in millisecondi
+   */
+  private final long submitTimeout;
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Crea un hasher
+   *
+   * @param iterations numero di iterazioni per i nuovi hash
+   * @param threads numero di thread dedicati al calcolo
+   * @param queueLimit numero massimo di calcoli in coda
+   * @param submitTimeout attesa massima per l'accodamento, in millisecondi
+   */
+  public PasswordHasher(int iterations, int threads, int queueLimit, long submitTimeout) {
+    if (iterations < 1 || threads < 1 || queueLimit < 0 || submitTimeout < 0) {
+      throw new IllegalArgumentException("Invalid hasher parameters");
+    }
+
+    this.iterations = iterations;
+    this.submitTimeout = submitTimeout;
+    this.slots = new Semaphore(threads + queueLimit, true);
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new HasherThreadFactory());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Crea un hasher con il numero di iterazioni tarato sul tempo indicato,
+   * un thread per processore e i parametri predefiniti per la coda
+   *
+   * @param targetMillis tempo desiderato per un hash, in millisecondi
+   * @return l'hasher
+   */
+  public static PasswordHasher calibrated(long targetMillis) {
+    return new PasswordHasher(calibrate(targetMillis), Runtime.getRuntime().availableProcessors(),
+            DEFAULT_QUEUE_LIMIT, DEFAULT_SUBMIT_TIMEOUT);
+  }
+
+  /**
+   * Misura la velocità di PBKDF2 su questa macchina e ritorna il numero di
+   * iterazioni che richiede circa il tempo indicato, mai meno di MIN_ITERATIONS
+   *
+   * @param targetMillis tempo desiderato per un hash, in millisecondi
+   * @return il numero di iterazioni
+   */
+  public static int calibrate(long targetMillis) {
+    char[] password = "calibration".toCharArray();
+    byte[] salt = new byte[SALT_BYTES];
+    int probe = MIN_ITERATIONS;
+
+    // Alcuni giri di riscaldamento, poi il più veloce di tre
+    for (int i = 0; i < 3; i++) {
+      pbkdf2(password, salt, probe);
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 3; i++) {
+      long start = System.nanoTime();
+      pbkdf2(password, salt, probe);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+
+    double perIteration = (double) Math.max(1, best) / probe;
+    long n = (long) (TimeUnit.MILLISECONDS.toNanos(targetMillis) / perIteration);
+    n = n / 1000 * 1000;
+    return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, n));
+  }
+
+  /**
+   * Calcola l'hash di una password, attendendo il risultato
+   *
+   * @param password la password in chiaro
+   * @return l'hash nel formato pbkdf2-sha256$iterazioni$salt$hash
+   * @throws RejectedExecutionException se il pool è sovraccarico
+   */
+  public String hash(String password) {
+    return await(hashAsync(password));
+  }
+
+  /**
+   * Calcola l'hash di una password sul pool dedicato
+   *
+   * @param password la password in chiaro
+   * @return il futuro hash
+   * @throws RejectedExecutionException se il pool è sovraccarico
+   */
+  public CompletableFuture<String> hashAsync(final String password) {
+    if (password == null) {
+      throw new NullPointerException();
+    }
+
+    final byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    return submit(new Supplier<String>() {
+      @Override
+      public String get() {
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        byte[] hash = pbkdf2(password.toCharArray(), salt, iterations);
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+      }
+    });
+  }
+
+  /**
+   * Verifica una password, attendendo il risultato
+   *
+   * @param password la password in chiaro
+   * @param stored l'hash salvato
+   * @return true se la password corrisponde
+   * @throws RejectedExecutionException se il pool è sovraccarico
+   */
+  public boolean verify(String password, String stored) {
+    return await(verifyAsync(password, stored));
+  }
+
+  /**
+   * Verifica una password sul pool dedicato.
+   *
+   * I valori salvati che non sono nel formato degli hash vengono confrontati
+   * come password in chiaro, per gli utenti registrati prima dell'hashing;
+   * quelli che iniziano con "!" indicano un account senza password e non
+   * corrispondono mai.
+   *
+   * @param password la password in chiaro
+   * @param stored il valore salvato
+   * @return il futuro esito della verifica
+   * @throws RejectedExecutionException se il pool è sovraccarico
+   */
+  public CompletableFuture<Boolean> verifyAsync(final String password, final String stored) {
+    if (password == null || stored == null || stored.startsWith("!")) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    if (!stored.startsWith(PREFIX)) {
+      return CompletableFuture.completedFuture(MessageDigest.isEqual(
+              password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    final String[] parts = stored.split("\\$");
+    final int n;
+    try {
+      n = parts.length == 4 ? Integer.parseInt(parts[1]) : -1;
+    }
+    catch(NumberFormatException e) {
+      return CompletableFuture.completedFuture(false);
+    }
+    if (n < 1) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    // Un hash malformato non corrisponde a nessuna password
+    final byte[] salt;
+    final byte[] expected;
+    try {
+      Base64.Decoder b64 = Base64.getDecoder();
+      salt = b64.decode(parts[2]);
+      expected = b64.decode(parts[3]);
+    }
+    catch(IllegalArgumentException e) {
+      return CompletableFuture.completedFuture(false);
+    }
+    if (salt.length == 0) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    return submit(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        byte[] actual = pbkdf2(password.toCharArray(), salt, n);
+        return MessageDigest.isEqual(expected, actual);
+      }
+    });
+  }
+
+  /**
+   * Indica se un hash salvato va ricalcolato con i parametri correnti
+   *
+   * @param stored il valore salvato
+   * @return true se è in chiaro o calcolato con meno iterazioni di quelle correnti
+   */
+  public boolean needsRehash(String stored) {
+    if (stored == null || stored.startsWith("!")) {
+      return false;
+    }
+    if (!stored.startsWith(PREFIX)) {
+      return true;
+    }
+    String[] parts = stored.split("\\$");
+    try {
+      return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+    }
+    catch(NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Accoda un calcolo, attendendo un posto libero al massimo per submitTimeout
+   */
+  private <T> CompletableFuture<T> submit(final Supplier<T> computation) {
+    boolean acquired;
+    try {
+      acquired = slots.tryAcquire(submitTimeout, TimeUnit.MILLISECONDS);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for the password hasher", e);
+    }
+    if (!acquired) {
+      rejected.incrementAndGet();
+      throw new RejectedExecutionException("Password hasher overloaded");
+    }
+
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.complete(computation.get());
+          }
+          catch(Throwable t) {
+            future.completeExceptionally(t);
+          }
+          finally {
+            slots.release();
+          }
+        }
+      });
+    }
+    catch(RejectedExecutionException e) {
+      slots.release();
+      throw e;
+    }
+    return future;
+  }
+
+  private static <T> T await(CompletableFuture<T> future) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        }
+        catch(InterruptedException e) {
+          // Il calcolo è già in corso: si attende comunque il risultato
+          interrupted = true;
+        }
+      }
+    }
+    catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    }
+    catch(GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Ferma i thread dell'hasher dopo i calcoli già accodati
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Ritorna il numero di iterazioni usato per i nuovi hash
+   *
+   * @return il numero di iterazioni
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Ritorna il numero di calcoli in coda
+   *
+   * @return la lunghezza della coda
+   */
+  public int getQueueLength() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Ritorna il numero di richieste rifiutate per sovraccarico
+   *
+   * @return il numero di rifiuti
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Crea thread demoni con un nome riconoscibile
+   */
+  private static final class HasherThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "password-hasher-" + COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
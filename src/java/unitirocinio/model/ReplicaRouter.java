@@ -0,0 +1,404 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * Sceglie la replica del database su cui eseguire una lettura.
+ *
+ * Ogni replica ha il proprio pool di connessioni. Le letture vengono
+ * distribuite a turno o sulla replica con meno connessioni in uso, saltando
+ * le repliche non raggiungibili: una replica viene esclusa appena fallisce
+ * l'apertura di una connessione e riammessa dal controllo periodico. Se
+ * nessuna replica è disponibile si legge dal primario.
+ *
+ * Per garantire a una sessione di rileggere le proprie scritture, per un
+ * intervallo dopo ogni scrittura le letture della sessione vanno al
+ * primario: l'intervallo va scelto maggiore del ritardo di replica.
+ *
+ * @author Luca Gambetta
+ */
+public class ReplicaRouter {
+
+  /**
+   * Criterio di scelta della replica
+   */
+  public enum Policy {
+    /**
+     * Le repliche a turno
+     */
+    ROUND_ROBIN,
+    /**
+     * La replica con meno connessioni in uso o in attesa
+     */
+    LEAST_LOADED
+  };
+
+  /**
+   * Intervallo predefinito tra due controlli delle repliche, in millisecondi
+   */
+  public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000L;
+
+  /**
+   * Durata predefinita della lettura dal primario dopo una scrittura, in millisecondi
+   */
+  public static final long DEFAULT_STICKY_WINDOW = 2000L;
+
+  /**
+   * Numero di sessioni oltre il quale si rimuovono quelle scadute
+   */
+  private static final int MAX_SESSIONS = 10000;
+
+  private final List<Replica> replicas;
+  private final ScheduledExecutorService healthChecker;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Istante dell'ultima scrittura di ogni sessione, in nanosecondi
+   */
+  private final ConcurrentHashMap<Object, Long> lastWrite = new ConcurrentHashMap<>();
+
+  private volatile Policy policy = Policy.ROUND_ROBIN;
+  private volatile long stickyWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STICKY_WINDOW);
+
+  private final AtomicLong primaryReads = new AtomicLong();
+
+  /**
+   * Crea il router e avvia il controllo periodico delle repliche
+   *
+   * @param dataSources le sorgenti delle connessioni alle repliche
+   * @param maxSize numero massimo di connessioni contemporanee per replica
+   * @param healthCheckInterval intervallo tra due controlli, in millisecondi
+   */
+  public ReplicaRouter(List<DataSource> dataSources, int maxSize, long healthCheckInterval) {
+    if (dataSources.isEmpty()) {
+      throw new IllegalArgumentException("No replicas");
+    }
+    if (healthCheckInterval <= 0) {
+      throw new IllegalArgumentException("Invalid health check interval");
+    }
+
+    List<Replica> list = new ArrayList<>(dataSources.size());
+    for (DataSource ds : dataSources) {
+      list.add(new Replica(new ConnectionPool(ds, maxSize)));
+    }
+    replicas = Collections.unmodifiableList(list);
+
+    healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "unitirocinio-replica-check");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    healthChecker.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkHealth();
+      }
+    }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Crea il router con l'intervallo di controllo predefinito
+   *
+   * @param dataSources le sorgenti delle connessioni alle repliche
+   * @param maxSize numero massimo di connessioni contemporanee per replica
+   */
+  public ReplicaRouter(List<DataSource> dataSources, int maxSize) {
+    this(dataSources, maxSize, DEFAULT_HEALTH_CHECK_INTERVAL);
+  }
+
+  /**
+   * Sceglie il pool da cui leggere per una sessione
+   *
+   * @param session la sessione che legge
+   * @return il pool di una replica disponibile, o null se la lettura va fatta sul primario
+   */
+  ConnectionPool choose(Object session) {
+    if (isSticky(session)) {
+      primaryReads.incrementAndGet();
+      return null;
+    }
+
+    int n = replicas.size();
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+    Replica best = null;
+    for (int i = 0; i < n; i++) {
+      Replica r = replicas.get((start + i) % n);
+      if (!r.healthy) {
+        continue;
+      }
+      if (policy == Policy.ROUND_ROBIN) {
+        best = r;
+        break;
+      }
+      if (best == null || r.load() < best.load()) {
+        best = r;
+      }
+    }
+
+    if (best == null) {
+      primaryReads.incrementAndGet();
+      return null;
+    }
+    best.reads.incrementAndGet();
+    return best.pool;
+  }
+
+  /**
+   * Esclude la replica di un pool dopo un errore di connessione, fino al
+   * prossimo controllo riuscito
+   *
+   * @param pool il pool della replica
+   */
+  void failed(ConnectionPool pool) {
+    for (Replica r : replicas) {
+      if (r.pool == pool) {
+        r.healthy = false;
+        r.failures.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Registra una scrittura della sessione: per la durata dell'intervallo le
+   * sue letture vanno al primario
+   *
+   * @param session la sessione che ha scritto
+   */
+  void wrote(Object session) {
+    if (stickyWindowNanos == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    lastWrite.put(session, now);
+    if (lastWrite.size() > MAX_SESSIONS) {
+      Iterator<Map.Entry<Object, Long>> it = lastWrite.entrySet().iterator();
+      while (it.hasNext()) {
+        if (now - it.next().getValue() >= stickyWindowNanos) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private boolean isSticky(Object session) {
+    Long t = lastWrite.get(session);
+    if (t == null) {
+      return false;
+    }
+    if (System.nanoTime() - t < stickyWindowNanos) {
+      return true;
+    }
+    lastWrite.remove(session, t);
+    return false;
+  }
+
+  /**
+   * Controlla subito tutte le repliche, aprendo una connessione nuova per
+   * ciascuna
+   */
+  public void checkHealth() {
+    for (Replica r : replicas) {
+      boolean ok;
+      try (Connection c = r.pool.getDataSource().getConnection()) {
+        ok = c.isValid(2);
+      }
+      catch(SQLException | RuntimeException e) {
+        ok = false;
+      }
+      if (!ok && r.healthy) {
+        r.failures.incrementAndGet();
+      }
+      r.healthy = ok;
+    }
+  }
+
+  /**
+   * Ferma i controlli e chiude i pool delle repliche
+   */
+  public void close() {
+    healthChecker.shutdownNow();
+    for (Replica r : replicas) {
+      r.pool.close();
+    }
+  }
+
+  /**
+   * Imposta il criterio di scelta della replica
+   *
+   * @param policy il criterio
+   */
+  public void setPolicy(Policy policy) {
+    if (policy == null) {
+      throw new NullPointerException();
+    }
+    this.policy = policy;
+  }
+
+  /**
+   * Ritorna il criterio di scelta della replica
+   *
+   * @return il criterio
+   */
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Imposta per quanto tempo dopo una scrittura le letture della stessa
+   * sessione vanno al primario
+   *
+   * @param millis l'intervallo in millisecondi, 0 per leggere sempre dalle repliche
+   */
+  public void setStickyWindow(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("Invalid sticky window");
+    }
+    stickyWindowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    if (millis == 0) {
+      lastWrite.clear();
+    }
+  }
+
+  /**
+   * Ritorna per quanto tempo dopo una scrittura si legge dal primario
+   *
+   * @return l'intervallo in millisecondi
+   */
+  public long getStickyWindow() {
+    return TimeUnit.NANOSECONDS.toMillis(stickyWindowNanos);
+  }
+
+  /**
+   * Ritorna il numero di repliche
+   *
+   * @return il numero di repliche
+   */
+  public int getReplicaCount() {
+    return replicas.size();
+  }
+
+  /**
+   * Ritorna il numero di repliche considerate raggiungibili
+   *
+   * @return il numero di repliche disponibili
+   */
+  public int getHealthyCount() {
+    int n = 0;
+    for (Replica r : replicas) {
+      if (r.healthy) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Indica se una replica è considerata raggiungibile
+   *
+   * @param i l'indice della replica, nell'ordine di creazione
+   * @return true se la replica riceve letture
+   */
+  public boolean isHealthy(int i) {
+    return replicas.get(i).healthy;
+  }
+
+  /**
+   * Ritorna il numero di letture assegnate a una replica
+   *
+   * @param i l'indice della replica, nell'ordine di creazione
+   * @return il numero di letture
+   */
+  public long getReads(int i) {
+    return replicas.get(i).reads.get();
+  }
+
+  /**
+   * Ritorna il numero di volte in cui una replica è stata esclusa
+   *
+   * @param i l'indice della replica, nell'ordine di creazione
+   * @return il numero di esclusioni
+   */
+  public long getFailures(int i) {
+    return replicas.get(i).failures.get();
+  }
+
+  /**
+   * Ritorna il pool di una replica, da cui leggere le statistiche
+   *
+   * @param i l'indice della replica, nell'ordine di creazione
+   * @return il pool
+   */
+  public ConnectionPool getPool(int i) {
+    return replicas.get(i).pool;
+  }
+
+  /**
+   * Ritorna il numero di letture mandate al primario, per la finestra dopo
+   * una scrittura o perché nessuna replica era disponibile
+   *
+   * @return il numero di letture sul primario
+   */
+  public long getPrimaryReads() {
+    return primaryReads.get();
+  }
+
+  /**
+   * Una replica con il suo stato
+   */
+  private static final class Replica {
+
+    final ConnectionPool pool;
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    volatile boolean healthy = true;
+
+    Replica(ConnectionPool pool) {
+      this.pool = pool;
+    }
+
+    int load() {
+      return pool.getActiveCount() + pool.getWaitingCount();
+    }
+  }
+}
@@ -0,0 +1,455 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Indice in memoria per la ricerca degli utenti per nome, cognome e login e,
+ * per le aziende, per nome e cognome del rappresentante legale e città della
+ * sede legale.
+ *
+ * I valori sono normalizzati come in AvailabilityIndex e divisi in parole.
+ * Ogni parola della ricerca trova le parole dell'indice che iniziano con essa
+ * e, se lunga almeno MIN_FUZZY_LENGTH caratteri, anche quelle che iniziano
+ * con una parola distante uno o due errori di battitura, cercate tramite un
+ * indice dei trigrammi. Sono restituiti i migliori risultati che corrispondono
+ * a tutte le parole della ricerca.
+ *
+ * Le letture non usano lock; le modifiche sono serializzate.
+ *
+ * @author Luca Gambetta
+ */
+public class SearchIndex {
+
+  /**
+   * Lunghezza minima di una parola della ricerca per accettare errori
+   */
+  public static final int MIN_FUZZY_LENGTH = 3;
+
+  /**
+   * Numero massimo di parole dell'indice esaminate per ogni parola della
+   * ricerca, per limitare il costo dei prefissi molto corti
+   */
+  static final int MAX_EXPANSIONS = 512;
+
+  // Punteggi di una parola della ricerca
+  private static final double SCORE_EXACT = 3;
+  private static final double SCORE_PREFIX = 2;
+  private static final double SCORE_FUZZY = 1;
+
+  /**
+   * Utenti indicizzati per ID
+   */
+  private final ConcurrentHashMap<Long, Document> documents = new ConcurrentHashMap<>();
+
+  /**
+   * ID degli utenti per parola, in ordine per la ricerca dei prefissi
+   */
+  private final ConcurrentSkipListMap<String, Set<Long>> postings = new ConcurrentSkipListMap<>();
+
+  /**
+   * Parole dell'indice per trigramma, per la ricerca con errori
+   */
+  private final ConcurrentHashMap<String, Set<String>> trigrams = new ConcurrentHashMap<>();
+
+  /**
+   * Aggiunge o aggiorna un utente. Se l'utente non ha i dati del sottotipo
+   * caricati vengono mantenuti quelli già nell'indice.
+   *
+   * @param user l'utente, con ID impostato
+   */
+  public void add(User user) {
+    if (user == null || user.getId() == null) {
+      return;
+    }
+
+    Document old = documents.get(user.getId());
+    String identificativo = null;
+    String[] extra = null;
+    if (user.isHydrated()) {
+      UserMapper mapper = UserMappers.of(user);
+      identificativo = mapper != null ? mapper.identifierOf(user) : null;
+      if (user instanceof Azienda) {
+        Azienda a = (Azienda) user;
+        extra = new String[] {a.nomeRappresentanteLegale, a.cognomeRappresentanteLegale, a.cittaSedeLegale};
+      }
+    } else if (old != null) {
+      identificativo = old.summary.getIdentificativo();
+      extra = old.extra;
+    }
+
+    TipoUtente tipo = TipoUtente.of(user);
+    put(new UserSummary(user.getId(), user.getLogin(), user.getNome(), user.getCognome(), tipo, identificativo), extra, true);
+  }
+
+  /**
+   * Aggiunge un utente letto dal database, se non è già stato aggiunto da un
+   * salvataggio più recente
+   *
+   * @param summary il riepilogo dell'utente
+   * @param extra gli altri valori da indicizzare
+   */
+  void load(UserSummary summary, String... extra) {
+    put(summary, extra, false);
+  }
+
+  /**
+   * Rimuove un utente
+   *
+   * @param id l'ID dell'utente
+   */
+  public synchronized void remove(long id) {
+    Document old = documents.remove(id);
+    if (old != null) {
+      unlink(old, Collections.emptySet());
+    }
+  }
+
+  private synchronized void put(UserSummary summary, String[] extra, boolean replace) {
+    if (!replace && documents.containsKey(summary.getId())) {
+      return;
+    }
+
+    Set<String> words = new LinkedHashSet<>();
+    tokenize(summary.getLogin(), words);
+    tokenize(summary.getNome(), words);
+    tokenize(summary.getCognome(), words);
+    if (extra != null) {
+      for (String v : extra) {
+        tokenize(v, words);
+      }
+    }
+
+    Document doc = new Document(summary, extra, words.toArray(new String[0]));
+    Document old = documents.put(summary.getId(), doc);
+    for (String w : doc.words) {
+      postings.computeIfAbsent(w, k -> {
+        for (String g : trigramsOf(k)) {
+          trigrams.computeIfAbsent(g, x -> ConcurrentHashMap.newKeySet()).add(k);
+        }
+        return ConcurrentHashMap.newKeySet();
+      }).add(summary.getId());
+    }
+    if (old != null) {
+      unlink(old, words);
+    }
+  }
+
+  /**
+   * Toglie un utente dalle parole che non ha più, eliminando quelle rimaste
+   * senza utenti
+   */
+  private void unlink(Document doc, Set<String> keep) {
+    for (String w : doc.words) {
+      if (keep.contains(w)) {
+        continue;
+      }
+      Set<Long> ids = postings.get(w);
+      if (ids == null) {
+        continue;
+      }
+      ids.remove(doc.summary.getId());
+      if (ids.isEmpty()) {
+        postings.remove(w);
+        for (String g : trigramsOf(w)) {
+          Set<String> ws = trigrams.get(g);
+          if (ws != null) {
+            ws.remove(w);
+            if (ws.isEmpty()) {
+              trigrams.remove(g, ws);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Cerca gli utenti che corrispondono a tutte le parole di una ricerca.
+   *
+   * Per ogni parola conta la migliore corrispondenza: parola uguale, parola
+   * che inizia con quella cercata, parola che ne differisce per qualche
+   * errore. A parità di punteggio gli utenti sono ordinati per login.
+   *
+   * @param query le parole da cercare
+   * @param tipo il tipo di utente, null per tutti
+   * @param limit il numero massimo di risultati
+   * @return i riepiloghi degli utenti, dal più pertinente
+   */
+  public List<UserSummary> search(String query, TipoUtente tipo, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Invalid limit");
+    }
+
+    Set<String> terms = new LinkedHashSet<>();
+    tokenize(query, terms);
+    if (terms.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    Map<Long, Double> scores = null;
+    for (String term : terms) {
+      Map<Long, Double> termScores = match(term);
+      if (scores == null) {
+        scores = termScores;
+      } else {
+        Map<Long, Double> both = new HashMap<>();
+        for (Map.Entry<Long, Double> e : scores.entrySet()) {
+          Double s = termScores.get(e.getKey());
+          if (s != null) {
+            both.put(e.getKey(), e.getValue() + s);
+          }
+        }
+        scores = both;
+      }
+      if (scores.isEmpty()) {
+        return new ArrayList<>();
+      }
+    }
+
+    // I migliori limit risultati, con in testa il peggiore
+    PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1);
+    for (Map.Entry<Long, Double> e : scores.entrySet()) {
+      Document doc = documents.get(e.getKey());
+      if (doc == null || (tipo != null && doc.summary.getTipo() != tipo)) {
+        continue;
+      }
+      best.add(new Hit(doc.summary, e.getValue()));
+      if (best.size() > limit) {
+        best.poll();
+      }
+    }
+
+    UserSummary[] result = new UserSummary[best.size()];
+    for (int i = result.length - 1; i >= 0; i--) {
+      result[i] = best.poll().summary;
+    }
+    List<UserSummary> list = new ArrayList<>(result.length);
+    Collections.addAll(list, result);
+    return list;
+  }
+
+  /**
+   * Calcola il punteggio di una parola della ricerca per ogni utente che la
+   * contiene
+   */
+  private Map<Long, Double> match(String term) {
+    Map<Long, Double> scores = new HashMap<>();
+
+    int expanded = 0;
+    for (Map.Entry<String, Set<Long>> e : postings.subMap(term, true, term + Character.MAX_VALUE, false).entrySet()) {
+      // Le parole più vicine alla lunghezza di quella cercata valgono di più
+      double score = e.getKey().length() == term.length() ? SCORE_EXACT
+              : SCORE_PREFIX + (double) term.length() / e.getKey().length() / 2;
+      score(scores, e.getValue(), score);
+      if (++expanded >= MAX_EXPANSIONS) {
+        break;
+      }
+    }
+
+    if (term.length() < MIN_FUZZY_LENGTH) {
+      return scores;
+    }
+
+    int maxEdits = term.length() >= 7 ? 2 : 1;
+    List<String> grams = trigramsOf(term);
+    Map<String, Integer> shared = new HashMap<>();
+    for (String g : grams) {
+      Set<String> words = trigrams.get(g);
+      if (words != null) {
+        for (String w : words) {
+          shared.merge(w, 1, Integer::sum);
+        }
+      }
+    }
+
+    // Ogni errore cambia al più tre trigrammi del prefisso
+    int minShared = Math.max(1, grams.size() - 3 * maxEdits);
+    expanded = 0;
+    for (Map.Entry<String, Integer> e : shared.entrySet()) {
+      String w = e.getKey();
+      if (e.getValue() < minShared || w.startsWith(term)) {
+        continue;
+      }
+      int d = prefixDistance(term, w, maxEdits);
+      if (d <= maxEdits) {
+        Set<Long> ids = postings.get(w);
+        if (ids != null) {
+          score(scores, ids, SCORE_FUZZY - (double) d / (maxEdits + 1) / 2);
+        }
+        if (++expanded >= MAX_EXPANSIONS) {
+          break;
+        }
+      }
+    }
+    return scores;
+  }
+
+  private static void score(Map<Long, Double> scores, Set<Long> ids, double score) {
+    for (Long id : ids) {
+      scores.merge(id, score, Math::max);
+    }
+  }
+
+  /**
+   * Distanza di Levenshtein fra una parola e il più vicino prefisso di
+   * un'altra
+   *
+   * @return la distanza, o maxEdits + 1 se la supera
+   */
+  static int prefixDistance(String term, String word, int maxEdits) {
+    int n = term.length();
+    int m = Math.min(word.length(), n + maxEdits);
+    int[] prev = new int[m + 1];
+    int[] cur = new int[m + 1];
+    for (int j = 0; j <= m; j++) {
+      prev[j] = j;
+    }
+    for (int i = 1; i <= n; i++) {
+      cur[0] = i;
+      int rowMin = cur[0];
+      for (int j = 1; j <= m; j++) {
+        int cost = term.charAt(i - 1) == word.charAt(j - 1) ? 0 : 1;
+        cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+        rowMin = Math.min(rowMin, cur[j]);
+      }
+      if (rowMin > maxEdits) {
+        return maxEdits + 1;
+      }
+      int[] t = prev;
+      prev = cur;
+      cur = t;
+    }
+
+    int best = maxEdits + 1;
+    for (int j = Math.max(0, n - maxEdits); j <= m; j++) {
+      best = Math.min(best, prev[j]);
+    }
+    return best;
+  }
+
+  /**
+   * Trigrammi di una parola, con il primo ancorato all'inizio
+   */
+  private static List<String> trigramsOf(String word) {
+    String w = "^" + word;
+    List<String> grams = new ArrayList<>(Math.max(1, w.length() - 2));
+    if (w.length() < 3) {
+      grams.add(w);
+      return grams;
+    }
+    for (int i = 0; i + 3 <= w.length(); i++) {
+      grams.add(w.substring(i, i + 3));
+    }
+    return grams;
+  }
+
+  /**
+   * Normalizza un valore e lo divide in parole di lettere e cifre
+   */
+  static void tokenize(String value, Set<String> words) {
+    if (value == null) {
+      return;
+    }
+    String v = AvailabilityIndex.normalize(value);
+    int start = -1;
+    for (int i = 0; i <= v.length(); i++) {
+      boolean word = i < v.length() && Character.isLetterOrDigit(v.charAt(i));
+      if (word && start < 0) {
+        start = i;
+      } else if (!word && start >= 0) {
+        words.add(v.substring(start, i));
+        start = -1;
+      }
+    }
+  }
+
+  /**
+   * Ritorna il numero di utenti indicizzati
+   *
+   * @return il numero di utenti
+   */
+  public int size() {
+    return documents.size();
+  }
+
+  /**
+   * Ritorna il numero di parole distinte indicizzate
+   *
+   * @return il numero di parole
+   */
+  public int getWordCount() {
+    return postings.size();
+  }
+
+  /**
+   * Un utente indicizzato con le sue parole
+   */
+  private static final class Document {
+
+    final UserSummary summary;
+    final String[] extra;
+    final String[] words;
+
+    Document(UserSummary summary, String[] extra, String[] words) {
+      this.summary = summary;
+      this.extra = extra;
+      this.words = words;
+    }
+  }
+
+  /**
+   * Un risultato con il suo punteggio, ordinato dal peggiore
+   */
+  private static final class Hit implements Comparable<Hit> {
+
+    final UserSummary summary;
+    final double score;
+
+    Hit(UserSummary summary, double score) {
+      this.summary = summary;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(Hit o) {
+      int c = Double.compare(score, o.score);
+      if (c != 0) {
+        return c;
+      }
+      // A parità di punteggio è peggiore la login che viene dopo
+      return o.summary.getLogin().compareTo(summary.getLogin());
+    }
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Traccia gli statement SQL eseguiti da UserManager.
+ *
+ * Gli statement vengono avvolti in un proxy che registra i parametri
+ * impostati, il tempo di esecuzione e le righe lette o modificate. Ogni
+ * statement viene scritto nel log unitirocinio.model.SqlTracer a livello
+ * FINE; quelli che superano la soglia vanno a livello WARNING, ma solo una
+ * frazione casuale di essi, così che il log resti economico anche con
+ * molte richieste al secondo. Il metodo di UserManager che ha eseguito lo
+ * statement viene ricavato dallo stack solo per i messaggi effettivamente
+ * scritti.
+ *
+ * I parametri assegnati a colonne password e i valori che hanno il formato
+ * degli hash di PasswordHasher non vengono mai scritti.
+ *
+ * @author Luca Gambetta
+ */
+public class SqlTracer {
+
+  /**
+   * Il log degli statement
+   */
+  public static final Logger LOG = Logger.getLogger(SqlTracer.class.getName());
+
+  /**
+   * Soglia predefinita per le query lente, in millisecondi
+   */
+  public static final long DEFAULT_SLOW_THRESHOLD = 100;
+
+  private static final String REDACTED = "<redacted>";
+
+  private static final Pattern INSERT = Pattern.compile(
+          "^\\s*INSERT\\s+INTO\\s+\\S+\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\((.*)\\)\\s*$",
+          Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+  private static final Pattern COMPARISON = Pattern.compile(
+          "([A-Za-z_][A-Za-z0-9_.]*)\\s*(=|<>|!=|<=|>=|<|>|LIKE)\\s*$", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * Soglia per le query lente, in nanosecondi
+   */
+  private volatile long slowThresholdNanos;
+
+  /**
+   * Frazione delle query lente scritte nel log
+   */
+  private volatile double sampleRate;
+
+  /**
+   * Segnaposto da oscurare, per testo SQL
+   */
+  private final ConcurrentHashMap<String, BitSet> redactions = new ConcurrentHashMap<>();
+
+  private final AtomicLong statements = new AtomicLong();
+  private final AtomicLong slowStatements = new AtomicLong();
+  private final AtomicLong slowLogged = new AtomicLong();
+
+  /**
+   * Crea un tracer
+   *
+   * @param slowThresholdMillis soglia per le query lente, in millisecondi
+   * @param sampleRate frazione delle query lente da scrivere nel log, tra 0 e 1
+   */
+  public SqlTracer(long slowThresholdMillis, double sampleRate) {
+    setSlowThreshold(slowThresholdMillis);
+    setSampleRate(sampleRate);
+  }
+
+  /**
+   * Crea un tracer con la soglia predefinita che scrive tutte le query lente
+   */
+  public SqlTracer() {
+    this(DEFAULT_SLOW_THRESHOLD, 1.0);
+  }
+
+  /**
+   * Avvolge uno statement per tracciarne l'esecuzione
+   *
+   * @param st lo statement
+   * @param sql il testo SQL dello statement
+   * @return lo statement tracciato
+   */
+  public PreparedStatement wrap(PreparedStatement st, String sql) {
+    return (PreparedStatement) Proxy.newProxyInstance(SqlTracer.class.getClassLoader(),
+            new Class<?>[] { PreparedStatement.class }, new StatementHandler(st, sql));
+  }
+
+  /**
+   * Registra uno statement concluso
+   */
+  private void finished(StatementHandler h, long nanos, long rows) {
+    statements.incrementAndGet();
+
+    Level level = null;
+    if (nanos >= slowThresholdNanos) {
+      slowStatements.incrementAndGet();
+      double rate = sampleRate;
+      if (rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate) {
+        slowLogged.incrementAndGet();
+        level = Level.WARNING;
+      }
+    }
+    if (level == null && LOG.isLoggable(Level.FINE)) {
+      level = Level.FINE;
+    }
+
+    if (level != null && LOG.isLoggable(level)) {
+      LOG.log(level, String.format(Locale.ROOT, "%s%.3f ms, %s, %s: %s %s",
+              level == Level.WARNING ? "Slow SQL " : "SQL ",
+              nanos / 1e6, rows < 0 ? "? rows" : rows + (rows == 1 ? " row" : " rows"),
+              caller(), h.sql.trim(), h.describeParameters()));
+    }
+  }
+
+  /**
+   * Ricostruisce la catena dei metodi di UserManager in esecuzione, dal più esterno
+   */
+  private static String caller() {
+    List<String> methods = StackWalker.getInstance().walk(frames -> frames
+            .filter(f -> f.getClassName().equals(UserManager.class.getName()))
+            .map(StackWalker.StackFrame::getMethodName)
+            .filter(m -> !m.startsWith("lambda$"))
+            .collect(Collectors.toList()));
+    if (methods.isEmpty()) {
+      return "?";
+    }
+
+    List<String> chain = new ArrayList<>();
+    for (int i = methods.size() - 1; i >= 0; i--) {
+      String m = methods.get(i);
+      if (chain.isEmpty() || !chain.get(chain.size() - 1).equals(m)) {
+        chain.add(m);
+      }
+    }
+    return "UserManager." + String.join(" > ", chain);
+  }
+
+  /**
+   * Ritorna le posizioni (da 1) dei segnaposto assegnati a colonne password
+   *
+   * @param sql il testo SQL
+   * @return le posizioni da oscurare
+   */
+  static BitSet passwordPlaceholders(String sql) {
+    BitSet redact = new BitSet();
+
+    Matcher insert = INSERT.matcher(sql);
+    if (insert.matches()) {
+      String[] columns = insert.group(1).split(",");
+      List<String> values = splitTopLevel(insert.group(2));
+      int placeholder = 0;
+      for (int i = 0; i < values.size(); i++) {
+        int n = count(values.get(i));
+        if (i < columns.length && isPassword(columns[i])) {
+          redact.set(placeholder + 1, placeholder + n + 1);
+        }
+        placeholder += n;
+      }
+      return redact;
+    }
+
+    int placeholder = 0;
+    boolean quoted = false;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (c == '?' && !quoted) {
+        placeholder++;
+        Matcher m = COMPARISON.matcher(sql.substring(Math.max(0, i - 80), i));
+        if (m.find() && isPassword(m.group(1))) {
+          redact.set(placeholder);
+        }
+      }
+    }
+    return redact;
+  }
+
+  private static boolean isPassword(String column) {
+    String c = column.trim().toLowerCase(Locale.ROOT);
+    return c.equals("password") || c.endsWith(".password");
+  }
+
+  private static int count(String s) {
+    int n = 0;
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) == '?') {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Divide un elenco di espressioni sulle virgole che non sono tra parentesi
+   */
+  private static List<String> splitTopLevel(String s) {
+    List<String> parts = new ArrayList<>();
+    int depth = 0;
+    int from = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == ',' && depth == 0) {
+        parts.add(s.substring(from, i));
+        from = i + 1;
+      }
+    }
+    parts.add(s.substring(from));
+    return parts;
+  }
+
+  /**
+   * Imposta la soglia per le query lente
+   *
+   * @param millis la soglia in millisecondi
+   */
+  public void setSlowThreshold(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("Invalid threshold");
+    }
+    this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Ritorna la soglia per le query lente
+   *
+   * @return la soglia in millisecondi
+   */
+  public long getSlowThreshold() {
+    return TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos);
+  }
+
+  /**
+   * Imposta la frazione delle query lente da scrivere nel log
+   *
+   * @param sampleRate la frazione, tra 0 (nessuna) e 1 (tutte)
+   */
+  public void setSampleRate(double sampleRate) {
+    if (sampleRate < 0.0 || sampleRate > 1.0) {
+      throw new IllegalArgumentException("Invalid sample rate");
+    }
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Ritorna la frazione delle query lente scritte nel log
+   *
+   * @return la frazione, tra 0 e 1
+   */
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Ritorna il numero di statement tracciati
+   *
+   * @return il numero di statement
+   */
+  public long getStatementCount() {
+    return statements.get();
+  }
+
+  /**
+   * Ritorna il numero di statement oltre la soglia
+   *
+   * @return il numero di query lente
+   */
+  public long getSlowCount() {
+    return slowStatements.get();
+  }
+
+  /**
+   * Ritorna il numero di query lente scritte nel log
+   *
+   * @return il numero di query lente registrate
+   */
+  public long getSlowLoggedCount() {
+    return slowLogged.get();
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    }
+    catch(InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Proxy di un PreparedStatement
+   */
+  private final class StatementHandler implements InvocationHandler {
+
+    private final PreparedStatement target;
+    private final String sql;
+    private Object[] parameters = new Object[8];
+    private int batches;
+
+    StatementHandler(PreparedStatement target, String sql) {
+      this.target = target;
+      this.sql = sql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+
+      if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+        int index = (Integer) args[0];
+        if (index >= parameters.length) {
+          parameters = Arrays.copyOf(parameters, Math.max(index + 1, parameters.length * 2));
+        }
+        parameters[index] = name.equals("setNull") ? null : args[1];
+      } else if (name.equals("clearParameters")) {
+        Arrays.fill(parameters, null);
+      } else if (name.equals("addBatch") && args == null) {
+        batches++;
+      } else if (name.equals("clearBatch")) {
+        batches = 0;
+      }
+
+      if (!name.startsWith("execute")) {
+        return SqlTracer.invoke(target, method, args);
+      }
+
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = SqlTracer.invoke(target, method, args);
+      }
+      catch(Throwable t) {
+        if (name.equals("executeBatch")) {
+          batches = 0;
+        }
+        throw t;
+      }
+      long elapsed = System.nanoTime() - start;
+
+      if (result instanceof ResultSet) {
+        return Proxy.newProxyInstance(SqlTracer.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new ResultSetHandler(this, (ResultSet) result, elapsed));
+      }
+
+      long rows = -1;
+      if (result instanceof Integer || result instanceof Long) {
+        rows = ((Number) result).longValue();
+      } else if (result instanceof int[]) {
+        rows = 0;
+        for (int n : (int[]) result) {
+          rows += Math.max(0, n);
+        }
+      } else if (Boolean.FALSE.equals(result)) {
+        rows = target.getUpdateCount();
+      }
+      // Il numero di righe del batch serve ancora per il messaggio
+      finished(this, elapsed, rows);
+      if (result instanceof int[]) {
+        batches = 0;
+      }
+      return result;
+    }
+
+    /**
+     * Descrive i parametri impostati, oscurando le password
+     */
+    String describeParameters() {
+      BitSet redact = redactions.computeIfAbsent(sql, SqlTracer::passwordPlaceholders);
+      StringBuilder sb = new StringBuilder("[");
+      for (int i = 1; i < parameters.length; i++) {
+        Object p = parameters[i];
+        if (p == null && i > count(sql)) {
+          break;
+        }
+        if (sb.length() > 1) {
+          sb.append(", ");
+        }
+        sb.append(i).append('=');
+        if (redact.get(i) || (p instanceof String && ((String) p).startsWith(PasswordHasher.ALGORITHM + "$"))) {
+          sb.append(REDACTED);
+        } else if (p instanceof String) {
+          sb.append('\'').append(p).append('\'');
+        } else {
+          sb.append(p);
+        }
+      }
+      if (batches > 0) {
+        sb.append("] batch of ").append(batches);
+        return sb.toString();
+      }
+      return sb.append(']').toString();
+    }
+  }
+
+  /**
+   * Proxy di un ResultSet: conta le righe lette e registra lo statement alla chiusura
+   */
+  private final class ResultSetHandler implements InvocationHandler {
+
+    private final StatementHandler statement;
+    private final ResultSet target;
+    private final long elapsed;
+    private long rows;
+    private boolean reported;
+
+    ResultSetHandler(StatementHandler statement, ResultSet target, long elapsed) {
+      this.statement = statement;
+      this.target = target;
+      this.elapsed = elapsed;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      Object result = SqlTracer.invoke(target, method, args);
+      if (name.equals("next") && Boolean.TRUE.equals(result)) {
+        rows++;
+      } else if (name.equals("close") && !reported) {
+        reported = true;
+        finished(statement, elapsed, rows);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache LRU dei PreparedStatement di una singola connessione, indicizzata
+ * dal testo SQL.
+ *
+ * Gli statement restituiti restano di proprietà della cache: chi li usa deve
+ * chiudere i ResultSet ottenuti ma non lo statement, che viene chiuso quando
+ * esce dalla cache o quando la cache viene chiusa. Uno statement con un
+ * ResultSet ancora aperto non esce dalla cache.
+ *
+ * @author Luca Gambetta
+ */
+public class StatementCache {
+
+  /**
+   * Numero predefinito di statement tenuti in cache per connessione
+   */
+  public static final int DEFAULT_SIZE = 32;
+
+  /**
+   * Dimensione minima: gli statement che una singola operazione tiene aperti
+   * insieme (la query su utenti e quella del sottotipo), con margine
+   */
+  public static final int MIN_SIZE = 4;
+
+  /**
+   * La connessione a cui appartengono gli statement
+   */
+  private final Connection connection;
+
+  /**
+   * Contatori condivisi con le altre cache dello stesso gestore
+   */
+  private final Statistics statistics;
+
+  /**
+   * Numero massimo di statement tenuti aperti
+   */
+  private int maxSize;
+
+  /**
+   * Gli statement in ordine di utilizzo, dal meno recente
+   */
+  private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Crea una cache per una connessione
+   *
+   * @param connection la connessione
+   * @param maxSize numero massimo di statement, almeno MIN_SIZE
+   * @param statistics i contatori da aggiornare
+   */
+  public StatementCache(Connection connection, int maxSize, Statistics statistics) {
+    if (maxSize < MIN_SIZE) {
+      throw new IllegalArgumentException("Invalid cache size");
+    }
+
+    this.connection = connection;
+    this.maxSize = maxSize;
+    this.statistics = statistics;
+  }
+
+  /**
+   * Ritorna lo statement per il testo SQL, preparandolo solo se non è già in cache
+   *
+   * @param sql il testo SQL
+   * @return lo statement pronto per l'impostazione dei parametri
+   * @throws SQLException
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, Statement.NO_GENERATED_KEYS);
+  }
+
+  /**
+   * Ritorna lo statement per il testo SQL, preparandolo solo se non è già in cache
+   *
+   * @param sql il testo SQL
+   * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS o Statement.NO_GENERATED_KEYS
+   * @return lo statement pronto per l'impostazione dei parametri
+   * @throws SQLException
+   */
+  public synchronized PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+    String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "+" + sql : sql;
+
+    PreparedStatement st = statements.get(key);
+    if (st != null && !st.isClosed()) {
+      statistics.hits.incrementAndGet();
+      return st;
+    }
+
+    statistics.misses.incrementAndGet();
+    st = connection.prepareStatement(sql, autoGeneratedKeys);
+    statements.put(key, st);
+    evict();
+    return st;
+  }
+
+  /**
+   * Chiude tutti gli statement in cache
+   */
+  public synchronized void close() {
+    for (PreparedStatement st : statements.values()) {
+      closeQuietly(st);
+    }
+    statements.clear();
+  }
+
+  /**
+   * Ritorna il numero di statement in cache
+   *
+   * @return il numero di statement
+   */
+  public synchronized int size() {
+    return statements.size();
+  }
+
+  /**
+   * Imposta il numero massimo di statement, chiudendo quelli in eccesso
+   *
+   * @param maxSize numero massimo di statement, almeno MIN_SIZE
+   */
+  public synchronized void setMaxSize(int maxSize) {
+    if (maxSize < MIN_SIZE) {
+      throw new IllegalArgumentException("Invalid cache size");
+    }
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  /**
+   * Chiude gli statement usati meno di recente finché la cache non rientra
+   * nella dimensione, saltando quelli che hanno un ResultSet ancora aperto
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+    while (statements.size() > maxSize && it.hasNext()) {
+      PreparedStatement st = it.next().getValue();
+      if (hasOpenResultSet(st)) {
+        continue;
+      }
+      closeQuietly(st);
+      it.remove();
+      statistics.evictions.incrementAndGet();
+    }
+  }
+
+  private static boolean hasOpenResultSet(Statement st) {
+    try {
+      ResultSet res = st.getResultSet();
+      return res != null && !res.isClosed();
+    }
+    catch(SQLException e) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(Statement st) {
+    try {
+      st.close();
+    }
+    catch(SQLException e) {
+      // Niente da fare
+    }
+  }
+
+  /**
+   * Contatori di utilizzo delle cache degli statement
+   */
+  public static class Statistics {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Ritorna il numero di statement trovati in cache
+     *
+     * @return il numero di successi
+     */
+    public long getHits() {
+      return hits.get();
+    }
+
+    /**
+     * Ritorna il numero di statement che è stato necessario preparare
+     *
+     * @return il numero di fallimenti
+     */
+    public long getMisses() {
+      return misses.get();
+    }
+
+    /**
+     * Ritorna il numero di statement chiusi per far posto ad altri
+     *
+     * @return il numero di rimozioni
+     */
+    public long getEvictions() {
+      return evictions.get();
+    }
+  }
+}
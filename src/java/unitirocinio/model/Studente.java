@@ -23,17 +23,28 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella uno studente
  *
  * @author Luca Gambetta
  */
+@MappedUser(tipo = TipoUtente.STUDENTE, table = "studenti", alias = "s", key = "studente_id", identifier = "matricola")
 public class Studente extends User {
 
   /**
    * Matricola dello studente
    */
-  private String matricola;
+  @MappedColumn("matricola")
+  protected String matricola;
+
+  /**
+   * Crea uno studente vuoto, per la lettura dal database
+   */
+  Studente() {
+    super(null, null, null);
+  }
 
   /**
    * Crea una istanza di uno studente
@@ -54,6 +65,7 @@ public class Studente extends User {
    * @return la matricola dello studente
    */
   public String getMatricola() {
+    hydrate();
     return matricola;
   }
 
@@ -63,6 +75,10 @@ public class Studente extends User {
    * @param matricola la matricola dello studente
    */
   public void setMatricola(String matricola) {
+    hydrate();
+    if (!Objects.equals(this.matricola, matricola)) {
+      markDirty(UserColumn.MATRICOLA);
+    }
     this.matricola = matricola;
   }
 
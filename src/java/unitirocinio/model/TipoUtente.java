@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * I tipi di utente, con il valore usato nella colonna utenti.tipo_utente
+ *
+ * @author Luca Gambetta
+ */
+public enum TipoUtente {
+
+  STUDENTE("studente"),
+  OPERATORE("operatore"),
+  TUTOR_ACCADEMICO("tutor_accademico"),
+  TUTOR_AZIENDALE("tutor_aziendale"),
+  AZIENDA("azienda");
+
+  /**
+   * Valore della colonna tipo_utente
+   */
+  private final String value;
+
+  private TipoUtente(String value) {
+    this.value = value;
+  }
+
+  /**
+   * Ritorna il valore della colonna tipo_utente
+   *
+   * @return il valore per il database
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * Ritorna il tipo di un utente
+   *
+   * @param user l'utente
+   * @return il tipo o null se l'utente è null o di un tipo non salvabile
+   */
+  public static TipoUtente of(User user) {
+    UserMapper mapper = UserMappers.of(user);
+    return mapper != null ? mapper.tipo() : null;
+  }
+
+  /**
+   * Ritorna il tipo corrispondente a un valore della colonna tipo_utente
+   *
+   * @param value il valore letto dal database
+   * @return il tipo di utente
+   * @throws IllegalArgumentException se il valore non è valido
+   */
+  public static TipoUtente fromValue(String value) {
+    for (TipoUtente t : values()) {
+      if (t.value.equals(value)) {
+        return t;
+      }
+    }
+    throw new IllegalArgumentException("Invalid tipo_utente: " + value);
+  }
+}
@@ -23,18 +23,29 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella un tutor accademico
  *
  * @author Luca Gambetta
  */
+@MappedUser(tipo = TipoUtente.TUTOR_ACCADEMICO, table = "tutor_accademici", alias = "ta", key = "tutor_id", identifier = "codice_fiscale")
 public class TutorAccademico extends User {
 
   /**
    * Il codice fiscale del tutor accademico
    */
+  @MappedColumn("codice_fiscale")
   protected String codiceFiscale;
 
+  /**
+   * Crea un tutor accademico vuoto, per la lettura dal database
+   */
+  TutorAccademico() {
+    super(null, null, null);
+  }
+
   /**
    * Istanzia un nuovo tutor accademico
    * 
@@ -54,6 +65,7 @@ public class TutorAccademico extends User {
    * @return il codice fiscale
    */
   public String getCodiceFiscale() {
+    hydrate();
     return codiceFiscale;
   }
 
@@ -63,6 +75,10 @@ public class TutorAccademico extends User {
    * @param codiceFiscale il codice fiscale
    */
   public void setCodiceFiscale(String codiceFiscale) {
+    hydrate();
+    if (!Objects.equals(this.codiceFiscale, codiceFiscale)) {
+      markDirty(UserColumn.TUTOR_ACCADEMICO_CODICE_FISCALE);
+    }
     this.codiceFiscale = codiceFiscale;
   }
 
@@ -23,28 +23,41 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella un Tutor aziendale.
  * 
  * @author Luca Gambetta
  */
+@MappedUser(tipo = TipoUtente.TUTOR_AZIENDALE, table = "tutor_aziendali", alias = "tz", key = "tutor_id", identifier = "codice_fiscale")
 public class TutorAziendale extends User {
 
   /**
    * ID dell'azienda a cui afferisce il tutor aziendale
    */
+  @MappedColumn("azienda_id")
   protected Long idAzienda;
 
   /**
    * Codice fiscale del tutor aziendale
    */
+  @MappedColumn("codice_fiscale")
   protected String codiceFiscale;
 
   /**
    * Numero di telefono del tutor aziendale
    */
+  @MappedColumn("telefono")
   protected String telefono;
 
+  /**
+   * Crea un tutor aziendale vuoto, per la lettura dal database
+   */
+  TutorAziendale() {
+    super(null, null, null);
+  }
+
   /**
    * Crea una nuova istanza di un tutor aziendale.
    * 
@@ -66,6 +79,7 @@ public class TutorAziendale extends User {
    * @return il codice fiscale del tutor aziendale
    */
   public String getCodiceFiscale() {
+    hydrate();
     return codiceFiscale;
   }
 
@@ -75,6 +89,10 @@ public class TutorAziendale extends User {
    * @param codiceFiscale il codice fiscale del tutor aziendale
    */
   public void setCodiceFiscale(String codiceFiscale) {
+    hydrate();
+    if (!Objects.equals(this.codiceFiscale, codiceFiscale)) {
+      markDirty(UserColumn.TUTOR_AZIENDALE_CODICE_FISCALE);
+    }
     this.codiceFiscale = codiceFiscale;
   }
 
@@ -84,6 +102,7 @@ public class TutorAziendale extends User {
    * @return l'ID dell'azienda
    */
   public Long getIdAzienda() {
+    hydrate();
     return idAzienda;
   }
 
@@ -93,6 +112,10 @@ public class TutorAziendale extends User {
    * @param idAzienda l'ID dell'azienda
    */
   public void setIdAzienda(Long idAzienda) {
+    hydrate();
+    if (!Objects.equals(this.idAzienda, idAzienda)) {
+      markDirty(UserColumn.TUTOR_AZIENDALE_AZIENDA_ID);
+    }
     this.idAzienda = idAzienda;
   }
 
@@ -102,6 +125,7 @@ public class TutorAziendale extends User {
    * @return il numero di telefono
    */
   public String getTelefono() {
+    hydrate();
     return telefono;
   }
 
@@ -111,6 +135,10 @@ public class TutorAziendale extends User {
    * @param telefono il numero di telefono
    */
   public void setTelefono(String telefono) {
+    hydrate();
+    if (!Objects.equals(this.telefono, telefono)) {
+      markDirty(UserColumn.TUTOR_AZIENDALE_TELEFONO);
+    }
     this.telefono = telefono;
   }
 
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Le colonne con vincolo UNIQUE che identificano un utente, di cui si può
+ * verificare la disponibilità prima della registrazione.
+ *
+ * @author Luca Gambetta
+ */
+public enum UniqueKey {
+
+  LOGIN("utenti", "login"),
+  MATRICOLA("studenti", "matricola"),
+  CODICE_FISCALE_OPERATORE("operatori_ufficio_tirocinio", "codice_fiscale"),
+  CODICE_FISCALE_TUTOR_ACCADEMICO("tutor_accademici", "codice_fiscale"),
+  CODICE_FISCALE_TUTOR_AZIENDALE("tutor_aziendali", "codice_fiscale"),
+  PARTITA_IVA("aziende", "partita_iva");
+
+  private final String table;
+  private final String column;
+
+  private UniqueKey(String table, String column) {
+    this.table = table;
+    this.column = column;
+  }
+
+  /**
+   * Ritorna la tabella che contiene la colonna
+   *
+   * @return il nome della tabella
+   */
+  public String getTable() {
+    return table;
+  }
+
+  /**
+   * Ritorna il nome della colonna
+   *
+   * @return il nome della colonna
+   */
+  public String getColumn() {
+    return column;
+  }
+
+  /**
+   * Ritorna il valore della colonna per un utente
+   *
+   * @param user l'utente
+   * @return il valore o null se l'utente non ha questa colonna
+   */
+  public String valueOf(User user) {
+    switch(this) {
+      case LOGIN:
+        return user.getLogin();
+      case MATRICOLA:
+        return user instanceof Studente ? ((Studente) user).getMatricola() : null;
+      case CODICE_FISCALE_OPERATORE:
+        return user instanceof OperatoreUfficioTirocinio ? ((OperatoreUfficioTirocinio) user).getCodiceFiscale() : null;
+      case CODICE_FISCALE_TUTOR_ACCADEMICO:
+        return user instanceof TutorAccademico ? ((TutorAccademico) user).getCodiceFiscale() : null;
+      case CODICE_FISCALE_TUTOR_AZIENDALE:
+        return user instanceof TutorAziendale ? ((TutorAziendale) user).getCodiceFiscale() : null;
+      case PARTITA_IVA:
+        return user instanceof Azienda ? ((Azienda) user).getPartitaIva() : null;
+      default:
+        return null;
+    }
+  }
+}
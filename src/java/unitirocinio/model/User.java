@@ -23,6 +23,8 @@
  */
 package unitirocinio.model;
 
+import java.util.Objects;
+
 /**
  * Modella un utente generico del sistema.
  *
@@ -65,6 +67,23 @@ public abstract class User implements Cloneable {
    */
   protected String password;
 
+  /**
+   * Versione della riga letta o scritta per ultima, per il controllo delle
+   * modifiche concorrenti
+   */
+  protected long version;
+
+  /**
+   * Colonne modificate dall'ultima lettura o scrittura: un bit per UserColumn
+   */
+  private long dirtyColumns;
+
+  /**
+   * Il gestore da cui leggere le colonne del sottotipo di un utente letto
+   * con FetchMode.HEADER_ONLY, null quando sono già state lette
+   */
+  private volatile UserManager detailsSource;
+
   /**
    * Crea un nuovo utente del tipo specificato
    *
@@ -103,6 +122,9 @@ public abstract class User implements Cloneable {
    * @param nome il nome dell'utente
    */
   public void setNome(String nome) {
+    if (!Objects.equals(this.nome, nome)) {
+      markDirty(UserColumn.NOME);
+    }
     this.nome = nome;
   }
 
@@ -121,6 +143,9 @@ public abstract class User implements Cloneable {
    * @param cognome il cognome dell'utente
    */
   public void setCognome(String cognome) {
+    if (!Objects.equals(this.cognome, cognome)) {
+      markDirty(UserColumn.COGNOME);
+    }
     this.cognome = cognome;
   }
 
@@ -139,6 +164,9 @@ public abstract class User implements Cloneable {
    * @param login la stringa con la login
    */
   public final void setLogin(String login) {
+    if (!Objects.equals(this.login, login)) {
+      markDirty(UserColumn.LOGIN);
+    }
     this.login = login;
   }
 
@@ -157,6 +185,9 @@ public abstract class User implements Cloneable {
    * @param email l'email dell'utente
    */
   public void setEmail(String email) {
+    if (!Objects.equals(this.email, email)) {
+      markDirty(UserColumn.EMAIL);
+    }
     this.email = email;
   }
 
@@ -186,6 +217,9 @@ public abstract class User implements Cloneable {
    *
    */
   public void setPassword(String password) {
+    if (!Objects.equals(this.password, password)) {
+      markDirty(UserColumn.PASSWORD);
+    }
     this.password = password;
   }
 
@@ -204,9 +238,106 @@ public abstract class User implements Cloneable {
    * @param dataIscrizione il timestamp della data di iscrizione dell'utente
    */
   public void setDataIscrizione(long dataIscrizione) {
+    if (this.dataIscrizione != dataIscrizione) {
+      markDirty(UserColumn.DATA_ISCRIZIONE);
+    }
     this.dataIscrizione = dataIscrizione;
   }
 
+  /**
+   * Ritorna la versione dell'utente nel database al momento della lettura
+   *
+   * @return la versione
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Imposta la versione dell'utente: UserManager.update salva le modifiche
+   * solo se coincide ancora con quella nel database
+   *
+   * @param version la versione
+   */
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * Indica se l'utente è stato modificato dall'ultima lettura o scrittura
+   * nel database
+   *
+   * @return true se c'è qualche modifica da salvare
+   */
+  public boolean isDirty() {
+    return dirtyColumns != 0;
+  }
+
+  /**
+   * Segna come modificata una colonna: i setter la chiamano solo se il
+   * valore cambia
+   */
+  final void markDirty(UserColumn column) {
+    dirtyColumns |= column.bit;
+  }
+
+  /**
+   * Ritorna la maschera delle colonne modificate
+   */
+  final long getDirtyColumns() {
+    return dirtyColumns;
+  }
+
+  /**
+   * Segna l'utente come allineato al database
+   */
+  final void clearDirty() {
+    dirtyColumns = 0;
+  }
+
+  /**
+   * Indica se le colonne del sottotipo sono state lette: un utente letto
+   * con FetchMode.HEADER_ONLY le legge al primo accesso o con
+   * UserManager.hydrate
+   *
+   * @return true se l'utente è completo
+   */
+  public boolean isHydrated() {
+    return detailsSource == null;
+  }
+
+  /**
+   * Segna l'utente come letto senza le colonne del sottotipo
+   */
+  final void setDetailsSource(UserManager source) {
+    detailsSource = source;
+  }
+
+  /**
+   * Segna come lette le colonne del sottotipo
+   */
+  final void hydrated() {
+    detailsSource = null;
+  }
+
+  /**
+   * Legge le colonne del sottotipo se mancano: i getter e i setter delle
+   * sottoclassi la chiamano prima di accedere ai propri campi
+   *
+   * @throws IllegalStateException se la lettura fallisce
+   */
+  protected final void hydrate() {
+    UserManager source = detailsSource;
+    if (source != null) {
+      try {
+        source.hydrate(this);
+      }
+      catch(Exception e) {
+        throw new IllegalStateException("User details not loaded", e);
+      }
+    }
+  }
+
   /**
    * Permette di clonare l'oggetto
    * 
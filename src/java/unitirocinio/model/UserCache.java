@@ -0,0 +1,337 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache in memoria degli utenti letti dal database, indicizzata per ID e per
+ * login.
+ *
+ * Il numero di utenti è limitato: superato il limite vengono rimossi i più
+ * vecchi. Ogni utente scade dopo un tempo prefissato. La cache conserva e
+ * restituisce sempre copie, così che chi modifica un utente ottenuto dalla
+ * cache non alteri quello condiviso.
+ *
+ * @author Luca Gambetta
+ */
+public class UserCache {
+
+  /**
+   * Numero massimo di utenti in cache
+   */
+  private final int maxSize;
+
+  /**
+   * Durata di un utente in cache, in millisecondi
+   */
+  private final long ttl;
+
+  /**
+   * Indice per ID
+   */
+  private final ConcurrentHashMap<Long, Entry> byId = new ConcurrentHashMap<>();
+
+  /**
+   * Indice per login, sugli stessi elementi dell'indice per ID
+   */
+  private final ConcurrentHashMap<String, Entry> byLogin = new ConcurrentHashMap<>();
+
+  /**
+   * Elementi in ordine di inserimento, per la rimozione dei più vecchi
+   */
+  private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Lunghezza della coda degli inserimenti
+   */
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * Numero di invalidazioni, incrementato prima di rimuovere gli elementi
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Crea una cache
+   *
+   * @param maxSize numero massimo di utenti
+   * @param ttl durata di un utente in cache, in millisecondi
+   */
+  public UserCache(int maxSize, long ttl) {
+    if (maxSize <= 0 || ttl <= 0) {
+      throw new IllegalArgumentException("Invalid cache parameters");
+    }
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Cerca un utente per ID
+   *
+   * @param id l'ID dell'utente
+   * @return una copia dell'utente o null se non è in cache
+   */
+  public User getById(long id) {
+    return hit(byId.get(id));
+  }
+
+  /**
+   * Cerca un utente per login
+   *
+   * @param login la login dell'utente
+   * @return una copia dell'utente o null se non è in cache
+   */
+  public User getByLogin(String login) {
+    Entry e = byLogin.get(login);
+    if (e != null && !login.equals(e.user.getLogin())) {
+      e = null;
+    }
+    return hit(e);
+  }
+
+  private User hit(Entry e) {
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    if (System.currentTimeMillis() > e.expires) {
+      remove(e);
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return copy(e.user);
+  }
+
+  /**
+   * Inserisce in cache una copia di un utente salvato. Gli utenti letti
+   * senza le colonne del sottotipo non vengono messi in cache.
+   *
+   * @param user l'utente
+   */
+  public void put(User user) {
+    insert(user);
+  }
+
+  /**
+   * Inserisce in cache una copia di un utente letto dal database, solo se
+   * dall'inizio della lettura la cache non ha ricevuto invalidazioni: un
+   * salvataggio concorrente potrebbe aver reso la copia letta già vecchia.
+   *
+   * @param user l'utente
+   * @param generation il valore di getGeneration() letto prima della query
+   * @return true se l'utente è stato messo in cache
+   */
+  public boolean put(User user, long generation) {
+    if (this.generation.get() != generation) {
+      return false;
+    }
+    Entry e = insert(user);
+    if (e != null && this.generation.get() != generation) {
+      // Invalidazione arrivata durante l'inserimento
+      remove(e);
+      return false;
+    }
+    return e != null;
+  }
+
+  /**
+   * Inserisce un utente e rimuove i più vecchi oltre la dimensione massima
+   *
+   * @return l'elemento inserito, null se l'utente non va in cache
+   */
+  private Entry insert(User user) {
+    if (user == null || user.getId() == null || user.getLogin() == null || !user.isHydrated()) {
+      return null;
+    }
+
+    Entry e = new Entry(copy(user), System.currentTimeMillis() + ttl);
+    Entry old = byId.put(e.id, e);
+    if (old != null) {
+      byLogin.remove(old.login, old);
+    }
+    byLogin.put(e.login, e);
+    insertionOrder.add(e);
+    queued.incrementAndGet();
+
+    // Rimuove i più vecchi e scarta dalla coda gli elementi già sostituiti o invalidati
+    while (byId.size() > maxSize || queued.get() > 2 * maxSize) {
+      Entry eldest = insertionOrder.poll();
+      if (eldest == null) {
+        break;
+      }
+      queued.decrementAndGet();
+      if (byId.get(eldest.id) != eldest) {
+        continue;
+      }
+      if (byId.size() > maxSize) {
+        if (remove(eldest)) {
+          evictions.incrementAndGet();
+        }
+      } else {
+        insertionOrder.add(eldest);
+        queued.incrementAndGet();
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Rimuove dalla cache un utente, cercandolo sia per ID sia per login
+   *
+   * @param user l'utente da rimuovere
+   */
+  public void invalidate(User user) {
+    generation.incrementAndGet();
+    if (user.getId() != null) {
+      invalidate(user.getId());
+    }
+    if (user.getLogin() != null) {
+      Entry e = byLogin.get(user.getLogin());
+      if (e != null) {
+        remove(e);
+      }
+    }
+  }
+
+  /**
+   * Rimuove dalla cache un utente
+   *
+   * @param id l'ID dell'utente da rimuovere
+   */
+  public void invalidate(long id) {
+    generation.incrementAndGet();
+    Entry e = byId.get(id);
+    if (e != null) {
+      remove(e);
+    }
+  }
+
+  /**
+   * Svuota la cache
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    byId.clear();
+    byLogin.clear();
+    insertionOrder.clear();
+    queued.set(0);
+  }
+
+  /**
+   * Rimuove un elemento da entrambi gli indici
+   *
+   * @return true se l'elemento era ancora nell'indice per ID
+   */
+  private boolean remove(Entry e) {
+    byLogin.remove(e.login, e);
+    return byId.remove(e.id, e);
+  }
+
+  /**
+   * Copia un utente: tutti i campi sono immutabili, basta la copia superficiale
+   */
+  static User copy(User user) {
+    try {
+      return (User) user.clone();
+    }
+    catch(CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Ritorna il numero di utenti in cache
+   *
+   * @return il numero di utenti
+   */
+  public int size() {
+    return byId.size();
+  }
+
+  /**
+   * Ritorna il numero di invalidazioni ricevute, da leggere prima di una
+   * lettura da passare a put(User, long)
+   *
+   * @return la generazione corrente
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Ritorna il numero di ricerche soddisfatte dalla cache
+   *
+   * @return il numero di successi
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Ritorna il numero di ricerche non soddisfatte dalla cache
+   *
+   * @return il numero di fallimenti
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Ritorna il numero di utenti rimossi per far posto ad altri
+   *
+   * @return il numero di rimozioni
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Un utente in cache con la sua scadenza
+   */
+  private static final class Entry {
+
+    final long id;
+    final String login;
+    final User user;
+    final long expires;
+
+    Entry(User user, long expires) {
+      this.id = user.getId();
+      this.login = user.getLogin();
+      this.user = user;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Colonne modificabili degli utenti, per il salvataggio delle sole
+ * modifiche.
+ *
+ * Ogni colonna corrisponde a un setter di User o di una sua sottoclasse e
+ * occupa un bit nella maschera delle colonne modificate dell'utente.
+ *
+ * @author Luca Gambetta
+ */
+enum UserColumn {
+
+  LOGIN("utenti", "login"),
+  PASSWORD("utenti", "password"),
+  EMAIL("utenti", "email"),
+  NOME("utenti", "nome"),
+  COGNOME("utenti", "cognome"),
+  DATA_ISCRIZIONE("utenti", "data_iscrizione", "FROM_UNIXTIME(?)"),
+  MATRICOLA("studenti", "matricola"),
+  OPERATORE_CODICE_FISCALE("operatori_ufficio_tirocinio", "codice_fiscale"),
+  OPERATORE_RUOLO("operatori_ufficio_tirocinio", "ruolo"),
+  TUTOR_ACCADEMICO_CODICE_FISCALE("tutor_accademici", "codice_fiscale"),
+  TUTOR_AZIENDALE_AZIENDA_ID("tutor_aziendali", "azienda_id"),
+  TUTOR_AZIENDALE_CODICE_FISCALE("tutor_aziendali", "codice_fiscale"),
+  TUTOR_AZIENDALE_TELEFONO("tutor_aziendali", "telefono"),
+  PARTITA_IVA("aziende", "partita_iva"),
+  NOME_RAPPRESENTANTE("aziende", "nome_rappresentante"),
+  COGNOME_RAPPRESENTANTE("aziende", "cognome_rappresentante"),
+  STATO_CONVENZIONE("aziende", "stato_convenzione"),
+  RIF_CONVENZIONE("aziende", "rif_convenzione"),
+  DATA_CONVENZIONE("aziende", "data_convenzione", "CAST(FROM_UNIXTIME(?) AS DATE)"),
+  INDIRIZZO_SEDE_LEGALE("aziende", "indirizzo_sede_legale"),
+  CITTA_SEDE_LEGALE("aziende", "citta_sede_legale");
+
+  /**
+   * Maschera delle colonne della tabella utenti
+   */
+  static final long UTENTI;
+
+  static {
+    long mask = 0;
+    for (UserColumn c : values()) {
+      if (c.table.equals("utenti")) {
+        mask |= c.bit;
+      }
+    }
+    UTENTI = mask;
+  }
+
+  private final String table;
+  private final String column;
+  private final String placeholder;
+  final long bit = 1L << ordinal();
+
+  UserColumn(String table, String column) {
+    this(table, column, "?");
+  }
+
+  UserColumn(String table, String column, String placeholder) {
+    this.table = table;
+    this.column = column;
+    this.placeholder = placeholder;
+  }
+
+  String getTable() {
+    return table;
+  }
+
+  String getColumn() {
+    return column;
+  }
+
+  /**
+   * Ritorna l'espressione con cui il parametro viene scritto nella colonna
+   */
+  String getPlaceholder() {
+    return placeholder;
+  }
+
+  /**
+   * Ritorna il valore della colonna per un utente, nella forma in cui va
+   * passato allo statement
+   *
+   * @param user l'utente, del tipo a cui appartiene la colonna
+   * @return il valore
+   */
+  Object valueOf(User user) {
+    switch(this) {
+      case LOGIN:
+        return user.getLogin();
+      case PASSWORD:
+        return user.getPassword();
+      case EMAIL:
+        return user.getEmail();
+      case NOME:
+        return user.getNome();
+      case COGNOME:
+        return user.getCognome();
+      case DATA_ISCRIZIONE:
+        return user.getDataIscrizione();
+      case MATRICOLA:
+        return ((Studente) user).getMatricola();
+      case OPERATORE_CODICE_FISCALE:
+        return ((OperatoreUfficioTirocinio) user).getCodiceFiscale();
+      case OPERATORE_RUOLO:
+        return OperatoreUfficioTirocinioMapper.encodeRuolo(((OperatoreUfficioTirocinio) user).getRuolo());
+      case TUTOR_ACCADEMICO_CODICE_FISCALE:
+        return ((TutorAccademico) user).getCodiceFiscale();
+      case TUTOR_AZIENDALE_AZIENDA_ID:
+        return ((TutorAziendale) user).getIdAzienda();
+      case TUTOR_AZIENDALE_CODICE_FISCALE:
+        return ((TutorAziendale) user).getCodiceFiscale();
+      case TUTOR_AZIENDALE_TELEFONO:
+        return ((TutorAziendale) user).getTelefono();
+      case PARTITA_IVA:
+        return ((Azienda) user).getPartitaIva();
+      case NOME_RAPPRESENTANTE:
+        return ((Azienda) user).getNomeRappresentanteLegale();
+      case COGNOME_RAPPRESENTANTE:
+        return ((Azienda) user).getCognomeRappresentanteLegale();
+      case STATO_CONVENZIONE:
+        return AziendaMapper.encodeStatoConvenzione(((Azienda) user).getStatoConvenzione());
+      case RIF_CONVENZIONE:
+        return ((Azienda) user).getRifConvenzione();
+      case DATA_CONVENZIONE:
+        return ((Azienda) user).getDataConvenzione();
+      case INDIRIZZO_SEDE_LEGALE:
+        return ((Azienda) user).getIndirizzoSedeLegale();
+      default:
+        return ((Azienda) user).getCittaSedeLegale();
+    }
+  }
+
+  /**
+   * Ritorna la colonna con l'ID dell'utente in una tabella
+   *
+   * @param table la tabella
+   * @return il nome della colonna
+   */
+  static String idColumn(String table) {
+    switch(table) {
+      case "studenti":
+        return "studente_id";
+      case "operatori_ufficio_tirocinio":
+        return "operatore_id";
+      case "aziende":
+        return "azienda_id";
+      case "tutor_aziendali":
+      case "tutor_accademici":
+        return "tutor_id";
+      default:
+        return "id";
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Segnala che UserManager.update non ha salvato un utente perché nel
+ * frattempo è stato modificato da altri.
+ *
+ * L'eccezione porta lo stato attuale dell'utente nel database: chi chiama
+ * può riapplicare le proprie modifiche a questa copia e ritentare, senza
+ * aver mai tenuto lock sulla riga.
+ *
+ * @author Luca Gambetta
+ */
+public class UserConflictException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * L'utente con le modifiche non salvate
+   */
+  private final User stale;
+
+  /**
+   * Lo stato attuale dell'utente nel database
+   */
+  private final User current;
+
+  /**
+   * Crea l'eccezione
+   *
+   * @param stale l'utente di cui non sono state salvate le modifiche
+   * @param current lo stato attuale dell'utente nel database
+   */
+  public UserConflictException(User stale, User current) {
+    super("User " + current.getId() + " modified concurrently: version " + stale.getVersion() +
+            " is stale, current is " + current.getVersion());
+    this.stale = stale;
+    this.current = current;
+  }
+
+  /**
+   * Ritorna l'utente di cui non sono state salvate le modifiche, invariato
+   *
+   * @return l'utente passato a update
+   */
+  public User getStaleUser() {
+    return stale;
+  }
+
+  /**
+   * Ritorna lo stato attuale dell'utente nel database
+   *
+   * @return l'utente riletto, con la versione corrente
+   */
+  public User getCurrentUser() {
+    return current;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Criteri di selezione per l'elenco degli utenti.
+ *
+ * I criteri non impostati (null) non filtrano. L'intervallo sulla data di
+ * iscrizione comprende l'estremo iniziale ed esclude quello finale.
+ *
+ * @author Luca Gambetta
+ */
+public class UserFilter {
+
+  /**
+   * Tipo di utente
+   */
+  private TipoUtente tipo;
+
+  /**
+   * Inizio dell'intervallo di iscrizione, come timestamp in secondi
+   */
+  private Long iscrittoDal;
+
+  /**
+   * Fine dell'intervallo di iscrizione, come timestamp in secondi
+   */
+  private Long iscrittoAl;
+
+  /**
+   * Crea un filtro che seleziona tutti gli utenti
+   */
+  public UserFilter() {
+  }
+
+  /**
+   * Crea un filtro per tipo di utente
+   *
+   * @param tipo il tipo di utente
+   */
+  public UserFilter(TipoUtente tipo) {
+    this.tipo = tipo;
+  }
+
+  /**
+   * Ritorna il tipo di utente selezionato
+   *
+   * @return il tipo di utente o null
+   */
+  public TipoUtente getTipo() {
+    return tipo;
+  }
+
+  /**
+   * Imposta il tipo di utente da selezionare
+   *
+   * @param tipo il tipo di utente, null per tutti
+   */
+  public void setTipo(TipoUtente tipo) {
+    this.tipo = tipo;
+  }
+
+  /**
+   * Ritorna l'inizio dell'intervallo di iscrizione
+   *
+   * @return il timestamp in secondi o null
+   */
+  public Long getIscrittoDal() {
+    return iscrittoDal;
+  }
+
+  /**
+   * Imposta l'inizio dell'intervallo di iscrizione
+   *
+   * @param iscrittoDal l'inizio dell'intervallo di iscrizione, compreso, come timestamp in secondi
+   */
+  public void setIscrittoDal(Long iscrittoDal) {
+    this.iscrittoDal = iscrittoDal;
+  }
+
+  /**
+   * Ritorna la fine dell'intervallo di iscrizione
+   *
+   * @return il timestamp in secondi o null
+   */
+  public Long getIscrittoAl() {
+    return iscrittoAl;
+  }
+
+  /**
+   * Imposta la fine dell'intervallo di iscrizione
+   *
+   * @param iscrittoAl la fine dell'intervallo di iscrizione, esclusa, come timestamp in secondi
+   */
+  public void setIscrittoAl(Long iscrittoAl) {
+    this.iscrittoAl = iscrittoAl;
+  }
+}
@@ -23,11 +23,31 @@
  */
 package unitirocinio.model;
 
+import java.lang.management.ManagementFactory;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import javax.management.JMException;
+import javax.sql.DataSource;
 
 /**
  * Gestisce la persistenza degli oggetti di tipo User.
@@ -36,7 +56,23 @@ import java.sql.Statement;
  *
  * @author Luca Gambetta
  */
-public class UserManager {
+public class UserManager implements UserRepository {
+
+  /**
+   * Numero predefinito di utenti salvati in ogni transazione da saveAll
+   */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  
+  /**
+   * Numero predefinito di righe lette per volta negli elenchi
+   */
+  public static final int DEFAULT_FETCH_SIZE = 500;
+  
+  /**
+   * INSERT dei dati comuni a tutti gli utenti
+   */
+  private static final String INSERT_UTENTE =
+          "INSERT INTO utenti (data_iscrizione, login, password, email, nome, cognome, tipo_utente) VALUES ( NOW(), ?, ?, ?, ?, ?, ? )";
 
   /**
    * Il singleton per l'user manager
@@ -47,9 +83,154 @@ public class UserManager {
   private static final Object CLASSLOCK = UserManager.class;
   
   /**
-   * Connessione al database
+   * Connessione al database condivisa, impostata con setConnection
+   */
+  private volatile Connection connection;
+
+  /**
+   * Serializza l'uso della connessione condivisa tra i thread
+   */
+  private final Semaphore connectionLock = new Semaphore(1, true);
+
+  /**
+   * La connessione condivisa presa dall'operazione che detiene
+   * connectionLock: resta quella da restituire anche se setConnection
+   * cambia la connessione
+   */
+  private volatile Connection sharedInUse;
+
+  /**
+   * La connessione tenuta per conto del thread corrente mentre esegue una
+   * callback dell'utente, ad esempio l'onNext di una sottoscrizione
+   */
+  private final ThreadLocal<Connection> heldByCallback = new ThreadLocal<>();
+
+  /**
+   * Pool di connessioni, impostato con setDataSource: se presente ha la
+   * precedenza sulla connessione condivisa
+   */
+  private volatile ConnectionPool pool;
+
+  /**
+   * Cache degli statement della connessione condivisa
+   */
+  private StatementCache sharedStatementCache;
+  
+  /**
+   * Contatori della cache degli statement della connessione condivisa
+   */
+  private final StatementCache.Statistics sharedStatementStatistics = new StatementCache.Statistics();
+  
+  /**
+   * Numero di statement tenuti in cache per ogni connessione
+   */
+  private volatile int statementCacheSize = StatementCache.DEFAULT_SIZE;
+
+  /**
+   * Cache facoltativa degli utenti letti
+   */
+  private volatile UserCache userCache;
+  
+  /**
+   * Chi riceve gli utenti scritti
+   */
+  private final CopyOnWriteArrayList<UserListener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Numero di utenti salvati in ogni transazione da saveAll
+   */
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * Numero di righe lette per volta negli elenchi
+   */
+  private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+
+  /**
+   * Calcola e verifica gli hash delle password
+   */
+  private volatile PasswordHasher passwordHasher;
+
+  /**
+   * Latenze e contatori delle operazioni
+   */
+  private final UserManagerMetrics metrics = new UserManagerMetrics();
+
+  /**
+   * Traccia gli statement eseguiti, null se disattivato
+   */
+  private volatile SqlTracer sqlTracer;
+
+  /**
+   * Esegue le operazioni asincrone, al più una per connessione disponibile
+   */
+  private final AsyncExecutor asyncExecutor = new AsyncExecutor(1);
+
+  /**
+   * Sceglie la replica per le letture, null se si legge dal primario
+   */
+  private volatile ReplicaRouter replicaRouter;
+
+  /**
+   * Connessioni prese in prestito dalle repliche, con il pool a cui appartengono
+   */
+  private final ConcurrentHashMap<Connection, ConnectionPool> replicaConnections = new ConcurrentHashMap<>();
+
+  /**
+   * Connessioni prese in prestito dal pool del primario, con il pool a cui
+   * appartengono: vanno restituite a quel pool anche se nel frattempo
+   * setDataSource lo ha sostituito
+   */
+  private final ConcurrentHashMap<Connection, ConnectionPool> poolConnections = new ConcurrentHashMap<>();
+
+  /**
+   * Sessione associata al thread corrente, per rileggere le proprie scritture
+   */
+  private static final ThreadLocal<Object> SESSION = new ThreadLocal<>();
+
+  /**
+   * Indice dei valori UNIQUE già usati, per le verifiche di disponibilità
+   */
+  private volatile AvailabilityIndex availabilityIndex;
+
+  /**
+   * Indice in costruzione: riceve anche lui gli utenti salvati nel frattempo
+   */
+  private volatile AvailabilityIndex buildingIndex;
+
+  /**
+   * Indice per la ricerca degli utenti per nome
+   */
+  private volatile SearchIndex searchIndex;
+
+  /**
+   * Indice di ricerca in costruzione: riceve anche lui gli utenti salvati nel frattempo
+   */
+  private volatile SearchIndex buildingSearchIndex;
+
+  /**
+   * Modalità di lettura degli utenti dal database
+   */
+  public enum FetchMode {
+    /**
+     * Una query su utenti e una seconda sulla tabella del sottotipo
+     */
+    SEPARATE,
+    /**
+     * Un'unica query su utenti unita con LEFT JOIN alle tabelle dei sottotipi
+     */
+    JOINED,
+    /**
+     * Solo la query su utenti: le colonne del sottotipo vengono lette al
+     * primo accesso o con hydrate e hydrateAll
+     */
+    HEADER_ONLY
+  };
+
+  /**
+   * Modalità di lettura usata da find e findByLogin
    */
-  private Connection conn;
+  private volatile FetchMode fetchMode = FetchMode.JOINED;
 
   /**
    * Istanzia l'user manager.
@@ -90,6 +271,27 @@ public class UserManager {
     }
   }
 
+  /**
+   * Ritorna il singleton per il gestore degli utenti, impostando la sorgente
+   * delle connessioni al database
+   *
+   * @param dataSource la sorgente delle connessioni
+   * @return il singleton del gestore degli utenti
+   */
+  public static UserManager getInstance(DataSource dataSource) {
+    synchronized (CLASSLOCK) {
+      if (singleton == null) {
+        singleton = new UserManager();
+      }
+
+      if (dataSource != null && (singleton.pool == null || singleton.pool.getDataSource() != dataSource)) {
+        singleton.setDataSource(dataSource);
+      }
+
+      return singleton;
+    }
+  }
+
   /**
    * Salva un utente nel database, aggiornandone l'ID univoco.
    *
@@ -98,298 +300,2095 @@ public class UserManager {
    * @throws java.lang.Exception
    * @throws java.sql.SQLException
    */
+  @Override
   public User save(User user) throws Exception, SQLException {
-    if (conn == null) {
-      throw new Exception("No DB connection!");
+    String tipo_utente = tipoUtente(user);
+    hydrate(user);
+    
+    long start = System.nanoTime();
+    Connection conn = acquireConnection();
+    try {
+      conn.setAutoCommit(false);
+      saveUser(conn, user, tipo_utente);
+    }
+    finally {
+      releaseConnection(conn);
+      metrics.record(UserManagerMetrics.Operation.SAVE, TipoUtente.of(user), start);
     }
     
-    String tipo_utente;
-    if (user instanceof Studente) {
-      tipo_utente = "studente";
-    } else if(user instanceof OperatoreUfficioTirocinio) {
-      tipo_utente = "operatore";
-    } else if(user instanceof Azienda) {
-      tipo_utente = "azienda";
-    } else if(user instanceof TutorAziendale) {
-      tipo_utente = "tutor_aziendale";
-    } else if(user instanceof TutorAccademico) {
-      tipo_utente = "tutor_accademico";
-    } else {
-      throw new Exception("Invalid object");
+    userSaved(user);
+    return user;
+  }
+  
+  /**
+   * Salva un utente in modo asincrono: vedi save().
+   * 
+   * Le operazioni asincrone in esecuzione sono al più quante le connessioni
+   * del pool (una sola con la connessione condivisa), le altre restano in
+   * coda senza occupare thread. Annullare il future, o farlo scadere con
+   * orTimeout, toglie l'operazione dalla coda o interrompe con
+   * Statement.cancel quella in corso; un salvataggio interrotto viene
+   * annullato con un rollback. Dopo il commit l'annullamento non ha più
+   * effetto e il future riporta l'utente salvato.
+   * 
+   * @param user l'utente da salvare
+   * @return il future dell'utente salvato
+   */
+  public CompletableFuture<User> saveAsync(final User user) {
+    return submit(() -> save(user));
+  }
+  
+  /**
+   * Salva le modifiche a un utente già presente nel database.
+   * 
+   * Vengono scritte solo le colonne i cui setter hanno cambiato valore
+   * dall'ultima lettura o scrittura, e solo nelle tabelle che le contengono.
+   * Un utente senza modifiche non richiede accessi al database.
+   * 
+   * Il controllo della concorrenza è ottimistico: l'UPDATE di utenti,
+   * eseguito anche se sono cambiate solo colonne del sottotipo, avviene solo
+   * se la versione nel database è ancora quella dell'utente e la incrementa.
+   * Se nel frattempo l'utente è stato modificato da altri non viene scritto
+   * niente e viene sollevata una UserConflictException con lo stato attuale.
+   * 
+   * @param user l'utente da aggiornare
+   * @return l'utente aggiornato, con la nuova versione
+   * @throws UserConflictException se l'utente è stato modificato dopo la lettura
+   * @throws Exception se l'utente non è stato salvato o non è di un tipo salvabile
+   * @throws SQLException se l'utente non esiste più o l'aggiornamento fallisce
+   */
+  public User update(User user) throws Exception, SQLException {
+    tipoUtente(user);
+    if (user.getId() == null || user.getId() <= 0) {
+      throw new Exception("User not saved");
     }
     
-    conn.setAutoCommit(false);
+    long dirty = user.getDirtyColumns();
+    if (dirty == 0) {
+      return user;
+    }
+    
+    long utenti = dirty & UserColumn.UTENTI;
+    long subtype = dirty & ~UserColumn.UTENTI;
+    boolean transaction = subtype != 0;
+    boolean stale;
+    
+    long start = System.nanoTime();
+    Connection conn = acquireConnection();
     try {
-      
-      // Salva prima le informazioni comuni
-      PreparedStatement stmt = conn.prepareStatement(
-              "INSERT INTO utenti (data_iscrizione, login, password, email, nome, cognome, tipo_utente) VALUES ( NOW(), ?, ?, ?, ?, ?, ? )",
-              Statement.RETURN_GENERATED_KEYS
-              );
-      stmt.setString(1, user.getLogin());
-      stmt.setString(2, user.getPassword());
-      stmt.setString(3, user.getEmail());
-      stmt.setString(4, user.getNome());
-      stmt.setString(5, user.getCognome());
-      stmt.setString(6, tipo_utente);
-              
-      int affectedRows = stmt.executeUpdate();
-      if (affectedRows == 0) {
-        // ROLLBACK
-        conn.rollback();
+      if (transaction) {
+        conn.setAutoCommit(false);
       }
-      
-      // Recupera l'ID e lo inserisce nell'istanza
-      ResultSet genkeys = stmt.getGeneratedKeys();
-      if (genkeys.next()) {
-        user.setId(genkeys.getLong(1));
-      } else {
-        // ROLLBACK
-        conn.rollback();
+      stale = !updateColumns(conn, user, "utenti", utenti);
+      if (!stale && subtype != 0) {
+        if (!updateColumns(conn, user, UserColumn.values()[Long.numberOfTrailingZeros(subtype)].getTable(), subtype)) {
+          throw new SQLException("User not updated");
+        }
       }
-      
-      // Aggiunge le informazioni per i sottotipi
-      PreparedStatement stmt2;
-      
-      if (user instanceof Studente) {
-        stmt2 = conn.prepareStatement("INSERT INTO studenti (studente_id, matricola) VALUES (?,?)");
-        stmt2.setLong(1, user.getId() );
-        stmt2.setString(2, ((Studente) user).getMatricola());
-      } else if(user instanceof OperatoreUfficioTirocinio) {
-        stmt2 = conn.prepareStatement("INSERT INTO operatori_ufficio_tirocinio (operatore_id, codice_fiscale, ruolo) VALUES (?,?,?)");
-        stmt2.setLong(1, user.getId() );
-        stmt2.setString(2, ((OperatoreUfficioTirocinio) user).getCodiceFiscale());
-        switch( ((OperatoreUfficioTirocinio) user).getRuolo() ) {
-          case OPERATORE:
-            stmt2.setString(3, "operatore");
-            break;
-          case DIRETTORE_DIPARTIMENTO:
-            stmt2.setString(3, "direttore_dip");
-            break;
-          case PRESIDENTE_CONSIGLIO_DIDATTICO:
-            stmt2.setString(3, "presidente_cons_did");
-            break;
-        } 
-      } else if(user instanceof Azienda) {
-        stmt2 = conn.prepareStatement(
-                "INSERT INTO aziende (azienda_id, partita_iva, nome_rappresentante, cognome_rappresentante, stato_convenzione," +
-                        "rif_convenzione, data_convenzione, indirizzo_sede_legale, citta_sede_legale" +
-                ") VALUES (?,?,?,?,?,?,CAST(FROM_UNIXTIME(?) AS DATE),?,?)"
-        );
-        stmt2.setLong(1, user.getId());
-        stmt2.setString(2, ((Azienda) user).getPartitaIva());
-        stmt2.setString(3, ((Azienda) user).getNomeRappresentanteLegale());
-        stmt2.setString(4, ((Azienda) user).getCognomeRappresentanteLegale());
-        
-        switch(((Azienda) user).getStatoConvenzione()) {
-          case ATTIVA: 
-            stmt2.setString(5, "attiva");
-            break;
-          case NON_ATTIVA: 
-            stmt2.setString(5, "non_attiva");
-            break;
+      if (transaction) {
+        if (stale) {
+          conn.rollback();
+        } else {
+          commit(conn);
         }
-        stmt2.setString(6, ((Azienda) user).getRifConvenzione());
-        stmt2.setLong(7, ((Azienda) user).getDataConvenzione());
-        
-        stmt2.setString(8, ((Azienda) user).getIndirizzoSedeLegale());
-        stmt2.setString(9, ((Azienda) user).getCittaSedeLegale());
-        
-      } else if(user instanceof TutorAziendale) {
-        stmt2 = conn.prepareStatement("INSERT INTO tutor_aziendali (tutor_id, azienda_id, codice_fiscale, telefono) VALUES (?,?,?,?) ");
-        stmt2.setLong(1, user.getId());
-        stmt2.setLong(2, ((TutorAziendale) user).getIdAzienda());
-        stmt2.setString(3, ((TutorAziendale) user).getCodiceFiscale());
-        stmt2.setString(4, ((TutorAziendale) user).getTelefono());
-      } else if(user instanceof TutorAccademico) {
-        stmt2 = conn.prepareStatement("INSERT INTO tutor_accademici (tutor_id, codice_fiscale) VALUES (?,?)");
-        stmt2.setLong(1, user.getId());
-        stmt2.setString(2, ((TutorAccademico) user).getCodiceFiscale());
-      } else {
-        // Messo solo per evitare che il compilatore si lamenti di 
-        // variabile non inizializzata
-        throw new Exception("Invalid object");
       }
-      
-      stmt2.execute();
-      conn.commit();
-      
-      
     }
-    catch(SQLException e) {
-      conn.rollback();
+    catch(Exception e) {
+      if (transaction) {
+        conn.rollback();
+        metrics.rollback();
+      }
       throw e;
     }
+    finally {
+      if (transaction) {
+        conn.setAutoCommit(true);
+      }
+      releaseConnection(conn);
+      metrics.record(UserManagerMetrics.Operation.UPDATE, TipoUtente.of(user), start);
+    }
     
+    if (stale) {
+      throw conflict(user);
+    }
+    
+    user.setVersion(user.getVersion() + 1);
+    userSaved(user);
     return user;
   }
-
+  
   /**
-   * Estrae un utente dal database in base al suo ID univoco
+   * Esegue l'UPDATE delle colonne modificate di una tabella
+   * 
+   * @return false se nessuna riga corrisponde a ID (e versione, per utenti)
+   */
+  private boolean updateColumns(Connection conn, User user, String table, long columns) throws SQLException {
+    PreparedStatement stmt = prepare(conn, UserQueries.update(table, columns));
+    UserQueries.bindUpdate(stmt, user, columns);
+    return stmt.executeUpdate() > 0;
+  }
+  
+  /**
+   * Legge un utente per login dal primario, senza passare dalla cache né
+   * dalle repliche, che possono avere una password superata
    *
-   * @param id l'ID dell'utente
-   * @return l'eventuale utente trovato o null se non ha trovato niente
+   * @param login la login
+   * @return l'utente o null se non esiste
+   * @throws SQLException
+   * @throws Exception
    */
-  public User find(Long id) throws SQLException,Exception {
-    if (id == null) {
-      throw new NullPointerException();
+  User findByLoginOnPrimary(String login) throws SQLException, Exception {
+    Connection conn = acquireConnection();
+    try {
+      return loadByLogin(conn, login);
     }
-    
-    if (id <= 0) {
-      throw new Exception("Invalid ID");
+    finally {
+      releaseConnection(conn);
     }
-    
-    PreparedStatement st = conn.prepareStatement("SELECT * FROM utenti WHERE id = ?");
-    st.setLong(1, id);
-    ResultSet res = st.executeQuery();
-    return userFactory(res);
   }
-
+  
   /**
-   * Estra un utente dal database usando la sua login
+   * Rilegge dal primario la password salvata di un utente
    *
-   * @param login la stringa di login da cercare
-   * @return l'eventuale utente trovato o null se non ha trovato niente
-   * @throws java.sql.SQLException
+   * @param id l'ID dell'utente
+   * @return la password o null se l'utente non esiste più
+   * @throws SQLException
+   * @throws Exception
    */
-  public User findByLogin(String login) throws SQLException, Exception {
-    if (login == null) {
-      throw new NullPointerException();
+  String currentPassword(long id) throws SQLException, Exception {
+    Connection conn = acquireConnection();
+    try {
+      PreparedStatement stmt = prepare(conn, "SELECT password FROM utenti WHERE id = ?");
+      stmt.setLong(1, id);
+      try (ResultSet res = stmt.executeQuery()) {
+        return res.next() ? res.getString(1) : null;
+      }
+    }
+    finally {
+      releaseConnection(conn);
     }
-    
-    PreparedStatement st = conn.prepareStatement("SELECT * FROM utenti WHERE login = ? LIMIT 1");
-    st.setString(1, login);
-    ResultSet res = st.executeQuery();
-    return userFactory(res);
   }
   
   /**
-   * Data una password in chiaro, ritorna la sua versione crittografata.
-   *
-   * @param plainPassword la password in chiaro
-   * @return la versione crittografata della password in chiaro
+   * Costruisce l'errore per un UPDATE che non ha trovato la versione attesa,
+   * rileggendo lo stato attuale dell'utente
    * 
+   * @throws SQLException se l'utente non esiste più
    */
-  public String encryptPassword(String plainPassword) {
-    return plainPassword;
+  private UserConflictException conflict(User user) throws SQLException, Exception {
+    metrics.conflict();
+    UserCache cache = userCache;
+    if (cache != null) {
+      cache.invalidate(user.getId());
+    }
+    
+    User current;
+    Connection conn = acquireConnection();
+    try {
+      current = loadById(conn, user.getId());
+    }
+    finally {
+      releaseConnection(conn);
+    }
+    
+    if (current == null) {
+      throw new SQLException("User not updated");
+    }
+    return new UserConflictException(user, current);
   }
   
   /**
-   * Metodo factory che, dato un Resultset, ritorna l'istanza di User approriata
+   * Aggiorna le strutture in memoria dopo la scrittura di un utente
    * 
-   * @param res il resultset da cui creare l'istanza
-   * @return una sottoclasse di User o null se non è stato possibile costruire l'oggetto
-   * @throws java.sql.SQLException
+   * @param user l'utente scritto nel database
    */
-  protected User userFactory(ResultSet res) throws SQLException, Exception {
-    User user = null;
-    if(res.next()) {
-      String tipo_utente = res.getString("tipo_utente");
-      long id = res.getLong("id");
-      PreparedStatement st;
-      ResultSet res2;
-      
-      switch(tipo_utente) {
-        case "studente": 
-          st = conn.prepareStatement("SELECT * from studenti where studente_id = ?");
-          st.setLong(1, id);
-          res2 = st.executeQuery();
-          if (res2.next()) {
-            user = new Studente(res.getString("login"), res.getString("email"), res2.getString("matricola"), id );
-          } else {
-            throw new Exception("Invalid User");
-          }
-          
-          break;
-        case "operatore":
-          st = conn.prepareStatement("SELECT * from operatori_ufficio_tirocinio where operatore_id = ?");
-          st.setLong(1, id);
-          res2 = st.executeQuery();
-          if (!res2.next()) {
-            throw new Exception("Invalid User");
-          }
-          
-          OperatoreUfficioTirocinio.Ruolo r;
-          switch(res2.getString("ruolo")) {
-            case "presidente_cons_did": r = OperatoreUfficioTirocinio.Ruolo.PRESIDENTE_CONSIGLIO_DIDATTICO;break;
-            case "direttore_dip": r = OperatoreUfficioTirocinio.Ruolo.DIRETTORE_DIPARTIMENTO; break;
-            default:
-              r = OperatoreUfficioTirocinio.Ruolo.OPERATORE;
-          }
-          
-          user = new OperatoreUfficioTirocinio(res.getString("login"), res.getString("email"), res2.getString("codice_fiscale"), r, id );
-          break;
-        case "tutor_accademico":
-          st = conn.prepareStatement("SELECT * from tutor_accademici where tutor_id = ?");
-          st.setLong(1, id);
-          res2 = st.executeQuery();
-          if (!res2.next()) {
-            throw new Exception("Invalid User");
-          }
-          
-          user = new TutorAccademico(res.getString("login"), res.getString("email"), res2.getString("codice_fiscale"), id );
-          
-          break;
-        case "tutor_aziendale":
-          st = conn.prepareStatement("SELECT * from tutor_aziendali where tutor_id = ?");
-          st.setLong(1, id);
-          res2 = st.executeQuery();
-          if (!res2.next()) {
-            throw new Exception("Invalid User");
-          }
-          
-          user = new TutorAziendale(res.getString("login"), res.getString("email"), res2.getString("codice_fiscale"), res2.getLong("azienda_id"), id );
-          ((TutorAziendale)user).setTelefono(res2.getString("telefono"));
-          
-          break;
-        case "azienda":
-          st = conn.prepareStatement("SELECT * from aziende where azienda_id = ?");
-          st.setLong(1, id);
-          res2 = st.executeQuery();
-          
-          if (!res2.next()) {
-            throw new Exception("Invalid User");
-          }
-          
-          user = new Azienda(res.getString("login"), res.getString("email"), res2.getString("partita_iva"), id );
-          /*
-            data_convezione DATE NOT NULL,
-          */
-          ((Azienda) user).setDataConvenzione( 0L );
-          ((Azienda) user).setCittaSedeLegale(res2.getString("citta_sede_legale"));
-          ((Azienda) user).setCognomeRappresentanteLegale(res2.getString("cognome_rappresentante"));
-          ((Azienda) user).setNomeRappresentanteLegale(res2.getString("nome_rappresentante"));
-          ((Azienda) user).setRifConvenzione(res2.getString("rif_convenzione"));
-          ((Azienda) user).setIndirizzoSedeLegale(res2.getString("indirizzo_sede_legale"));
-          String stato_convenzione = res2.getString("stato_convenzione");
-          ((Azienda) user).setStatoConvenzione(  stato_convenzione.compareTo("attiva") == 0 ?  Azienda.StatoConvenzione.ATTIVA : Azienda.StatoConvenzione.NON_ATTIVA );
-          
-          break;
-      }
-      
-      user.setNome(res.getString("nome"));
-      user.setCognome(res.getString("cognome"));
-      user.setPassword(res.getString("password"));
+  private void userSaved(User user) {
+    user.clearDirty();
     
+    ReplicaRouter router = replicaRouter;
+    if (router != null) {
+      router.wrote(currentSession());
+    }
+    
+    UserCache cache = userCache;
+    if (cache != null) {
+      cache.invalidate(user);
+    }
+    
+    AvailabilityIndex index = availabilityIndex;
+    if (index != null) {
+      index.add(user);
+    }
+    index = buildingIndex;
+    if (index != null) {
+      index.add(user);
+    }
+    
+    SearchIndex search = searchIndex;
+    if (search != null) {
+      search.add(user);
+    }
+    search = buildingSearchIndex;
+    if (search != null) {
+      search.add(user);
+    }
+    
+    for (UserListener listener : listeners) {
+      listener.userSaved(user);
     }
-    return user;
   }
-  
+
   /**
-   * Imposta una connessione al database
-   * @param conn la connessione al database
+   * Esegue in una transazione gli INSERT per un nuovo utente
+   *
+   * @param conn la connessione da usare, con autocommit disattivato
+   * @param user l'utente da salvare
+   * @param tipo_utente il tipo di utente da scrivere nella tabella utenti
+   * @throws Exception
+   * @throws SQLException
    */
-  public void setConnection(Connection conn) {
-    this.conn = conn;
+  private void saveUser(Connection conn, User user, String tipo_utente) throws Exception, SQLException {
+    try {
+      
+      // Salva prima le informazioni comuni
+      PreparedStatement stmt = prepare(conn, INSERT_UTENTE, Statement.RETURN_GENERATED_KEYS);
+      bindUtente(stmt, user, tipo_utente);
+              
+      int affectedRows = stmt.executeUpdate();
+      if (affectedRows == 0) {
+        throw new SQLException("User not inserted");
+      }
+      
+      // Recupera l'ID e lo inserisce nell'istanza
+      try (ResultSet genkeys = stmt.getGeneratedKeys()) {
+        if (genkeys.next()) {
+          user.setId(genkeys.getLong(1));
+        } else {
+          throw new SQLException("No ID generated for user");
+        }
+      }
+      
+      // Aggiunge le informazioni per i sottotipi
+      UserMapper mapper = UserMappers.of(user);
+      PreparedStatement stmt2 = prepare(conn, mapper.insertSql());
+      mapper.bindInsert(stmt2, user);
+      
+      stmt2.execute();
+      commit(conn);
+    }
+    catch(Exception e) {
+      conn.rollback();
+      metrics.rollback();
+      throw e;
+    }
+    finally {
+      conn.setAutoCommit(true);
+    }
   }
   
   /**
-   * Ritorna la connessione correnta al database
+   * Salva un insieme di nuovi utenti, aggiornandone gli ID univoci.
    * 
-   * @return Connection la connessione al database
+   * Gli utenti vengono scritti a blocchi di getBatchSize() elementi: per ogni
+   * blocco gli INSERT su utenti e sulle tabelle dei sottotipi vengono inviati
+   * in batch e confermati in un'unica transazione. Un blocco fallito viene
+   * annullato per intero senza interrompere i blocchi successivi.
+   * 
+   * @param users gli utenti da salvare
+   * @throws BatchSaveException se uno o più blocchi non sono stati salvati
+   * @throws Exception se un utente non è di un tipo salvabile: in tal caso non viene scritto niente
+   * @throws SQLException
+   */
+  public void saveAll(Collection<? extends User> users) throws BatchSaveException, Exception, SQLException {
+    List<User> list = new ArrayList<>(users);
+    List<String> tipi = new ArrayList<>(list.size());
+    for (User user : list) {
+      tipi.add(tipoUtente(user));
+    }
+    hydrateAll(list);
+    
+    if (list.isEmpty()) {
+      return;
+    }
+    
+    List<User> rejected = new ArrayList<>();
+    List<User> failed = new ArrayList<>();
+    Exception cause = null;
+    int chunk = batchSize;
+    
+    long start = System.nanoTime();
+    Connection conn = acquireConnection();
+    try {
+      for (int from = 0; from < list.size(); from += chunk) {
+        int to = Math.min(from + chunk, list.size());
+        try {
+          saveChunk(conn, list.subList(from, to), tipi.subList(from, to), failed);
+        }
+        catch(SQLException | RuntimeException e) {
+          rejected.addAll(list.subList(from, to));
+          if (cause == null) {
+            cause = e;
+          } else {
+            cause.addSuppressed(e);
+          }
+        }
+      }
+    }
+    finally {
+      releaseConnection(conn);
+      metrics.record(UserManagerMetrics.Operation.SAVE_ALL, null, start);
+    }
+    
+    Set<User> notSaved = Collections.newSetFromMap(new IdentityHashMap<User, Boolean>());
+    notSaved.addAll(rejected);
+    for (User user : list) {
+      if (!notSaved.contains(user)) {
+        userSaved(user);
+      }
+    }
+    
+    if (!rejected.isEmpty()) {
+      throw new BatchSaveException(rejected, failed, cause);
+    }
+  }
+  
+  /**
+   * Esegue il commit misurandone la durata
+   */
+  private void commit(Connection conn) throws SQLException {
+    AsyncExecutor.beforeCommit();
+    long start = System.nanoTime();
+    conn.commit();
+    metrics.record(UserManagerMetrics.Operation.COMMIT, null, start);
+  }
+  
+  /**
+   * Salva un blocco di utenti in una transazione
+   * 
+   * @param conn la connessione da usare
+   * @param users gli utenti del blocco
+   * @param tipi il tipo di ciascun utente
+   * @param failed riceve gli utenti indicati dal driver come causa dell'errore
+   * @throws SQLException se il blocco è stato annullato
+   */
+  private void saveChunk(Connection conn, List<User> users, List<String> tipi, List<User> failed) throws SQLException {
+    Long[] oldIds = new Long[users.size()];
+    for (int i = 0; i < users.size(); i++) {
+      oldIds[i] = users.get(i).getId();
+    }
+    
+    // Utenti raggruppati per tabella del sottotipo
+    Map<UserMapper, List<User>> perTipo = new LinkedHashMap<>();
+    for (User user : users) {
+      perTipo.computeIfAbsent(UserMappers.of(user), k -> new ArrayList<>()).add(user);
+    }
+    
+    conn.setAutoCommit(false);
+    List<User> current = users;
+    try {
+      PreparedStatement stmt = prepare(conn, INSERT_UTENTE, Statement.RETURN_GENERATED_KEYS);
+      for (int i = 0; i < users.size(); i++) {
+        bindUtente(stmt, users.get(i), tipi.get(i));
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+      
+      // Le chiavi generate arrivano nello stesso ordine degli INSERT
+      try (ResultSet genkeys = stmt.getGeneratedKeys()) {
+        for (User user : users) {
+          if (!genkeys.next()) {
+            throw new SQLException("No ID generated for user");
+          }
+          user.setId(genkeys.getLong(1));
+        }
+      }
+      
+      for (Map.Entry<UserMapper, List<User>> e : perTipo.entrySet()) {
+        current = e.getValue();
+        PreparedStatement stmt2 = prepare(conn, e.getKey().insertSql());
+        for (User user : current) {
+          e.getKey().bindInsert(stmt2, user);
+          stmt2.addBatch();
+        }
+        stmt2.executeBatch();
+      }
+      
+      commit(conn);
+    }
+    catch(SQLException | RuntimeException e) {
+      conn.rollback();
+      metrics.rollback();
+      for (int i = 0; i < users.size(); i++) {
+        users.get(i).setId(oldIds[i]);
+      }
+      
+      if (e instanceof BatchUpdateException) {
+        int[] counts = ((BatchUpdateException) e).getUpdateCounts();
+        for (int i = 0; i < counts.length && i < current.size(); i++) {
+          if (counts[i] == Statement.EXECUTE_FAILED) {
+            failed.add(current.get(i));
+          }
+        }
+        // Il driver si è fermato al primo errore
+        if (counts.length < current.size() && counts.length > 0 && counts[counts.length - 1] != Statement.EXECUTE_FAILED) {
+          failed.add(current.get(counts.length));
+        }
+      }
+      throw e;
+    }
+    finally {
+      conn.setAutoCommit(true);
+    }
+  }
+  
+  /**
+   * Ritorna il valore della colonna tipo_utente per un utente
+   * 
+   * @param user l'utente
+   * @return il tipo dell'utente
+   * @throws Exception se l'utente non è di un tipo salvabile
+   */
+  static String tipoUtente(User user) throws Exception {
+    UserMapper mapper = UserMappers.of(user);
+    if (mapper == null) {
+      throw new Exception("Invalid object");
+    }
+    return mapper.tipo().getValue();
+  }
+  
+  /**
+   * Imposta i parametri di INSERT_UTENTE
+   */
+  private static void bindUtente(PreparedStatement stmt, User user, String tipo_utente) throws SQLException {
+    stmt.setString(1, user.getLogin());
+    stmt.setString(2, user.getPassword());
+    stmt.setString(3, user.getEmail());
+    stmt.setString(4, user.getNome());
+    stmt.setString(5, user.getCognome());
+    stmt.setString(6, tipo_utente);
+  }
+  
+  /**
+   * Estrae un utente dal database in base al suo ID univoco
+   *
+   * @param id l'ID dell'utente
+   * @return l'eventuale utente trovato o null se non ha trovato niente
+   */
+  @Override
+  public User find(Long id) throws SQLException,Exception {
+    if (id == null) {
+      throw new NullPointerException();
+    }
+    
+    if (id <= 0) {
+      throw new Exception("Invalid ID");
+    }
+    
+    long start = System.nanoTime();
+    User user = null;
+    try {
+      UserCache cache = userCache;
+      if (cache != null) {
+        user = cache.getById(id);
+        if (user != null) {
+          return user;
+        }
+      }
+      
+      long generation = cacheGeneration();
+      user = read(conn -> cacheRead(conn, generation, loadById(conn, id)));
+      return user;
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.FIND, TipoUtente.of(user), start);
+    }
+  }
+  
+  /**
+   * Estrae un utente in modo asincrono: vedi find() e, per la gestione della
+   * concorrenza e dell'annullamento, saveAsync().
+   *
+   * @param id l'ID dell'utente
+   * @return il future dell'utente, completato con null se non esiste
+   */
+  public CompletableFuture<User> findAsync(final Long id) {
+    return submit(() -> find(id));
+  }
+  
+  /**
+   * Legge un utente per ID con la modalità di lettura corrente
+   */
+  private User loadById(Connection conn, long id) throws SQLException, Exception {
+    if (fetchMode == FetchMode.JOINED) {
+      PreparedStatement st = prepare(conn, UserQueries.FIND_BY_ID);
+      st.setLong(1, id);
+      try (ResultSet res = executeQuery(st)) {
+        return joinedUserFactory(res);
+      }
+    }
+    
+    PreparedStatement st = prepare(conn, "SELECT * FROM utenti WHERE id = ?");
+    st.setLong(1, id);
+    try (ResultSet res = executeQuery(st)) {
+      return fetchMode == FetchMode.HEADER_ONLY ? headerFactory(res) : userFactory(res);
+    }
+  }
+
+  /**
+   * Estra un utente dal database usando la sua login
+   *
+   * @param login la stringa di login da cercare
+   * @return l'eventuale utente trovato o null se non ha trovato niente
+   * @throws java.sql.SQLException
+   */
+  @Override
+  public User findByLogin(String login) throws SQLException, Exception {
+    if (login == null) {
+      throw new NullPointerException();
+    }
+    
+    long start = System.nanoTime();
+    User user = null;
+    try {
+      UserCache cache = userCache;
+      if (cache != null) {
+        user = cache.getByLogin(login);
+        if (user != null) {
+          return user;
+        }
+      }
+      
+      long generation = cacheGeneration();
+      user = read(conn -> cacheRead(conn, generation, loadByLogin(conn, login)));
+      return user;
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.FIND_BY_LOGIN, TipoUtente.of(user), start);
+    }
+  }
+  
+  /**
+   * Estrae un utente per login in modo asincrono: vedi findByLogin() e, per
+   * la gestione della concorrenza e dell'annullamento, saveAsync().
+   *
+   * @param login la login da cercare
+   * @return il future dell'utente, completato con null se non esiste
+   */
+  public CompletableFuture<User> findByLoginAsync(final String login) {
+    return submit(() -> findByLogin(login));
+  }
+  
+  /**
+   * Estrae gli utenti con un indirizzo email
+   *
+   * @param email l'indirizzo da cercare
+   * @return gli utenti trovati in ordine di ID, eventualmente nessuno
+   * @throws SQLException
+   * @throws Exception
+   */
+  public List<User> findByEmail(String email) throws SQLException, Exception {
+    return findAllBy(UserQueries.FIND_BY_EMAIL, 1, email);
+  }
+  
+  /**
+   * Estrae uno studente usando la sua matricola
+   *
+   * @param matricola la matricola da cercare
+   * @return l'eventuale studente trovato o null se non ha trovato niente
+   * @throws SQLException
+   * @throws Exception
+   */
+  public Studente findByMatricola(String matricola) throws SQLException, Exception {
+    List<User> users = findAllBy(UserQueries.FIND_BY_MATRICOLA, 1, matricola);
+    return users.isEmpty() ? null : (Studente) users.get(0);
+  }
+  
+  /**
+   * Estrae un'azienda usando la sua partita IVA
+   *
+   * @param partitaIva la partita IVA da cercare
+   * @return l'eventuale azienda trovata o null se non ha trovato niente
+   * @throws SQLException
+   * @throws Exception
+   */
+  public Azienda findByPartitaIva(String partitaIva) throws SQLException, Exception {
+    List<User> users = findAllBy(UserQueries.FIND_BY_PARTITA_IVA, 1, partitaIva);
+    return users.isEmpty() ? null : (Azienda) users.get(0);
+  }
+  
+  /**
+   * Estrae gli utenti con un codice fiscale: operatori, tutor accademici e
+   * tutor aziendali. Il codice fiscale è univoco per ciascun tipo, ma la
+   * stessa persona può essere registrata con più tipi.
+   *
+   * @param codiceFiscale il codice fiscale da cercare
+   * @return gli utenti trovati, al più uno per tipo
+   * @throws SQLException
+   * @throws Exception
+   */
+  public List<User> findByCodiceFiscale(String codiceFiscale) throws SQLException, Exception {
+    return findAllBy(UserQueries.FIND_BY_CODICE_FISCALE, 3, codiceFiscale);
+  }
+  
+  /**
+   * Estrae i tutor aziendali di un'azienda
+   *
+   * @param azienda l'azienda, con ID impostato
+   * @return i tutor in ordine di ID, eventualmente nessuno
+   * @throws SQLException
+   * @throws Exception
+   */
+  public List<TutorAziendale> findTutors(Azienda azienda) throws SQLException, Exception {
+    if (azienda.getId() == null) {
+      throw new NullPointerException();
+    }
+    return prefetchTutors(Collections.singletonList(azienda)).get(azienda.getId());
+  }
+  
+  /**
+   * Estrae l'azienda di un tutor aziendale
+   *
+   * @param tutor il tutor
+   * @return l'azienda o null se il tutor non ne ha una
+   * @throws SQLException
+   * @throws Exception
+   */
+  public Azienda findAzienda(TutorAziendale tutor) throws SQLException, Exception {
+    return prefetchAziende(Collections.singletonList(tutor)).get(tutor.getIdAzienda());
+  }
+  
+  /**
+   * Estrae con una sola query i tutor di tutte le aziende di un elenco di
+   * utenti, invece di una findTutors per azienda.
+   *
+   * @param users gli utenti; quelli che non sono aziende vengono ignorati
+   * @return i tutor di ogni azienda in ordine di ID, per ID dell'azienda;
+   *         le aziende senza tutor hanno un elenco vuoto
+   * @throws SQLException
+   * @throws Exception
+   */
+  public Map<Long, List<TutorAziendale>> prefetchTutors(Collection<? extends User> users) throws SQLException, Exception {
+    Map<Long, List<TutorAziendale>> tutors = new LinkedHashMap<>();
+    for (User user : users) {
+      if (user instanceof Azienda && user.getId() != null) {
+        tutors.putIfAbsent(user.getId(), new ArrayList<>());
+      }
+    }
+    if (tutors.isEmpty()) {
+      return tutors;
+    }
+    
+    for (User user : findAllIn(UserQueries.FIND_TUTORS_BY_AZIENDE, tutors.keySet())) {
+      TutorAziendale tutor = (TutorAziendale) user;
+      tutors.get(tutor.getIdAzienda()).add(tutor);
+    }
+    return tutors;
+  }
+  
+  /**
+   * Estrae con una sola query le aziende di tutti i tutor aziendali di un
+   * elenco di utenti, invece di una findAzienda per tutor. Le aziende già
+   * nella cache degli utenti non vengono lette dal database.
+   *
+   * @param users gli utenti; quelli che non sono tutor aziendali vengono ignorati
+   * @return le aziende per ID
+   * @throws SQLException
+   * @throws Exception
+   */
+  public Map<Long, Azienda> prefetchAziende(Collection<? extends User> users) throws SQLException, Exception {
+    // Completa prima con una query per tabella i tutor letti senza sottotipo
+    List<User> tutors = new ArrayList<>();
+    for (User user : users) {
+      if (user instanceof TutorAziendale) {
+        tutors.add(user);
+      }
+    }
+    hydrateAll(tutors);
+    
+    Map<Long, Azienda> aziende = new HashMap<>();
+    Set<Long> missing = new LinkedHashSet<>();
+    UserCache cache = userCache;
+    for (User user : tutors) {
+      Long id = ((TutorAziendale) user).getIdAzienda();
+      if (id == null || aziende.containsKey(id) || missing.contains(id)) {
+        continue;
+      }
+      User cached = cache != null ? cache.getById(id) : null;
+      if (cached instanceof Azienda) {
+        aziende.put(id, (Azienda) cached);
+      } else {
+        missing.add(id);
+      }
+    }
+    
+    for (User user : findAllIn(UserQueries.FIND_BY_IDS, missing)) {
+      if (user instanceof Azienda) {
+        aziende.put(user.getId(), (Azienda) user);
+      }
+    }
+    return aziende;
+  }
+  
+  /**
+   * Legge gli utenti di una query completata con una condizione IN sugli ID,
+   * a blocchi di getBatchSize() ID
+   */
+  private List<User> findAllIn(String sql, Collection<Long> ids) throws SQLException, Exception {
+    if (ids.isEmpty()) {
+      return new ArrayList<>();
+    }
+    
+    List<Long> list = new ArrayList<>(ids);
+    int chunk = batchSize;
+    List<User> users;
+    long start = System.nanoTime();
+    long generation = cacheGeneration();
+    try {
+      users = read(conn -> {
+        List<User> found = new ArrayList<>(list.size());
+        for (int from = 0; from < list.size(); from += chunk) {
+          List<Long> part = list.subList(from, Math.min(from + chunk, list.size()));
+          // Parametri arrotondati a una potenza di due come in hydrateChunk
+          int count = part.size() == 1 ? 1 : Integer.highestOneBit(part.size() - 1) << 1;
+          PreparedStatement st = prepare(conn, UserQueries.inList(sql, count));
+          for (int i = 0; i < count; i++) {
+            st.setLong(i + 1, part.get(Math.min(i, part.size() - 1)));
+          }
+          try (ResultSet res = st.executeQuery()) {
+            while (res.next()) {
+              found.add(cacheRead(conn, generation, UserQueries.mapRow(res)));
+            }
+          }
+        }
+        return found;
+      });
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.RELATIONS, null, start);
+    }
+    
+    return users;
+  }
+  
+  /**
+   * Esegue una lettura per chiave secondaria, impostando il valore in tutti
+   * i parametri della query
+   */
+  private List<User> findAllBy(String sql, int params, String value) throws SQLException, Exception {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    
+    List<User> users;
+    long start = System.nanoTime();
+    long generation = cacheGeneration();
+    try {
+      users = read(conn -> {
+        PreparedStatement st = prepare(conn, sql);
+        for (int i = 1; i <= params; i++) {
+          st.setString(i, value);
+        }
+        List<User> found = new ArrayList<>(1);
+        try (ResultSet res = st.executeQuery()) {
+          while (res.next()) {
+            found.add(cacheRead(conn, generation, UserQueries.mapRow(res)));
+          }
+        }
+        return found;
+      });
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.FIND_BY_KEY, null, start);
+    }
+    
+    return users;
+  }
+  
+  /**
+   * Esegue la query principale di una lettura misurandone la durata
+   */
+  private ResultSet executeQuery(PreparedStatement st) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return st.executeQuery();
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.QUERY_UTENTI, null, start);
+    }
+  }
+  
+  /**
+   * Legge un utente per login con la modalità di lettura corrente
+   */
+  private User loadByLogin(Connection conn, String login) throws SQLException, Exception {
+    if (fetchMode == FetchMode.JOINED) {
+      PreparedStatement st = prepare(conn, UserQueries.FIND_BY_LOGIN);
+      st.setString(1, login);
+      try (ResultSet res = executeQuery(st)) {
+        return joinedUserFactory(res);
+      }
+    }
+    
+    PreparedStatement st = prepare(conn, "SELECT * FROM utenti WHERE login = ? LIMIT 1");
+    st.setString(1, login);
+    try (ResultSet res = executeQuery(st)) {
+      return fetchMode == FetchMode.HEADER_ONLY ? headerFactory(res) : userFactory(res);
+    }
+  }
+  
+  /**
+   * Ritorna una pagina dell'elenco degli utenti, in ordine di ID.
+   *
+   * La paginazione parte dall'ultimo ID della pagina precedente invece di
+   * saltare le righe con OFFSET: ogni pagina costa quanto la prima.
+   *
+   * @param filter i criteri di selezione
+   * @param afterId l'ID dopo cui iniziare, 0 per la prima pagina
+   * @param limit il numero massimo di utenti della pagina
+   * @return la pagina di utenti
+   * @throws SQLException
+   * @throws Exception
+   */
+  public UserPage list(UserFilter filter, long afterId, int limit) throws SQLException, Exception {
+    if (filter == null) {
+      throw new NullPointerException();
+    }
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Invalid page size");
+    }
+    
+    // Una riga in più per sapere se esiste la pagina successiva
+    List<User> users = loadPage(filter, afterId, limit + 1);
+    boolean more = users.size() > limit;
+    if (more) {
+      users.remove(limit);
+    }
+    long lastId = users.isEmpty() ? afterId : users.get(users.size() - 1).getId();
+    return new UserPage(users, lastId, more);
+  }
+  
+  /**
+   * Legge tutti gli utenti selezionati dal filtro, in ordine di ID,
+   * passandoli uno alla volta al visitatore.
+   *
+   * Gli utenti vengono letti a pagine di getFetchSize() righe, quindi la
+   * memoria usata non dipende dal numero di utenti. La connessione viene
+   * restituita tra una pagina e l'altra: il visitatore può usare a sua volta
+   * lo UserManager.
+   *
+   * @param filter i criteri di selezione
+   * @param visitor il visitatore
+   * @throws SQLException
+   * @throws Exception se la lettura fallisce o il visitatore la interrompe
+   */
+  public void forEach(UserFilter filter, UserVisitor visitor) throws SQLException, Exception {
+    if (filter == null || visitor == null) {
+      throw new NullPointerException();
+    }
+    
+    long afterId = 0;
+    while (true) {
+      int size = fetchSize;
+      List<User> users = loadPage(filter, afterId, size);
+      for (User user : users) {
+        visitor.visit(user);
+      }
+      if (users.size() < size) {
+        return;
+      }
+      afterId = users.get(users.size() - 1).getId();
+    }
+  }
+  
+  /**
+   * Ritorna un publisher degli utenti di un tipo, in ordine di ID.
+   *
+   * Ogni sottoscrizione legge gli utenti da un proprio cursore sul database,
+   * consegnandoli solo quando il subscriber li richiede, e tiene una
+   * connessione finché non viene completata o annullata. Con la connessione
+   * condivisa le altre operazioni attendono la fine della sottoscrizione:
+   * in tal caso il subscriber non deve usare lo UserManager in onNext, dove
+   * le operazioni sincrone falliscono invece di attendere per sempre.
+   *
+   * @param tipo il tipo degli utenti, null per tutti
+   * @return il publisher
+   */
+  public Flow.Publisher<User> publish(TipoUtente tipo) {
+    return new UserPublisher(this, asyncExecutor.unbounded(), tipo);
+  }
+  
+  /**
+   * Prepara uno statement non in cache per leggere un resultset riga per
+   * riga: con Connector/J un fetch size di Integer.MIN_VALUE fa leggere dal
+   * server una riga alla volta invece dell'intero resultset. Lo statement va
+   * chiuso dal chiamante.
+   */
+  PreparedStatement prepareCursor(Connection conn, String sql) throws SQLException {
+    PreparedStatement st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    st.setFetchSize(Integer.MIN_VALUE);
+    return traced(st, sql);
+  }
+  
+  /**
+   * Legge al massimo limit utenti con ID maggiore di afterId
+   */
+  private List<User> loadPage(UserFilter filter, long afterId, int limit) throws SQLException, Exception {
+    long start = System.nanoTime();
+    try {
+      return read(conn -> {
+        PreparedStatement stmt = prepare(conn, UserQueries.list(filter));
+        UserQueries.bindList(stmt, filter, afterId, limit);
+        stmt.setFetchSize(fetchSize);
+        List<User> users = new ArrayList<>(Math.min(limit, fetchSize));
+        try (ResultSet res = stmt.executeQuery()) {
+          while (res.next()) {
+            users.add(UserQueries.mapRow(res));
+          }
+        }
+        return users;
+      });
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.LIST, null, start);
+    }
+  }
+  
+  /**
+   * Ritorna una pagina di riepiloghi degli utenti, in ordine di login.
+   * 
+   * I riepiloghi vengono letti con una query sull'indice utenti_summary,
+   * senza costruire gli utenti né leggere password e dati dei sottotipi. Per
+   * la pagina successiva si passa la login dell'ultimo riepilogo.
+   * 
+   * @param tipo il tipo degli utenti, null per tutti
+   * @param afterLogin la login dopo cui iniziare, null per la prima pagina
+   * @param limit il numero massimo di riepiloghi
+   * @return i riepiloghi, in ordine di login
+   * @throws SQLException
+   * @throws Exception
+   */
+  public List<UserSummary> listSummaries(TipoUtente tipo, String afterLogin, int limit) throws SQLException, Exception {
+    return loadSummaries(null, tipo, afterLogin, limit);
+  }
+  
+  /**
+   * Ritorna i riepiloghi degli utenti la cui login inizia con un prefisso,
+   * in ordine di login: vedi listSummaries.
+   * 
+   * @param loginPrefix il prefisso della login
+   * @param tipo il tipo degli utenti, null per tutti
+   * @param limit il numero massimo di riepiloghi
+   * @return i riepiloghi, in ordine di login
+   * @throws SQLException
+   * @throws Exception
+   */
+  public List<UserSummary> searchSummaries(String loginPrefix, TipoUtente tipo, int limit) throws SQLException, Exception {
+    if (loginPrefix == null) {
+      throw new NullPointerException();
+    }
+    return loadSummaries(loginPrefix, tipo, null, limit);
+  }
+  
+  /**
+   * Legge al massimo limit riepiloghi con login maggiore di afterLogin
+   */
+  private List<UserSummary> loadSummaries(String prefix, TipoUtente tipo, String afterLogin, int limit) throws SQLException, Exception {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Invalid page size");
+    }
+    
+    long start = System.nanoTime();
+    try {
+      return read(conn -> {
+        PreparedStatement stmt = prepare(conn, UserQueries.summaries(prefix != null, tipo));
+        int i = 1;
+        stmt.setString(i++, afterLogin != null ? afterLogin : "");
+        if (prefix != null) {
+          stmt.setString(i++, UserQueries.likePrefix(prefix));
+        }
+        if (tipo != null) {
+          stmt.setString(i++, tipo.getValue());
+        }
+        stmt.setInt(i, limit);
+        stmt.setFetchSize(fetchSize);
+        List<UserSummary> summaries = new ArrayList<>(Math.min(limit, fetchSize));
+        try (ResultSet res = stmt.executeQuery()) {
+          while (res.next()) {
+            summaries.add(UserQueries.mapSummary(res));
+          }
+        }
+        return summaries;
+      });
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.SUMMARY, tipo, start);
+    }
+  }
+  
+  /**
+   * Verifica se un valore è ancora libero in una colonna UNIQUE.
+   *
+   * Se è stato costruito l'indice di disponibilità, i valori che l'indice
+   * esclude non richiedono accessi al database; gli altri vengono cercati con
+   * una query sulla colonna.
+   *
+   * @param key la colonna
+   * @param value il valore da verificare
+   * @return true se nessun utente usa il valore
+   * @throws SQLException
+   * @throws Exception
+   */
+  public boolean isAvailable(UniqueKey key, String value) throws SQLException, Exception {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    
+    AvailabilityIndex index = availabilityIndex;
+    if (index != null && !index.mightBeTaken(key, value)) {
+      return true;
+    }
+    
+    long epoch = index != null ? index.epoch(key, value) : 0;
+    boolean taken;
+    Connection conn = acquireConnection();
+    try {
+      PreparedStatement stmt = prepare(conn, "SELECT 1 FROM " + key.getTable() + " WHERE " + key.getColumn() + " = ? LIMIT 1");
+      stmt.setString(1, value);
+      try (ResultSet res = stmt.executeQuery()) {
+        taken = res.next();
+      }
+    }
+    finally {
+      releaseConnection(conn);
+    }
+    
+    if (!taken && index != null) {
+      index.confirmFree(key, value, epoch);
+    }
+    return !taken;
+  }
+  
+  /**
+   * Verifica se una login è ancora libera
+   *
+   * @param login la login
+   * @return true se nessun utente usa la login
+   * @throws SQLException
+   * @throws Exception
+   */
+  public boolean isLoginAvailable(String login) throws SQLException, Exception {
+    return isAvailable(UniqueKey.LOGIN, login);
+  }
+  
+  /**
+   * Costruisce l'indice di disponibilità leggendo dal database tutti i valori
+   * delle colonne UNIQUE e lo mette in uso al posto del precedente.
+   *
+   * Da chiamare all'avvio; gli utenti salvati in seguito vengono aggiunti
+   * all'indice. Va ricostruito se il database viene modificato senza passare
+   * da UserManager.
+   *
+   * @throws SQLException
+   * @throws Exception
+   */
+  public void buildAvailabilityIndex() throws SQLException, Exception {
+    Connection conn = acquireConnection();
+    try {
+      long rows;
+      try (Statement stmt = conn.createStatement();
+           ResultSet res = stmt.executeQuery("SELECT COUNT(*) FROM utenti")) {
+        res.next();
+        rows = res.getLong(1);
+      }
+      
+      // Spazio per far crescere la tabella senza degradare subito il filtro
+      AvailabilityIndex index = new AvailabilityIndex(Math.max(1024, rows * 2));
+      buildingIndex = index;
+      try {
+        for (UniqueKey key : UniqueKey.values()) {
+          try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(1000);
+            try (ResultSet res = stmt.executeQuery("SELECT " + key.getColumn() + " FROM " + key.getTable())) {
+              while (res.next()) {
+                index.add(key, res.getString(1));
+              }
+            }
+          }
+        }
+        availabilityIndex = index;
+      }
+      finally {
+        buildingIndex = null;
+      }
+    }
+    finally {
+      releaseConnection(conn);
+    }
+  }
+  
+  /**
+   * Costruisce l'indice di ricerca leggendo dal database tutti gli utenti e
+   * lo mette in uso al posto del precedente.
+   *
+   * Da chiamare all'avvio; gli utenti salvati in seguito vengono aggiornati
+   * nell'indice. Va ricostruito se il database viene modificato senza
+   * passare da UserManager.
+   *
+   * @throws SQLException
+   * @throws Exception
+   */
+  public void buildSearchIndex() throws SQLException, Exception {
+    Connection conn = acquireConnection();
+    try {
+      SearchIndex index = new SearchIndex();
+      buildingSearchIndex = index;
+      try {
+        try (Statement stmt = conn.createStatement()) {
+          stmt.setFetchSize(1000);
+          try (ResultSet res = stmt.executeQuery(UserQueries.SELECT_SEARCH)) {
+            while (res.next()) {
+              index.load(UserQueries.mapSummary(res), res.getString(7), res.getString(8), res.getString(9));
+            }
+          }
+        }
+        searchIndex = index;
+      }
+      finally {
+        buildingSearchIndex = null;
+      }
+    }
+    finally {
+      releaseConnection(conn);
+    }
+  }
+  
+  /**
+   * Cerca gli utenti per nome, cognome, login e, per le aziende, per
+   * rappresentante legale e città della sede legale, tollerando errori di
+   * battitura. Richiede l'indice di ricerca.
+   *
+   * @param query le parole da cercare
+   * @param tipo il tipo di utente, null per tutti
+   * @param limit il numero massimo di risultati
+   * @return i riepiloghi degli utenti, dal più pertinente
+   */
+  public List<UserSummary> searchUsers(String query, TipoUtente tipo, int limit) {
+    SearchIndex index = searchIndex;
+    if (index == null) {
+      throw new IllegalStateException("Search index not built");
+    }
+    return index.search(query, tipo, limit);
+  }
+  
+  /**
+   * Data una password in chiaro, ritorna il suo hash nel formato di
+   * PasswordHasher.
+   *
+   * Il calcolo avviene sul pool dell'hasher: il thread chiamante attende il
+   * risultato.
+   *
+   * @param plainPassword la password in chiaro
+   * @return l'hash della password
+   * @throws java.util.concurrent.RejectedExecutionException se l'hasher è sovraccarico
+   */
+  public String encryptPassword(String plainPassword) {
+    return getPasswordHasher().hash(plainPassword);
+  }
+  
+  /**
+   * Verifica la password di un utente
+   *
+   * @param user l'utente letto dal database
+   * @param plainPassword la password in chiaro
+   * @return true se la password corrisponde
+   * @throws java.util.concurrent.RejectedExecutionException se l'hasher è sovraccarico
+   */
+  public boolean verifyPassword(User user, String plainPassword) {
+    return getPasswordHasher().verify(plainPassword, user.getPassword());
+  }
+  
+  /**
+   * Indica se la password salvata di un utente va ricalcolata con i
+   * parametri correnti, dopo averla verificata
+   *
+   * @param user l'utente letto dal database
+   * @return true se l'hash è in chiaro o più debole di quelli nuovi
+   */
+  public boolean needsRehash(User user) {
+    return getPasswordHasher().needsRehash(user.getPassword());
+  }
+  
+  /**
+   * Metodo factory che, dato un Resultset ottenuto con un'unica query su
+   * utenti e sottotipi, ritorna l'istanza di User approriata
+   * 
+   * @param res il resultset da cui creare l'istanza
+   * @return una sottoclasse di User o null se il resultset è vuoto
+   * @throws java.sql.SQLException
+   */
+  protected User joinedUserFactory(ResultSet res) throws SQLException, Exception {
+    if (res.next()) {
+      return UserQueries.mapRow(res);
+    }
+    return null;
+  }
+  
+  /**
+   * Metodo factory che, dato un Resultset, ritorna l'istanza di User approriata
+   * 
+   * @param res il resultset da cui creare l'istanza
+   * @return una sottoclasse di User o null se non è stato possibile costruire l'oggetto
+   * @throws java.sql.SQLException
+   */
+  protected User userFactory(ResultSet res) throws SQLException, Exception {
+    User user = null;
+    if(res.next()) {
+      Connection conn = res.getStatement().getConnection();
+      UserMapper mapper = UserMappers.of(res.getString("tipo_utente"));
+      if (mapper == null) {
+        throw new Exception("Invalid User");
+      }
+      
+      try (ResultSet res2 = subtypeRow(conn, mapper.selectSql(), res.getLong("id"))) {
+        user = mapper.read(res2, 0);
+      }
+      readUtenti(res, user);
+    }
+    return user;
+  }
+  
+  /**
+   * Metodo factory che, dato un Resultset sulla tabella utenti, ritorna
+   * un'istanza della sottoclasse appropriata con le sole colonne di utenti:
+   * quelle del sottotipo vengono lette al primo accesso.
+   * 
+   * @param res il resultset da cui creare l'istanza
+   * @return una sottoclasse di User o null se il resultset è vuoto
+   * @throws java.sql.SQLException
+   */
+  protected User headerFactory(ResultSet res) throws SQLException, Exception {
+    if (!res.next()) {
+      return null;
+    }
+    
+    UserMapper mapper = UserMappers.of(res.getString("tipo_utente"));
+    if (mapper == null) {
+      throw new Exception("Invalid User");
+    }
+    User user = mapper.create();
+    user.id = res.getLong("id");
+    readUtenti(res, user);
+    user.setDetailsSource(this);
+    return user;
+  }
+  
+  /**
+   * Imposta i campi di un utente dalle colonne di utenti, lette per nome
+   */
+  private static void readUtenti(ResultSet res, User user) throws SQLException {
+    user.login = res.getString("login");
+    user.email = res.getString("email");
+    user.nome = res.getString("nome");
+    user.cognome = res.getString("cognome");
+    user.password = res.getString("password");
+    user.version = res.getLong("version");
+  }
+  
+  /**
+   * Legge le colonne del sottotipo di un utente letto con
+   * FetchMode.HEADER_ONLY. Non fa niente se l'utente è già completo.
+   * 
+   * @param user l'utente
+   * @throws SQLException
+   * @throws Exception se manca la riga del sottotipo
+   */
+  public void hydrate(User user) throws SQLException, Exception {
+    if (!user.isHydrated()) {
+      hydrateAll(Collections.singletonList(user));
+    }
+  }
+  
+  /**
+   * Legge le colonne del sottotipo di più utenti letti con
+   * FetchMode.HEADER_ONLY: per ogni tabella una query con gli ID in IN, a
+   * blocchi di getBatchSize() utenti. Gli utenti già completi vengono
+   * ignorati.
+   * 
+   * @param users gli utenti
+   * @throws SQLException
+   * @throws Exception se manca la riga del sottotipo di un utente
+   */
+  public void hydrateAll(Collection<? extends User> users) throws SQLException, Exception {
+    // Utenti da completare raggruppati per tabella e per ID: lo stesso
+    // utente può comparire in più copie
+    Map<UserMapper, Map<Long, List<User>>> perTipo = new LinkedHashMap<>();
+    for (User user : users) {
+      if (!user.isHydrated()) {
+        perTipo.computeIfAbsent(UserMappers.of(user), k -> new LinkedHashMap<>())
+                .computeIfAbsent(user.getId(), k -> new ArrayList<>(1)).add(user);
+      }
+    }
+    if (perTipo.isEmpty()) {
+      return;
+    }
+    
+    int chunk = batchSize;
+    long start = System.nanoTime();
+    try {
+      read(conn -> {
+        for (Map.Entry<UserMapper, Map<Long, List<User>>> e : perTipo.entrySet()) {
+          List<Long> ids = new ArrayList<>(e.getValue().keySet());
+          for (int from = 0; from < ids.size(); from += chunk) {
+            hydrateChunk(conn, e.getKey(), ids.subList(from, Math.min(from + chunk, ids.size())), e.getValue());
+          }
+        }
+        return null;
+      });
+    }
+    catch(Exception e) {
+      metrics.failed(e);
+      throw e;
+    }
+    finally {
+      metrics.record(UserManagerMetrics.Operation.HYDRATE, null, start);
+    }
+  }
+  
+  /**
+   * Legge le righe del sottotipo di un blocco di ID e le imposta negli utenti
+   */
+  private void hydrateChunk(Connection conn, UserMapper mapper, List<Long> ids, Map<Long, List<User>> byId) throws SQLException, Exception {
+    // I parametri sono arrotondati a una potenza di due ripetendo l'ultimo
+    // ID, così che basti qualche statement in cache per ogni tabella
+    int count = ids.size() == 1 ? 1 : Integer.highestOneBit(ids.size() - 1) << 1;
+    PreparedStatement st = prepare(conn, mapper.selectSql(count));
+    for (int i = 0; i < count; i++) {
+      st.setLong(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+    }
+    
+    int found = 0;
+    try (ResultSet res = st.executeQuery()) {
+      while (res.next()) {
+        List<User> same = byId.get(res.getLong(1));
+        if (same != null) {
+          for (User user : same) {
+            mapper.load(res, 0, user);
+            user.hydrated();
+          }
+          found++;
+        }
+      }
+    }
+    if (found < ids.size()) {
+      throw new Exception("Invalid User");
+    }
+  }
+  
+  /**
+   * Legge la riga di una tabella dei sottotipi
+   * 
+   * @param conn la connessione da usare
+   * @param sql la query, con l'ID come unico parametro
+   * @param id l'ID dell'utente
+   * @return il resultset posizionato sulla riga, da chiudere dopo la lettura
+   * @throws Exception se la riga non esiste
+   */
+  private ResultSet subtypeRow(Connection conn, String sql, long id) throws SQLException, Exception {
+    PreparedStatement st = prepare(conn, sql);
+    st.setLong(1, id);
+    long start = System.nanoTime();
+    ResultSet res2 = st.executeQuery();
+    metrics.record(UserManagerMetrics.Operation.QUERY_SUBTYPE, null, start);
+    if (!res2.next()) {
+      res2.close();
+      throw new Exception("Invalid User");
+    }
+    return res2;
+  }
+  
+  /**
+   * Ritorna uno statement per la connessione, preso dalla cache degli
+   * statement della connessione. Lo statement non va chiuso.
+   * 
+   * @param conn la connessione ottenuta con acquireConnection()
+   * @param sql il testo SQL
+   * @return lo statement
+   * @throws SQLException 
+   */
+  protected PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+    return traced(statementCache(conn).prepare(sql), sql);
+  }
+  
+  private PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+    return traced(statementCache(conn).prepare(sql, autoGeneratedKeys), sql);
+  }
+  
+  /**
+   * Registra lo statement per l'annullamento delle operazioni asincrone e lo
+   * avvolge nel tracer, se impostato
+   */
+  private PreparedStatement traced(PreparedStatement st, String sql) throws SQLException {
+    AsyncExecutor.statementPrepared(st);
+    SqlTracer tracer = sqlTracer;
+    return tracer != null ? tracer.wrap(st, sql) : st;
+  }
+  
+  /**
+   * Ritorna la cache degli statement legata a una connessione
+   */
+  private StatementCache statementCache(Connection conn) {
+    if (conn == sharedInUse) {
+      synchronized (this) {
+        if (sharedStatementCache == null) {
+          sharedStatementCache = new StatementCache(conn, statementCacheSize, sharedStatementStatistics);
+        }
+        return sharedStatementCache;
+      }
+    }
+    ConnectionPool p = replicaConnections.get(conn);
+    if (p == null) {
+      p = poolConnections.get(conn);
+    }
+    return p.getStatementCache(conn);
+  }
+  
+  /**
+   * Prende una connessione per un'operazione: dal pool se è stato impostato
+   * un DataSource, altrimenti la connessione condivisa in uso esclusivo.
+   *
+   * Va sempre restituita con releaseConnection().
+   *
+   * @return la connessione da usare
+   * @throws Exception se non è disponibile nessuna connessione
+   */
+  protected Connection acquireConnection() throws Exception {
+    ConnectionPool p = pool;
+    if (p != null) {
+      Connection c = p.borrow();
+      poolConnections.put(c, p);
+      return c;
+    }
+    
+    if (connection == null) {
+      throw new Exception("No DB connection!");
+    }
+    Connection held = heldByCallback.get();
+    if (held != null && held == sharedInUse) {
+      // connectionLock non è rientrante: attenderlo sarebbe uno stallo
+      throw new SQLException("Shared connection already held by this thread");
+    }
+    
+    connectionLock.acquire();
+    Connection c = connection;
+    if (c == null) {
+      connectionLock.release();
+      throw new Exception("No DB connection!");
+    }
+    sharedInUse = c;
+    return c;
+  }
+  
+  /**
+   * Prende una connessione per una lettura: da una replica se ne sono state
+   * impostate e ce n'è una disponibile, altrimenti come acquireConnection().
+   * 
+   * Va sempre restituita con releaseConnection().
+   *
+   * @return la connessione da usare
+   * @throws Exception se non è disponibile nessuna connessione
+   */
+  protected Connection acquireReadConnection() throws Exception {
+    ReplicaRouter router = replicaRouter;
+    if (router != null) {
+      Object session = currentSession();
+      for (int i = router.getReplicaCount(); i > 0; i--) {
+        ConnectionPool p = router.choose(session);
+        if (p == null) {
+          break;
+        }
+        try {
+          Connection c = p.borrow();
+          replicaConnections.put(c, p);
+          return c;
+        }
+        catch(SQLException e) {
+          if (isConnectionError(e)) {
+            router.failed(p);
+          }
+        }
+      }
+    }
+    return acquireConnection();
+  }
+  
+  /**
+   * Mette in cache un utente letto, ma solo se letto dal primario: la cache è
+   * consultata prima di scegliere la replica, e un utente letto da una
+   * replica in ritardo vi resterebbe anche per le sessioni che hanno scritto.
+   * Non viene messo in cache nemmeno se nel frattempo la cache ha ricevuto
+   * un'invalidazione, che potrebbe riguardare proprio questo utente.
+   * 
+   * @param generation la generazione della cache letta prima della query
+   * @return l'utente
+   */
+  private <T extends User> T cacheRead(Connection conn, long generation, T user) {
+    UserCache cache = userCache;
+    if (cache != null && user != null && !replicaConnections.containsKey(conn)) {
+      cache.put(user, generation);
+    }
+    return user;
+  }
+  
+  /**
+   * Ritorna la generazione della cache degli utenti, da leggere prima di una
+   * query i cui risultati vanno messi in cache con cacheRead
+   */
+  private long cacheGeneration() {
+    UserCache cache = userCache;
+    return cache != null ? cache.getGeneration() : 0;
+  }
+  
+  /**
+   * Esegue una lettura su una connessione di acquireReadConnection(). Se la
+   * replica cade durante la lettura viene esclusa e la lettura ripetuta sul
+   * primario.
+   */
+  private <T> T read(Read<T> read) throws SQLException, Exception {
+    Connection conn = acquireReadConnection();
+    ConnectionPool replica = replicaConnections.get(conn);
+    try {
+      return read.run(conn);
+    }
+    catch(SQLException e) {
+      ReplicaRouter router = replicaRouter;
+      if (replica == null || router == null || !isConnectionError(e)) {
+        throw e;
+      }
+      router.failed(replica);
+    }
+    finally {
+      releaseConnection(conn);
+    }
+    
+    conn = acquireConnection();
+    try {
+      return read.run(conn);
+    }
+    finally {
+      releaseConnection(conn);
+    }
+  }
+  
+  /**
+   * Una lettura da eseguire su una connessione
+   */
+  private interface Read<T> {
+    T run(Connection conn) throws SQLException, Exception;
+  }
+  
+  /**
+   * Indica se l'errore riguarda la connessione invece della query (SQLState
+   * della classe 08)
+   */
+  private static boolean isConnectionError(SQLException e) {
+    return e.getSQLState() != null && e.getSQLState().startsWith("08");
+  }
+  
+  /**
+   * Restituisce una connessione ottenuta con acquireConnection() o
+   * acquireReadConnection()
+   * 
+   * @param c la connessione da restituire
+   */
+  protected void releaseConnection(Connection c) {
+    // Da qui lo statement può servire un'altra operazione: non va più annullato
+    AsyncExecutor.connectionReleased();
+    
+    if (c != null && c == sharedInUse) {
+      sharedInUse = null;
+      connectionLock.release();
+      return;
+    }
+    
+    ConnectionPool p = replicaConnections.remove(c);
+    if (p == null) {
+      p = poolConnections.remove(c);
+    }
+    if (p != null) {
+      p.release(c);
+    }
+  }
+  
+  /**
+   * Esegue una callback dell'utente mentre il thread corrente tiene una
+   * connessione: se è quella condivisa le operazioni sincrone della callback
+   * falliscono invece di attenderla per sempre.
+   *
+   * @param conn la connessione tenuta
+   * @param callback la callback
+   */
+  void runHolding(Connection conn, Runnable callback) {
+    heldByCallback.set(conn);
+    try {
+      callback.run();
+    }
+    finally {
+      heldByCallback.remove();
+    }
+  }
+  
+  /**
+   * Associa una sessione al thread corrente, ad esempio quella HTTP della
+   * richiesta servita: dopo una scrittura le letture della stessa sessione
+   * vanno al primario per la finestra del ReplicaRouter. Senza una sessione
+   * associata la sessione è il thread stesso. Le operazioni asincrone
+   * ereditano la sessione del thread che le avvia.
+   * 
+   * @param session l'identificativo della sessione
+   */
+  public static void bindSession(Object session) {
+    if (session == null) {
+      throw new NullPointerException();
+    }
+    SESSION.set(session);
+  }
+  
+  /**
+   * Rimuove la sessione associata al thread corrente
+   */
+  public static void unbindSession() {
+    SESSION.remove();
+  }
+  
+  private static Object currentSession() {
+    Object session = SESSION.get();
+    return session != null ? session : Thread.currentThread();
+  }
+  
+  /**
+   * Accoda un'operazione asincrona nella sessione del thread chiamante
+   */
+  private <T> CompletableFuture<T> submit(final Callable<T> task) {
+    final Object session = currentSession();
+    return asyncExecutor.submit(() -> {
+      Object previous = SESSION.get();
+      SESSION.set(session);
+      try {
+        return task.call();
+      }
+      finally {
+        if (previous != null) {
+          SESSION.set(previous);
+        } else {
+          SESSION.remove();
+        }
+      }
+    });
+  }
+  
+  /**
+   * Imposta le repliche da cui eseguire le letture, con pool di dimensione
+   * predefinita
+   * 
+   * @param replicas le sorgenti delle connessioni alle repliche, null o vuota per leggere dal primario
+   */
+  public void setReplicas(List<DataSource> replicas) {
+    setReplicas(replicas, ConnectionPool.DEFAULT_MAX_SIZE);
+  }
+  
+  /**
+   * Imposta le repliche da cui eseguire le letture: find, findByLogin, le
+   * letture per chiave secondaria, gli elenchi e publish. Le scritture, le
+   * verifiche di disponibilità e le riletture dopo un conflitto restano sul
+   * primario.
+   * 
+   * @param replicas le sorgenti delle connessioni alle repliche, null o vuota per leggere dal primario
+   * @param maxSize numero massimo di connessioni contemporanee per replica
+   */
+  public void setReplicas(List<DataSource> replicas, int maxSize) {
+    ReplicaRouter old = replicaRouter;
+    ReplicaRouter router = null;
+    if (replicas != null && !replicas.isEmpty()) {
+      router = new ReplicaRouter(replicas, maxSize);
+      for (int i = 0; i < router.getReplicaCount(); i++) {
+        router.getPool(i).setStatementCacheSize(statementCacheSize);
+      }
+    }
+    replicaRouter = router;
+    if (old != null) {
+      old.close();
+    }
+  }
+  
+  /**
+   * Ritorna il router delle letture sulle repliche, per configurarlo e
+   * leggerne le statistiche
+   * 
+   * @return il router o null se non ci sono repliche
+   */
+  public ReplicaRouter getReplicaRouter() {
+    return replicaRouter;
+  }
+  
+  /**
+   * Imposta una connessione al database. Se cambia la connessione attende
+   * che l'operazione in corso su quella precedente la restituisca.
+   * 
+   * @param conn la connessione al database
+   */
+  public void setConnection(Connection conn) {
+    if (conn == connection) {
+      return;
+    }
+    
+    connectionLock.acquireUninterruptibly();
+    try {
+      synchronized (this) {
+        if (sharedStatementCache != null) {
+          sharedStatementCache.close();
+          sharedStatementCache = null;
+        }
+      }
+      this.connection = conn;
+    }
+    finally {
+      connectionLock.release();
+    }
+  }
+  
+  /**
+   * Ritorna la connessione correnta al database
+   * 
+   * @return Connection la connessione al database
    */
   public Connection getConnection() {
-    return conn;
+    return connection;
+  }
+  
+  /**
+   * Imposta la sorgente delle connessioni al database, creando un pool di
+   * dimensione predefinita.
+   * 
+   * @param dataSource la sorgente delle connessioni, null per tornare alla connessione condivisa
+   */
+  public void setDataSource(DataSource dataSource) {
+    setDataSource(dataSource, ConnectionPool.DEFAULT_MAX_SIZE);
+  }
+  
+  /**
+   * Imposta la sorgente delle connessioni al database, creando un pool
+   * limitato. Ogni operazione usa una connessione del pool e la restituisce
+   * al termine.
+   * 
+   * @param dataSource la sorgente delle connessioni, null per tornare alla connessione condivisa
+   * @param maxSize numero massimo di connessioni contemporanee
+   */
+  public void setDataSource(DataSource dataSource, int maxSize) {
+    ConnectionPool old = pool;
+    ConnectionPool p = null;
+    if (dataSource != null) {
+      p = new ConnectionPool(dataSource, maxSize);
+      p.setStatementCacheSize(statementCacheSize);
+    }
+    pool = p;
+    asyncExecutor.setConcurrency(p != null ? maxSize : 1);
+    if (old != null) {
+      old.close();
+    }
+  }
+  
+  /**
+   * Ritorna la modalità di lettura degli utenti
+   * 
+   * @return la modalità di lettura
+   */
+  public FetchMode getFetchMode() {
+    return fetchMode;
+  }
+  
+  /**
+   * Imposta la modalità di lettura usata da find e findByLogin
+   * 
+   * @param fetchMode la modalità di lettura
+   */
+  public void setFetchMode(FetchMode fetchMode) {
+    if (fetchMode == null) {
+      throw new NullPointerException();
+    }
+    this.fetchMode = fetchMode;
+  }
+  
+  /**
+   * Ritorna la cache degli utenti
+   * 
+   * @return la cache o null se non è attiva
+   */
+  public UserCache getUserCache() {
+    return userCache;
+  }
+  
+  /**
+   * Imposta la cache usata da find e findByLogin. Gli utenti scritti da
+   * save vengono rimossi dalla cache.
+   * 
+   * @param userCache la cache, null per disattivarla
+   */
+  public void setUserCache(UserCache userCache) {
+    this.userCache = userCache;
+  }
+  
+  /**
+   * Aggiunge chi riceve gli utenti scritti con save, saveAll e update
+   * 
+   * @param listener il destinatario
+   */
+  public void addUserListener(UserListener listener) {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    listeners.add(listener);
+  }
+  
+  /**
+   * Rimuove un destinatario aggiunto con addUserListener
+   * 
+   * @param listener il destinatario
+   */
+  public void removeUserListener(UserListener listener) {
+    listeners.remove(listener);
+  }
+  
+  /**
+   * Ritorna il numero di utenti salvati in ogni transazione da saveAll
+   * 
+   * @return la dimensione dei blocchi
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+  
+  /**
+   * Imposta il numero di utenti salvati in ogni transazione da saveAll
+   * 
+   * @param batchSize la dimensione dei blocchi
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Invalid batch size");
+    }
+    this.batchSize = batchSize;
+  }
+  
+  /**
+   * Ritorna il numero di righe lette per volta negli elenchi
+   * 
+   * @return la dimensione delle pagine di forEach
+   */
+  public int getFetchSize() {
+    return fetchSize;
+  }
+  
+  /**
+   * Imposta il numero di righe lette per volta negli elenchi: è la
+   * dimensione delle pagine di forEach e il fetch size JDBC degli statement.
+   * 
+   * @param fetchSize il numero di righe
+   */
+  public void setFetchSize(int fetchSize) {
+    if (fetchSize <= 0) {
+      throw new IllegalArgumentException("Invalid fetch size");
+    }
+    this.fetchSize = fetchSize;
+  }
+  
+  /**
+   * Ritorna il tracer degli statement SQL
+   * 
+   * @return il tracer o null se la traccia è disattivata
+   */
+  public SqlTracer getSqlTracer() {
+    return sqlTracer;
+  }
+  
+  /**
+   * Imposta il tracer degli statement SQL: da questo momento gli statement
+   * preparati vengono tracciati e quelli lenti scritti nel suo log.
+   * 
+   * @param sqlTracer il tracer, null per disattivare la traccia
+   */
+  public void setSqlTracer(SqlTracer sqlTracer) {
+    this.sqlTracer = sqlTracer;
+  }
+  
+  /**
+   * Imposta il numero di PreparedStatement tenuti aperti in cache per ogni
+   * connessione
+   * 
+   * @param size numero massimo di statement, almeno StatementCache.MIN_SIZE
+   */
+  public void setStatementCacheSize(int size) {
+    if (size < StatementCache.MIN_SIZE) {
+      throw new IllegalArgumentException("Invalid cache size");
+    }
+    
+    statementCacheSize = size;
+    ConnectionPool p = pool;
+    if (p != null) {
+      p.setStatementCacheSize(size);
+    }
+    ReplicaRouter router = replicaRouter;
+    if (router != null) {
+      for (int i = 0; i < router.getReplicaCount(); i++) {
+        router.getPool(i).setStatementCacheSize(size);
+      }
+    }
+    synchronized (this) {
+      if (sharedStatementCache != null) {
+        sharedStatementCache.setMaxSize(size);
+      }
+    }
+  }
+  
+  /**
+   * Ritorna i contatori di utilizzo della cache degli statement delle
+   * connessioni in uso
+   * 
+   * @return le statistiche della cache
+   */
+  public StatementCache.Statistics getStatementCacheStatistics() {
+    ConnectionPool p = pool;
+    return p != null ? p.getStatementCacheStatistics() : sharedStatementStatistics;
+  }
+  
+  /**
+   * Ritorna l'indice di disponibilità in uso
+   * 
+   * @return l'indice o null se non è stato costruito
+   */
+  public AvailabilityIndex getAvailabilityIndex() {
+    return availabilityIndex;
+  }
+  
+  /**
+   * Imposta l'indice di disponibilità usato da isAvailable
+   * 
+   * @param index l'indice, null per verificare sempre sul database
+   */
+  public void setAvailabilityIndex(AvailabilityIndex index) {
+    this.availabilityIndex = index;
+  }
+  
+  /**
+   * Ritorna l'indice di ricerca in uso
+   * 
+   * @return l'indice o null se non è stato costruito
+   */
+  public SearchIndex getSearchIndex() {
+    return searchIndex;
+  }
+  
+  /**
+   * Imposta l'indice usato da searchUsers
+   * 
+   * @param index l'indice, null per disattivare la ricerca
+   */
+  public void setSearchIndex(SearchIndex index) {
+    this.searchIndex = index;
+  }
+  
+  /**
+   * Ritorna l'hasher delle password. Se non ne è stato impostato uno lo
+   * crea, tarando il numero di iterazioni su
+   * PasswordHasher.DEFAULT_TARGET_MILLIS: conviene chiamarlo all'avvio.
+   * 
+   * @return l'hasher delle password
+   */
+  public PasswordHasher getPasswordHasher() {
+    PasswordHasher h = passwordHasher;
+    if (h == null) {
+      synchronized (this) {
+        h = passwordHasher;
+        if (h == null) {
+          h = PasswordHasher.calibrated(PasswordHasher.DEFAULT_TARGET_MILLIS);
+          passwordHasher = h;
+        }
+      }
+    }
+    return h;
+  }
+  
+  /**
+   * Imposta l'hasher delle password, fermando il precedente
+   * 
+   * @param hasher l'hasher, null per ricrearlo con i parametri predefiniti
+   */
+  public void setPasswordHasher(PasswordHasher hasher) {
+    PasswordHasher old;
+    synchronized (this) {
+      old = passwordHasher;
+      passwordHasher = hasher;
+    }
+    if (old != null && old != hasher) {
+      old.shutdown();
+    }
+  }
+  
+  /**
+   * Ritorna latenze e contatori delle operazioni
+   * 
+   * @return le metriche
+   */
+  public UserManagerMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Pubblica le metriche sul server JMX della piattaforma
+   * 
+   * @throws JMException se la registrazione fallisce
+   */
+  public void registerMBeans() throws JMException {
+    metrics.register(ManagementFactory.getPlatformMBeanServer());
+  }
+  
+  /**
+   * Rimuove le metriche dal server JMX
+   */
+  public void unregisterMBeans() {
+    metrics.unregister();
+  }
+  
+  /**
+   * Ritorna il pool di connessioni in uso, da cui leggere le statistiche
+   * 
+   * @return il pool o null se si usa la connessione condivisa
+   */
+  public ConnectionPool getConnectionPool() {
+    return pool;
   }
   
 }
@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latenze e contatori di UserManager.
+ *
+ * Per ogni operazione c'è un istogramma complessivo; find, findByLogin e
+ * save hanno anche un istogramma per ogni tipo di utente. Le fasi interne
+ * (query su utenti, query sul sottotipo, commit) sono misurate a parte, così
+ * da capire dove si spende il tempo di un'operazione lenta.
+ *
+ * Con register() tutto viene pubblicato via JMX con nomi del tipo
+ * unitirocinio:type=UserManagerLatency,operation=find,tipo=studente e
+ * unitirocinio:type=UserManagerMetrics.
+ *
+ * @author Luca Gambetta
+ */
+public class UserManagerMetrics implements UserManagerMetricsMXBean {
+
+  /**
+   * Le operazioni misurate
+   */
+  public enum Operation {
+    /**
+     * find, compresi gli utenti trovati in cache
+     */
+    FIND,
+    /**
+     * findByLogin, compresi gli utenti trovati in cache
+     */
+    FIND_BY_LOGIN,
+    /**
+     * findByEmail, findByMatricola, findByCodiceFiscale e findByPartitaIva
+     */
+    FIND_BY_KEY,
+    /**
+     * save
+     */
+    SAVE,
+    /**
+     * saveAll
+     */
+    SAVE_ALL,
+    /**
+     * update, esclusi gli utenti senza modifiche
+     */
+    UPDATE,
+    /**
+     * Una pagina di list o forEach
+     */
+    LIST,
+    /**
+     * listSummaries e searchSummaries
+     */
+    SUMMARY,
+    /**
+     * La query su utenti di find e findByLogin (con i sottotipi se la lettura è JOINED)
+     */
+    QUERY_UTENTI,
+    /**
+     * La query sulla tabella del sottotipo in userFactory
+     */
+    QUERY_SUBTYPE,
+    /**
+     * hydrate e hydrateAll degli utenti letti con FetchMode.HEADER_ONLY
+     */
+    HYDRATE,
+    /**
+     * findTutors, findAzienda, prefetchTutors e prefetchAziende
+     */
+    RELATIONS,
+    /**
+     * Il commit di save e saveAll
+     */
+    COMMIT
+  };
+
+  private static final String DOMAIN = "unitirocinio";
+
+  private final Map<Operation, LatencyHistogram> operations = new EnumMap<>(Operation.class);
+  private final Map<TipoUtente, Map<Operation, LatencyHistogram>> perTipo = new EnumMap<>(TipoUtente.class);
+
+  private final AtomicLong rollbacks = new AtomicLong();
+  private final AtomicLong invalidUsers = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+
+  /**
+   * Nomi JMX registrati
+   */
+  private final List<ObjectName> registered = new ArrayList<>();
+  private MBeanServer server;
+
+  /**
+   * Crea gli istogrammi vuoti
+   */
+  public UserManagerMetrics() {
+    for (Operation op : Operation.values()) {
+      operations.put(op, new LatencyHistogram());
+    }
+    for (TipoUtente tipo : TipoUtente.values()) {
+      Map<Operation, LatencyHistogram> m = new EnumMap<>(Operation.class);
+      m.put(Operation.FIND, new LatencyHistogram());
+      m.put(Operation.FIND_BY_LOGIN, new LatencyHistogram());
+      m.put(Operation.SAVE, new LatencyHistogram());
+      m.put(Operation.UPDATE, new LatencyHistogram());
+      perTipo.put(tipo, m);
+    }
+  }
+
+  /**
+   * Registra la durata di un'operazione
+   *
+   * @param op l'operazione
+   * @param tipo il tipo di utente coinvolto, null se non noto
+   * @param startNanos l'istante di inizio, ottenuto con System.nanoTime()
+   */
+  public void record(Operation op, TipoUtente tipo, long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    operations.get(op).record(elapsed);
+    if (tipo != null) {
+      LatencyHistogram h = perTipo.get(tipo).get(op);
+      if (h != null) {
+        h.record(elapsed);
+      }
+    }
+  }
+
+  /**
+   * Conta un aggiornamento respinto per una versione non più attuale
+   */
+  public void conflict() {
+    conflicts.incrementAndGet();
+  }
+
+  /**
+   * Conta una transazione annullata
+   */
+  public void rollback() {
+    rollbacks.incrementAndGet();
+  }
+
+  /**
+   * Conta un'operazione fallita, se l'errore è un utente non valido
+   *
+   * @param e l'errore
+   */
+  public void failed(Exception e) {
+    if ("Invalid User".equals(e.getMessage())) {
+      invalidUsers.incrementAndGet();
+    }
+  }
+
+  /**
+   * Ritorna l'istogramma complessivo di un'operazione
+   *
+   * @param op l'operazione
+   * @return l'istogramma
+   */
+  public LatencyHistogram getHistogram(Operation op) {
+    return operations.get(op);
+  }
+
+  /**
+   * Ritorna l'istogramma di un'operazione per un tipo di utente
+   *
+   * @param op l'operazione
+   * @param tipo il tipo di utente
+   * @return l'istogramma o null se l'operazione non è misurata per tipo
+   */
+  public LatencyHistogram getHistogram(Operation op, TipoUtente tipo) {
+    return perTipo.get(tipo).get(op);
+  }
+
+  @Override
+  public long getRollbacks() {
+    return rollbacks.get();
+  }
+
+  @Override
+  public long getConflicts() {
+    return conflicts.get();
+  }
+
+  @Override
+  public long getInvalidUsers() {
+    return invalidUsers.get();
+  }
+
+  @Override
+  public void resetWindow() {
+    for (LatencyHistogram h : operations.values()) {
+      h.resetWindow();
+    }
+    for (Map<Operation, LatencyHistogram> m : perTipo.values()) {
+      for (LatencyHistogram h : m.values()) {
+        h.resetWindow();
+      }
+    }
+  }
+
+  /**
+   * Pubblica contatori e istogrammi su un server JMX
+   *
+   * @param mbs il server, di solito ManagementFactory.getPlatformMBeanServer()
+   * @throws JMException se la registrazione fallisce
+   */
+  public synchronized void register(MBeanServer mbs) throws JMException {
+    unregister();
+    server = mbs;
+    try {
+      add(new ObjectName(DOMAIN + ":type=UserManagerMetrics"), this);
+      for (Map.Entry<Operation, LatencyHistogram> e : operations.entrySet()) {
+        add(new ObjectName(DOMAIN + ":type=UserManagerLatency,operation=" + name(e.getKey())), e.getValue());
+      }
+      for (Map.Entry<TipoUtente, Map<Operation, LatencyHistogram>> t : perTipo.entrySet()) {
+        for (Map.Entry<Operation, LatencyHistogram> e : t.getValue().entrySet()) {
+          add(new ObjectName(DOMAIN + ":type=UserManagerLatency,operation=" + name(e.getKey())
+                  + ",tipo=" + t.getKey().getValue()), e.getValue());
+        }
+      }
+    }
+    catch(JMException e) {
+      unregister();
+      throw e;
+    }
+  }
+
+  private void add(ObjectName name, Object mbean) throws JMException {
+    // Un'istanza precedente (ad esempio dopo un redeploy) viene sostituita
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+    server.registerMBean(mbean, name);
+    registered.add(name);
+  }
+
+  /**
+   * Rimuove dal server JMX quanto pubblicato con register
+   */
+  public synchronized void unregister() {
+    for (ObjectName name : registered) {
+      try {
+        server.unregisterMBean(name);
+      }
+      catch(JMException e) {
+        // Già rimosso
+      }
+    }
+    registered.clear();
+    server = null;
+  }
+
+  private static String name(Operation op) {
+    return op.name().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Interfaccia JMX dei contatori di UserManager
+ *
+ * @author Luca Gambetta
+ */
+public interface UserManagerMetricsMXBean {
+
+  /**
+   * Ritorna il numero di transazioni annullate dall'avvio
+   *
+   * @return il numero di rollback
+   */
+  long getRollbacks();
+
+  /**
+   * Ritorna il numero di aggiornamenti respinti perché l'utente era stato
+   * modificato da altri dall'avvio
+   *
+   * @return il numero di conflitti
+   */
+  long getConflicts();
+
+  /**
+   * Ritorna il numero di letture fallite per utenti incompleti ("Invalid
+   * User") dall'avvio
+   *
+   * @return il numero di utenti non validi
+   */
+  long getInvalidUsers();
+
+  /**
+   * Azzera tutti gli istogrammi delle latenze e inizia una nuova finestra
+   */
+  void resetWindow();
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Lettura e scrittura della tabella di un sottotipo di User.
+ *
+ * Le implementazioni sono generate in compilazione da
+ * unitirocinio.processor.UserMapperProcessor per le classi annotate con
+ * MappedUser: le colonne sono lette per posizione e i campi impostati
+ * direttamente, senza riflessione. Si ottengono da UserMappers.
+ *
+ * @author Luca Gambetta
+ */
+interface UserMapper {
+
+  /**
+   * Ritorna la classe gestita
+   *
+   * @return la sottoclasse di User
+   */
+  Class<? extends User> type();
+
+  /**
+   * Ritorna il tipo di utente gestito
+   *
+   * @return il valore di tipo_utente
+   */
+  TipoUtente tipo();
+
+  /**
+   * Ritorna la tabella del sottotipo
+   *
+   * @return il nome della tabella
+   */
+  String table();
+
+  /**
+   * Ritorna la colonna con l'ID dell'utente
+   *
+   * @return il nome della colonna
+   */
+  String key();
+
+  /**
+   * Ritorna la colonna che identifica l'utente nei riepiloghi, con l'alias
+   * della tabella
+   *
+   * @return la colonna
+   */
+  String identifier();
+
+  /**
+   * Ritorna le colonne lette da read, con l'alias della tabella e prima fra
+   * tutte la colonna dell'ID, separate da virgole
+   *
+   * @return l'elenco delle colonne per una SELECT
+   */
+  String columns();
+
+  /**
+   * Ritorna il numero di colonne lette da read
+   *
+   * @return il numero di colonne
+   */
+  int columnCount();
+
+  /**
+   * Ritorna il LEFT JOIN della tabella del sottotipo con utenti, con alias u
+   *
+   * @return il testo SQL
+   */
+  String join();
+
+  /**
+   * Ritorna la lettura delle colonne di una riga della tabella per ID
+   *
+   * @return il testo SQL, con l'ID come unico parametro
+   */
+  String selectSql();
+
+  /**
+   * Ritorna la lettura delle colonne di più righe della tabella, ognuna
+   * preceduta dalla colonna dell'ID
+   *
+   * @param count il numero di ID
+   * @return il testo SQL, con gli ID come parametri
+   */
+  String selectSql(int count);
+
+  /**
+   * Ritorna l'INSERT di una riga della tabella
+   *
+   * @return il testo SQL
+   */
+  String insertSql();
+
+  /**
+   * Crea un utente vuoto della classe gestita
+   *
+   * @return l'utente
+   */
+  User create();
+
+  /**
+   * Crea l'utente dalle colonne del sottotipo nella riga corrente. Le altre
+   * colonne di utenti vanno impostate dal chiamante.
+   *
+   * @param res il ResultSet posizionato sulla riga
+   * @param offset il numero di colonne che precedono quelle del sottotipo
+   * @return l'utente o null se la riga non ha il sottotipo
+   * @throws SQLException
+   */
+  User read(ResultSet res, int offset) throws SQLException;
+
+  /**
+   * Imposta i campi del sottotipo di un utente esistente dalla riga corrente,
+   * senza segnarli come modificati
+   *
+   * @param res il ResultSet posizionato sulla riga
+   * @param offset il numero di colonne che precedono quelle del sottotipo
+   * @param user l'utente, della classe gestita
+   * @throws SQLException
+   */
+  void load(ResultSet res, int offset, User user) throws SQLException;
+
+  /**
+   * Imposta i parametri di insertSql
+   *
+   * @param stmt lo statement
+   * @param user l'utente, della classe gestita e con l'ID impostato
+   * @throws SQLException
+   */
+  void bindInsert(PreparedStatement stmt, User user) throws SQLException;
+
+  /**
+   * Ritorna il valore della colonna identifier di un utente, senza caricare
+   * i dati del sottotipo
+   *
+   * @param user l'utente, della classe gestita
+   * @return il valore, null se l'utente non è stato caricato
+   */
+  String identifierOf(User user);
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+/**
+ * Registro dei UserMapper generati in compilazione.
+ *
+ * Il mapper di una classe viene cercato una volta sola, risalendo le
+ * superclassi fino a una classe annotata con MappedUser, e conservato in un
+ * ClassValue: le ricerche successive non costano più di un accesso a un campo.
+ *
+ * @author Luca Gambetta
+ */
+final class UserMappers {
+
+  /**
+   * I mapper nell'ordine di TipoUtente
+   */
+  private static final UserMapper[] BY_TIPO = new UserMapper[TipoUtente.values().length];
+
+  static {
+    for (UserMapper m : UserMapperIndex.MAPPERS) {
+      BY_TIPO[m.tipo().ordinal()] = m;
+    }
+  }
+
+  private static final ClassValue<UserMapper> BY_CLASS = new ClassValue<UserMapper>() {
+    @Override
+    protected UserMapper computeValue(Class<?> type) {
+      for (Class<?> c = type; c != null && c != User.class; c = c.getSuperclass()) {
+        for (UserMapper m : BY_TIPO) {
+          if (m != null && m.type() == c) {
+            return m;
+          }
+        }
+      }
+      return null;
+    }
+  };
+
+  private UserMappers() {
+  }
+
+  /**
+   * Ritorna il mapper di un utente
+   *
+   * @param user l'utente
+   * @return il mapper o null se l'utente è null o non è di un tipo salvabile
+   */
+  static UserMapper of(User user) {
+    return user != null ? BY_CLASS.get(user.getClass()) : null;
+  }
+
+  /**
+   * Ritorna il mapper di un tipo di utente
+   *
+   * @param tipo il tipo
+   * @return il mapper o null se manca la classe del tipo
+   */
+  static UserMapper of(TipoUtente tipo) {
+    return BY_TIPO[tipo.ordinal()];
+  }
+
+  /**
+   * Ritorna il mapper per un valore della colonna tipo_utente
+   *
+   * @param tipo_utente il valore letto dal database
+   * @return il mapper o null se il valore è sconosciuto
+   */
+  static UserMapper of(String tipo_utente) {
+    for (UserMapper m : BY_TIPO) {
+      if (m != null && m.tipo().getValue().equals(tipo_utente)) {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Ritorna tutti i mapper, nell'ordine di TipoUtente
+   *
+   * @return i mapper
+   */
+  static UserMapper[] all() {
+    int n = 0;
+    for (UserMapper m : BY_TIPO) {
+      if (m != null) {
+        n++;
+      }
+    }
+    UserMapper[] all = new UserMapper[n];
+    n = 0;
+    for (UserMapper m : BY_TIPO) {
+      if (m != null) {
+        all[n++] = m;
+      }
+    }
+    return all;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Una pagina dell'elenco degli utenti, in ordine di ID.
+ *
+ * La pagina successiva si ottiene passando getLastId() a UserManager.list.
+ *
+ * @author Luca Gambetta
+ */
+public class UserPage {
+
+  private final List<User> users;
+  private final long lastId;
+  private final boolean more;
+
+  /**
+   * Crea una pagina
+   *
+   * @param users gli utenti della pagina
+   * @param lastId l'ID dell'ultimo utente, o quello di partenza se la pagina è vuota
+   * @param more true se ci sono altri utenti dopo questa pagina
+   */
+  public UserPage(List<User> users, long lastId, boolean more) {
+    this.users = Collections.unmodifiableList(users);
+    this.lastId = lastId;
+    this.more = more;
+  }
+
+  /**
+   * Ritorna gli utenti della pagina
+   *
+   * @return gli utenti, in ordine di ID
+   */
+  public List<User> getUsers() {
+    return users;
+  }
+
+  /**
+   * Ritorna l'ID da cui far partire la pagina successiva
+   *
+   * @return l'ID dell'ultimo utente della pagina
+   */
+  public long getLastId() {
+    return lastId;
+  }
+
+  /**
+   * Indica se esistono altri utenti dopo questa pagina
+   *
+   * @return true se c'è una pagina successiva
+   */
+  public boolean hasMore() {
+    return more;
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher degli utenti di un tipo, letti da un cursore aperto sul
+ * database.
+ *
+ * Ogni sottoscrizione apre una propria query alla prima richiesta, su una
+ * replica se configurata, e tiene una connessione finché non è conclusa o
+ * annullata. Le righe vengono lette
+ * e consegnate solo quando il subscriber le ha richieste: un subscriber
+ * lento non obbliga a tenere in memoria il resultset. Annullando la
+ * sottoscrizione il resultset viene chiuso e la connessione restituita
+ * subito dal thread che annulla, anche durante un onNext.
+ *
+ * Le consegne avvengono sui thread dell'esecutore asincrono dello
+ * UserManager, mai in parallelo per la stessa sottoscrizione, ma senza
+ * occupare i posti delle operazioni asincrone: un'operazione in attesa della
+ * connessione tenuta dalla sottoscrizione non ne blocca le consegne.
+ *
+ * @author Luca Gambetta
+ */
+final class UserPublisher implements Flow.Publisher<User> {
+
+  private final UserManager manager;
+  private final Executor executor;
+  private final TipoUtente tipo;
+
+  /**
+   * Crea un publisher
+   *
+   * @param manager lo UserManager da cui prendere le connessioni
+   * @param executor l'esecutore delle consegne
+   * @param tipo il tipo degli utenti, null per tutti
+   */
+  UserPublisher(UserManager manager, Executor executor, TipoUtente tipo) {
+    this.manager = manager;
+    this.executor = executor;
+    this.tipo = tipo;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super User> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException();
+    }
+
+    CursorSubscription s = new CursorSubscription(subscriber);
+    subscriber.onSubscribe(s);
+  }
+
+  /**
+   * Una sottoscrizione con il suo cursore
+   */
+  private final class CursorSubscription implements Flow.Subscription, Runnable {
+
+    private final Flow.Subscriber<? super User> subscriber;
+
+    /**
+     * Utenti richiesti e non ancora consegnati
+     */
+    private final AtomicLong demand = new AtomicLong();
+
+    /**
+     * Segnalazioni non ancora elaborate dal ciclo di consegna
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+
+    // Usati solo dal ciclo di consegna
+    private boolean done;
+    private boolean opened;
+
+    // Protetti dal lock della sottoscrizione: cancel li chiude da qualsiasi thread
+    private Connection conn;
+    private PreparedStatement stmt;
+    private ResultSet res;
+
+    CursorSubscription(Flow.Subscriber<? super User> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+      } else {
+        long d;
+        do {
+          d = demand.get();
+        } while (!demand.compareAndSet(d, d + n < 0 ? Long.MAX_VALUE : d + n));
+      }
+      signal();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      close();
+      signal();
+    }
+
+    private void signal() {
+      if (wip.getAndIncrement() == 0) {
+        try {
+          executor.execute(this);
+        }
+        catch(RuntimeException e) {
+          wip.set(0);
+          cancelled = true;
+          close();
+          subscriber.onError(e);
+        }
+      }
+    }
+
+    /**
+     * Ciclo di consegna: un solo thread alla volta
+     */
+    @Override
+    public void run() {
+      int missed = 1;
+      do {
+        drain();
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void drain() {
+      if (done) {
+        return;
+      }
+
+      if (cancelled) {
+        done = true;
+        close();
+        return;
+      }
+
+      Throwable invalid = invalidRequest;
+      if (invalid != null) {
+        fail(invalid);
+        return;
+      }
+
+      try {
+        while (demand.get() > 0 && !cancelled) {
+          if (!opened) {
+            opened = true;
+            open();
+          }
+          User user;
+          Connection held;
+          synchronized (this) {
+            if (res == null) {
+              // Chiuso da cancel
+              break;
+            }
+            if (!res.next()) {
+              close();
+              user = null;
+            } else {
+              user = UserQueries.mapRow(res);
+            }
+            held = conn;
+          }
+          if (user == null) {
+            done = true;
+            subscriber.onComplete();
+            return;
+          }
+          demand.decrementAndGet();
+          manager.runHolding(held, () -> subscriber.onNext(user));
+        }
+      }
+      catch(Exception e) {
+        if (cancelled) {
+          // Il cursore è stato chiuso durante la lettura
+          done = true;
+          close();
+          return;
+        }
+        manager.getMetrics().failed(e);
+        fail(e);
+        return;
+      }
+
+      if (cancelled) {
+        done = true;
+        close();
+      }
+    }
+
+    /**
+     * Apre la query e il cursore. La connessione viene attesa senza tenere
+     * il lock, così che cancel non debba aspettarla.
+     */
+    private void open() throws Exception {
+      Connection c = manager.acquireReadConnection();
+      synchronized (this) {
+        conn = c;
+        if (cancelled) {
+          close();
+          return;
+        }
+        String sql = UserQueries.stream(tipo);
+        stmt = manager.prepareCursor(conn, sql);
+        if (tipo != null) {
+          stmt.setString(1, tipo.getValue());
+        }
+        res = stmt.executeQuery();
+      }
+    }
+
+    private void fail(Throwable e) {
+      done = true;
+      close();
+      subscriber.onError(e);
+    }
+
+    /**
+     * Chiude il cursore e restituisce la connessione
+     */
+    private synchronized void close() {
+      try {
+        if (res != null) {
+          res.close();
+        }
+        if (stmt != null) {
+          stmt.close();
+        }
+      }
+      catch(SQLException e) {
+        // Niente da fare
+      }
+      finally {
+        res = null;
+        stmt = null;
+        if (conn != null) {
+          manager.releaseConnection(conn);
+          conn = null;
+        }
+      }
+    }
+  }
+}
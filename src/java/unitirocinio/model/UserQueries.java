@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Query SQL per la lettura degli utenti in un'unica interrogazione.
+ *
+ * La tabella utenti viene unita con LEFT JOIN a tutte le tabelle dei sottotipi:
+ * per ogni riga è valorizzata solo la parte del sottotipo indicato da
+ * tipo_utente. Le colonne sono elencate esplicitamente e lette per posizione:
+ * quelle di utenti qui, quelle dei sottotipi dai UserMapper generati.
+ *
+ * @author Luca Gambetta
+ */
+final class UserQueries {
+
+  /**
+   * Numero di colonne che precedono in SELECT_JOINED quelle di ogni
+   * sottotipo, nell'ordine di TipoUtente
+   */
+  private static final int[] OFFSETS = new int[TipoUtente.values().length];
+
+  /**
+   * SELECT con tutte le colonne di utenti e dei sottotipi, senza WHERE
+   */
+  static final String SELECT_JOINED = selectJoined();
+
+  /**
+   * SELECT dei riepiloghi, senza WHERE: le colonne di utenti sono tutte
+   * nell'indice utenti_summary, l'identificativo del sottotipo viene letto
+   * per chiave primaria
+   */
+  static final String SELECT_SUMMARY = selectSummary("");
+
+  /**
+   * Lettura di tutti gli utenti per SearchIndex: le colonne di SELECT_SUMMARY
+   * seguite dai valori indicizzati delle aziende
+   */
+  static final String SELECT_SEARCH = selectSummary(", a.nome_rappresentante, a.cognome_rappresentante, a.citta_sede_legale");
+
+  /**
+   * Lettura per ID univoco
+   */
+  static final String FIND_BY_ID = SELECT_JOINED + "WHERE u.id = ?";
+
+  /**
+   * Lettura per login
+   */
+  static final String FIND_BY_LOGIN = SELECT_JOINED + "WHERE u.login = ? LIMIT 1";
+
+  /**
+   * Lettura per email, che non è univoca
+   */
+  static final String FIND_BY_EMAIL = SELECT_JOINED + "WHERE u.email = ? ORDER BY u.id";
+
+  /**
+   * Lettura di uno studente per matricola
+   */
+  static final String FIND_BY_MATRICOLA = SELECT_JOINED + "WHERE s.matricola = ?";
+
+  /**
+   * Lettura di un'azienda per partita IVA
+   */
+  static final String FIND_BY_PARTITA_IVA = SELECT_JOINED + "WHERE a.partita_iva = ?";
+
+  /**
+   * Lettura per codice fiscale su operatori, tutor accademici e tutor
+   * aziendali: una SELECT per tabella, così che ognuna usi l'indice UNIQUE
+   * della propria colonna. Il codice fiscale va impostato in tutti e tre i
+   * parametri.
+   */
+  static final String FIND_BY_CODICE_FISCALE =
+          SELECT_JOINED + "WHERE o.codice_fiscale = ? " +
+          "UNION ALL " + SELECT_JOINED + "WHERE ta.codice_fiscale = ? " +
+          "UNION ALL " + SELECT_JOINED + "WHERE tz.codice_fiscale = ?";
+
+  /**
+   * Lettura degli utenti con gli ID indicati, da completare con inList
+   */
+  static final String FIND_BY_IDS = SELECT_JOINED + "WHERE u.id";
+
+  /**
+   * Lettura dei tutor aziendali delle aziende indicate, da completare con
+   * inList: usa l'indice tutor_aziendali_azienda
+   */
+  static final String FIND_TUTORS_BY_AZIENDE = SELECT_JOINED + "WHERE tz.azienda_id";
+
+  /**
+   * Costruisce la query per una pagina dell'elenco degli utenti: partenza
+   * dopo un ID (keyset) e ordinamento per ID, così che ogni pagina sia una
+   * lettura di un intervallo dell'indice indipendentemente dalla posizione.
+   *
+   * I parametri sono, nell'ordine: l'ID di partenza, i criteri impostati del
+   * filtro (vedi bindList) e il numero massimo di righe.
+   *
+   * @param filter i criteri di selezione
+   * @return il testo SQL
+   */
+  static String list(UserFilter filter) {
+    StringBuilder sql = new StringBuilder(SELECT_JOINED).append("WHERE u.id > ?");
+    if (filter.getTipo() != null) {
+      sql.append(" AND u.tipo_utente = ?");
+    }
+    if (filter.getIscrittoDal() != null) {
+      sql.append(" AND u.data_iscrizione >= FROM_UNIXTIME(?)");
+    }
+    if (filter.getIscrittoAl() != null) {
+      sql.append(" AND u.data_iscrizione < FROM_UNIXTIME(?)");
+    }
+    return sql.append(" ORDER BY u.id LIMIT ?").toString();
+  }
+
+  /**
+   * Costruisce la query che legge in un'unica scansione tutti gli utenti di
+   * un tipo, in ordine di ID. L'unico parametro, se presente, è il tipo.
+   *
+   * @param tipo il tipo degli utenti, null per tutti
+   * @return il testo SQL
+   */
+  static String stream(TipoUtente tipo) {
+    return SELECT_JOINED + (tipo != null ? "WHERE u.tipo_utente = ? " : "") + "ORDER BY u.id";
+  }
+
+  /**
+   * Costruisce la query per una pagina di riepiloghi in ordine di login,
+   * partendo dopo una login. I parametri sono, nell'ordine: la login di
+   * partenza, il prefisso se richiesto, il tipo se indicato e il numero
+   * massimo di righe.
+   *
+   * @param prefix true per filtrare le login con un prefisso
+   * @param tipo il tipo degli utenti, null per tutti
+   * @return il testo SQL
+   */
+  static String summaries(boolean prefix, TipoUtente tipo) {
+    StringBuilder sql = new StringBuilder(SELECT_SUMMARY).append("WHERE u.login > ?");
+    if (prefix) {
+      sql.append(" AND u.login LIKE ?");
+    }
+    if (tipo != null) {
+      sql.append(" AND u.tipo_utente = ?");
+    }
+    return sql.append(" ORDER BY u.login LIMIT ?").toString();
+  }
+
+  /**
+   * Converte un prefisso nel parametro di LIKE, proteggendo i caratteri
+   * speciali
+   *
+   * @param prefix il prefisso
+   * @return il pattern
+   */
+  static String likePrefix(String prefix) {
+    return prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+  }
+
+  /**
+   * Completa una query con una condizione IN su count parametri
+   *
+   * @param sql la query, che termina con la colonna da confrontare
+   * @param count il numero di parametri
+   * @return il testo SQL
+   */
+  static String inList(String sql, int count) {
+    StringBuilder in = new StringBuilder(sql.length() + 3 * count + 6).append(sql).append(" IN (?");
+    for (int i = 1; i < count; i++) {
+      in.append(", ?");
+    }
+    return in.append(')').toString();
+  }
+
+  /**
+   * Costruisce il riepilogo dalla riga corrente di un ResultSet ottenuto da
+   * SELECT_SUMMARY
+   *
+   * @param res il ResultSet posizionato sulla riga da leggere
+   * @return il riepilogo
+   * @throws SQLException
+   */
+  static UserSummary mapSummary(ResultSet res) throws SQLException {
+    return new UserSummary(res.getLong(1), res.getString(2), res.getString(3), res.getString(4),
+            TipoUtente.fromValue(res.getString(5)), res.getString(6));
+  }
+
+  /**
+   * Imposta i parametri della query costruita da list
+   *
+   * @param stmt lo statement
+   * @param filter i criteri di selezione
+   * @param afterId l'ID dopo cui iniziare
+   * @param limit il numero massimo di righe
+   * @throws SQLException
+   */
+  static void bindList(PreparedStatement stmt, UserFilter filter, long afterId, int limit) throws SQLException {
+    int i = 1;
+    stmt.setLong(i++, afterId);
+    if (filter.getTipo() != null) {
+      stmt.setString(i++, filter.getTipo().getValue());
+    }
+    if (filter.getIscrittoDal() != null) {
+      stmt.setLong(i++, filter.getIscrittoDal());
+    }
+    if (filter.getIscrittoAl() != null) {
+      stmt.setLong(i++, filter.getIscrittoAl());
+    }
+    stmt.setInt(i, limit);
+  }
+
+  // Posizione delle colonne di utenti in SELECT_JOINED
+  static final int COL_ID = 1;
+  static final int COL_LOGIN = 2;
+  static final int COL_PASSWORD = 3;
+  static final int COL_EMAIL = 4;
+  static final int COL_NOME = 5;
+  static final int COL_COGNOME = 6;
+  static final int COL_TIPO_UTENTE = 7;
+  static final int COL_DATA_ISCRIZIONE = 8;
+  static final int COL_VERSION = 9;
+
+  private UserQueries() {
+  }
+
+  /**
+   * Costruisce SELECT_SUMMARY dagli identificativi e dai JOIN dei UserMapper,
+   * aggiungendo in coda altre colonne
+   */
+  private static String selectSummary(String extra) {
+    StringBuilder sql = new StringBuilder("SELECT u.id, u.login, u.nome, u.cognome, u.tipo_utente, COALESCE(");
+    String sep = "";
+    for (UserMapper m : UserMappers.all()) {
+      sql.append(sep).append(m.identifier());
+      sep = ", ";
+    }
+    sql.append(")").append(extra).append(" FROM utenti u ");
+    for (UserMapper m : UserMappers.all()) {
+      sql.append(m.join()).append(' ');
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Costruisce SELECT_JOINED dalle colonne e dai JOIN dei UserMapper,
+   * registrando la posizione delle colonne di ogni sottotipo
+   */
+  private static String selectJoined() {
+    StringBuilder sql = new StringBuilder("SELECT u.id, u.login, u.password, u.email, u.nome, u.cognome, u.tipo_utente, " +
+            "UNIX_TIMESTAMP(u.data_iscrizione), u.version");
+    int offset = COL_VERSION;
+    for (UserMapper m : UserMappers.all()) {
+      sql.append(", ").append(m.columns());
+      OFFSETS[m.tipo().ordinal()] = offset;
+      offset += m.columnCount();
+    }
+    sql.append(" FROM utenti u ");
+    for (UserMapper m : UserMappers.all()) {
+      sql.append(m.join()).append(' ');
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Costruisce l'utente dalla riga corrente di un ResultSet ottenuto da
+   * SELECT_JOINED.
+   *
+   * @param res il ResultSet posizionato sulla riga da leggere
+   * @return l'istanza della sottoclasse di User indicata da tipo_utente
+   * @throws SQLException
+   * @throws Exception se manca la riga del sottotipo
+   */
+  static User mapRow(ResultSet res) throws SQLException, Exception {
+    UserMapper mapper = UserMappers.of(res.getString(COL_TIPO_UTENTE));
+    User user = mapper != null ? mapper.read(res, OFFSETS[mapper.tipo().ordinal()]) : null;
+    if (user == null) {
+      throw new Exception("Invalid User");
+    }
+
+    // I campi sono impostati direttamente: l'utente letto non ha modifiche
+    user.id = res.getLong(COL_ID);
+    user.login = res.getString(COL_LOGIN);
+    user.email = res.getString(COL_EMAIL);
+    user.nome = res.getString(COL_NOME);
+    user.cognome = res.getString(COL_COGNOME);
+    user.password = res.getString(COL_PASSWORD);
+    user.dataIscrizione = res.getLong(COL_DATA_ISCRIZIONE);
+    user.version = res.getLong(COL_VERSION);
+    return user;
+  }
+
+  /**
+   * Costruisce l'UPDATE delle colonne di una tabella indicate in una
+   * maschera di UserColumn. I parametri sono i valori delle colonne,
+   * nell'ordine di UserColumn, seguiti dall'ID dell'utente.
+   *
+   * L'UPDATE di utenti incrementa anche la versione e modifica la riga solo
+   * se la versione è quella letta, passata come ultimo parametro: può
+   * essere eseguito anche senza colonne, solo per la versione.
+   *
+   * @param table la tabella
+   * @param columns la maschera delle colonne, tutte della tabella
+   * @return il testo SQL
+   */
+  static String update(String table, long columns) {
+    boolean utenti = table.equals("utenti");
+    StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+    String sep = "";
+    for (UserColumn c : UserColumn.values()) {
+      if ((columns & c.bit) != 0) {
+        sql.append(sep).append(c.getColumn()).append(" = ").append(c.getPlaceholder());
+        sep = ", ";
+      }
+    }
+    if (utenti) {
+      sql.append(sep).append("version = version + 1");
+    }
+    sql.append(" WHERE ").append(UserColumn.idColumn(table)).append(" = ?");
+    return utenti ? sql.append(" AND version = ?").toString() : sql.toString();
+  }
+
+  /**
+   * Imposta i parametri dell'UPDATE costruito da update
+   *
+   * @param stmt lo statement
+   * @param user l'utente
+   * @param columns la maschera delle colonne
+   * @throws SQLException
+   */
+  static void bindUpdate(PreparedStatement stmt, User user, long columns) throws SQLException {
+    int i = 1;
+    for (UserColumn c : UserColumn.values()) {
+      if ((columns & c.bit) != 0) {
+        stmt.setObject(i++, c.valueOf(user));
+      }
+    }
+    stmt.setLong(i, user.getId());
+    // Solo l'UPDATE di utenti controlla la versione
+    if ((columns & ~UserColumn.UTENTI) == 0) {
+      stmt.setLong(i + 1, user.getVersion());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.SQLException;
+
+/**
+ * Archivio degli utenti: salvataggio e ricerca per ID e per login.
+ *
+ * UserManager è l'implementazione su database, InMemoryUserRepository
+ * quella in memoria. Le implementazioni applicano gli stessi vincoli di
+ * unicità dello schema: login, matricola, codice fiscale (per tabella) e
+ * partita IVA.
+ *
+ * @author Luca Gambetta
+ */
+public interface UserRepository {
+
+  /**
+   * Salva un nuovo utente, aggiornandone l'ID univoco.
+   *
+   * @param user l'utente da salvare
+   * @return l'utente salvato
+   * @throws java.sql.SQLIntegrityConstraintViolationException se viola un vincolo di unicità
+   * @throws SQLException
+   * @throws Exception se l'utente non è di un tipo salvabile
+   */
+  User save(User user) throws Exception, SQLException;
+
+  /**
+   * Trova un utente in base al suo ID univoco
+   *
+   * @param id l'ID dell'utente
+   * @return l'utente o null se non esiste
+   * @throws SQLException
+   * @throws Exception se l'ID non è valido
+   */
+  User find(Long id) throws SQLException, Exception;
+
+  /**
+   * Trova un utente in base alla sua login
+   *
+   * @param login la login dell'utente
+   * @return l'utente o null se non esiste
+   * @throws SQLException
+   * @throws Exception
+   */
+  User findByLogin(String login) throws SQLException, Exception;
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.util.Objects;
+
+/**
+ * Riepilogo immutabile di un utente, per elenchi e completamento automatico:
+ * contiene solo le colonne di utenti da mostrare e l'identificativo del
+ * sottotipo (matricola, codice fiscale o partita IVA), senza password né
+ * altri dati del sottotipo.
+ *
+ * @author Luca Gambetta
+ */
+public final class UserSummary {
+
+  private final long id;
+  private final String login;
+  private final String nome;
+  private final String cognome;
+  private final TipoUtente tipo;
+  private final String identificativo;
+
+  /**
+   * Crea un riepilogo
+   *
+   * @param id l'ID dell'utente
+   * @param login la login
+   * @param nome il nome
+   * @param cognome il cognome
+   * @param tipo il tipo dell'utente
+   * @param identificativo matricola, codice fiscale o partita IVA, secondo il tipo
+   */
+  public UserSummary(long id, String login, String nome, String cognome, TipoUtente tipo, String identificativo) {
+    this.id = id;
+    this.login = login;
+    this.nome = nome;
+    this.cognome = cognome;
+    this.tipo = tipo;
+    this.identificativo = identificativo;
+  }
+
+  /**
+   * Ritorna l'ID dell'utente
+   *
+   * @return l'ID
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Ritorna la login dell'utente
+   *
+   * @return la login
+   */
+  public String getLogin() {
+    return login;
+  }
+
+  /**
+   * Ritorna il nome dell'utente
+   *
+   * @return il nome
+   */
+  public String getNome() {
+    return nome;
+  }
+
+  /**
+   * Ritorna il cognome dell'utente
+   *
+   * @return il cognome
+   */
+  public String getCognome() {
+    return cognome;
+  }
+
+  /**
+   * Ritorna il tipo dell'utente
+   *
+   * @return il tipo
+   */
+  public TipoUtente getTipo() {
+    return tipo;
+  }
+
+  /**
+   * Ritorna l'identificativo del sottotipo: la matricola di uno studente, la
+   * partita IVA di un'azienda, il codice fiscale degli altri utenti
+   *
+   * @return l'identificativo, null se manca la riga del sottotipo
+   */
+  public String getIdentificativo() {
+    return identificativo;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof UserSummary)) {
+      return false;
+    }
+    UserSummary other = (UserSummary) o;
+    return id == other.id && Objects.equals(login, other.login) && Objects.equals(nome, other.nome)
+            && Objects.equals(cognome, other.cognome) && tipo == other.tipo
+            && Objects.equals(identificativo, other.identificativo);
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(id);
+  }
+
+  @Override
+  public String toString() {
+    return login + " (" + nome + " " + cognome + ", " + tipo.getValue() + " " + identificativo + ")";
+  }
+}
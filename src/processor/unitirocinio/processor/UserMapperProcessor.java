@@ -0,0 +1,598 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Genera in compilazione un UserMapper per ogni classe annotata con
+ * unitirocinio.model.MappedUser, più l'elenco UserMapperIndex di tutti i
+ * mapper generati.
+ *
+ * Ogni mapper legge le colonne per posizione e imposta direttamente i campi
+ * annotati con MappedColumn, converte gli enum con uno switch sui valori di
+ * DbValue e imposta i parametri dell'INSERT della tabella del sottotipo: a
+ * runtime non servono riflessione né ricerche delle colonne per nome.
+ *
+ * Il processore non dipende dalle classi del modello, ne legge le annotazioni
+ * per nome: va compilato prima del modello e aggiunto al suo processor path.
+ *
+ * @author Luca Gambetta
+ */
+// MappedColumn e DbValue vengono letti da generate: il processore li dichiara
+// per reclamarli, così che javac non li segnali come non elaborati
+@SupportedAnnotationTypes({
+  UserMapperProcessor.MAPPED_USER,
+  UserMapperProcessor.MAPPED_COLUMN,
+  UserMapperProcessor.DB_VALUE
+})
+public class UserMapperProcessor extends AbstractProcessor {
+
+  static final String MAPPED_USER = "unitirocinio.model.MappedUser";
+  static final String MAPPED_COLUMN = "unitirocinio.model.MappedColumn";
+  static final String DB_VALUE = "unitirocinio.model.DbValue";
+
+  /**
+   * Nome della classe con l'elenco dei mapper
+   */
+  static final String INDEX = "UserMapperIndex";
+
+  /**
+   * I mapper generati, da elencare in UserMapperIndex
+   */
+  private final List<String> mappers = new ArrayList<>();
+
+  /**
+   * Il package delle classi annotate
+   */
+  private String pkg;
+
+  private boolean indexWritten;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    boolean found = false;
+    for (TypeElement annotation : annotations) {
+      if (!annotation.getQualifiedName().contentEquals(MAPPED_USER)) {
+        continue;
+      }
+      for (Element e : round.getElementsAnnotatedWith(annotation)) {
+        found = true;
+        if (e.getKind() != ElementKind.CLASS || ((TypeElement) e).getNestingKind() != NestingKind.TOP_LEVEL) {
+          error(e, "@MappedUser requires a top level class");
+          continue;
+        }
+        try {
+          generate((TypeElement) e);
+        }
+        catch(IOException ex) {
+          error(e, "Cannot write mapper: " + ex.getMessage());
+        }
+      }
+    }
+
+    // L'elenco viene scritto nel round successivo all'ultimo mapper, così
+    // che venga compilato insieme ai sorgenti generati
+    if (!found && !indexWritten && !mappers.isEmpty() && !round.processingOver()) {
+      try {
+        writeIndex();
+      }
+      catch(IOException ex) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + INDEX + ": " + ex.getMessage());
+      }
+      indexWritten = true;
+    }
+    return true;
+  }
+
+  /**
+   * Genera il mapper di una classe
+   */
+  private void generate(TypeElement type) throws IOException {
+    AnnotationMirror mapped = annotation(type, MAPPED_USER);
+    String tipo = ((VariableElement) value(mapped, "tipo")).getSimpleName().toString();
+    String table = (String) value(mapped, "table");
+    String alias = (String) value(mapped, "alias");
+    String key = (String) value(mapped, "key");
+    String identifierColumn = (String) value(mapped, "identifier");
+    String identifier = alias + "." + identifierColumn;
+
+    String typePkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    if (pkg != null && !pkg.equals(typePkg)) {
+      error(type, "@MappedUser classes must be in package " + pkg);
+      return;
+    }
+    pkg = typePkg;
+
+    if (!hasDefaultConstructor(type)) {
+      error(type, "@MappedUser requires a non private constructor without arguments");
+      return;
+    }
+
+    List<Field> fields = new ArrayList<>();
+    Map<String, Codec> codecs = new LinkedHashMap<>();
+    for (VariableElement f : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+      AnnotationMirror column = annotation(f, MAPPED_COLUMN);
+      if (column == null) {
+        continue;
+      }
+      if (f.getModifiers().contains(Modifier.PRIVATE) || f.getModifiers().contains(Modifier.STATIC)) {
+        error(f, "@MappedColumn requires a non private instance field");
+        continue;
+      }
+      Field field = new Field(f, (String) value(column, "value"), (String) value(column, "write"), (Boolean) value(column, "read"));
+      if (field.kind == Kind.ENUM) {
+        Codec codec = codecs.get(field.javaType);
+        if (codec == null) {
+          codec = codec(f, (TypeElement) ((DeclaredType) f.asType()).asElement(), field.javaType);
+          if (codec == null) {
+            continue;
+          }
+          codecs.put(field.javaType, codec);
+        }
+        field.codec = codec;
+      } else if (field.kind == null) {
+        error(f, "Unsupported type for @MappedColumn: " + f.asType());
+        continue;
+      }
+      fields.add(field);
+    }
+
+    Field identifierField = null;
+    for (Field f : fields) {
+      if (f.column.equals(identifierColumn)) {
+        identifierField = f;
+      }
+    }
+    if (identifierField == null || identifierField.kind != Kind.STRING) {
+      error(type, "@MappedUser identifier must be a String @MappedColumn field");
+      return;
+    }
+
+    String className = type.getSimpleName().toString();
+    String mapperName = className + "Mapper";
+    mappers.add(mapperName);
+
+    StringBuilder columns = new StringBuilder(alias).append('.').append(key);
+    StringBuilder select = new StringBuilder("SELECT ").append(key);
+    StringBuilder insert = new StringBuilder("INSERT INTO ").append(table).append(" (").append(key);
+    StringBuilder values = new StringBuilder("?");
+    int count = 1;
+    for (Field f : fields) {
+      if (f.read) {
+        columns.append(", ").append(alias).append('.').append(f.column);
+        select.append(", ").append(f.column);
+        count++;
+      }
+      insert.append(", ").append(f.column);
+      values.append(", ").append(f.write);
+    }
+    select.append(" FROM ").append(table).append(" WHERE ").append(key);
+    String selectIn = select + " IN (";
+    select.append(" = ?");
+    insert.append(") VALUES (").append(values).append(')');
+    String join = "LEFT JOIN " + table + " " + alias + " ON " + alias + "." + key + " = u.id";
+
+    Source s = new Source();
+    s.line("// Generato da " + UserMapperProcessor.class.getName() + " per " + className + ", non modificare");
+    s.line("package " + pkg + ";");
+    s.line("");
+    s.line("import java.sql.PreparedStatement;");
+    s.line("import java.sql.ResultSet;");
+    s.line("import java.sql.SQLException;");
+    s.line("import java.sql.Types;");
+    s.line("");
+    s.line("final class " + mapperName + " implements UserMapper {");
+    s.line("");
+    constant(s, "COLUMNS", columns.toString());
+    constant(s, "JOIN", join);
+    constant(s, "SELECT", select.toString());
+    constant(s, "SELECT_IN", selectIn);
+    constant(s, "INSERT", insert.toString());
+
+    getter(s, "Class<? extends User>", "type", className + ".class");
+    getter(s, "TipoUtente", "tipo", "TipoUtente." + tipo);
+    getter(s, "String", "table", literal(table));
+    getter(s, "String", "key", literal(key));
+    getter(s, "String", "identifier", literal(identifier));
+    getter(s, "String", "columns", "COLUMNS");
+    getter(s, "int", "columnCount", Integer.toString(count));
+    getter(s, "String", "join", "JOIN");
+    getter(s, "String", "selectSql", "SELECT");
+    getter(s, "String", "insertSql", "INSERT");
+
+    s.line("  @Override");
+    s.line("  public String selectSql(int count) {");
+    s.line("    StringBuilder sql = new StringBuilder(SELECT_IN.length() + 3 * count).append(SELECT_IN).append('?');");
+    s.line("    for (int i = 1; i < count; i++) {");
+    s.line("      sql.append(\", ?\");");
+    s.line("    }");
+    s.line("    return sql.append(')').toString();");
+    s.line("  }");
+    s.line("");
+
+    getter(s, className, "create", "new " + className + "()");
+
+    s.line("  @Override");
+    s.line("  public " + className + " read(ResultSet res, int offset) throws SQLException {");
+    s.line("    long id = res.getLong(offset + 1);");
+    s.line("    if (res.wasNull()) {");
+    s.line("      return null;");
+    s.line("    }");
+    s.line("    " + className + " user = new " + className + "();");
+    s.line("    user.id = id;");
+    s.line("    load(res, offset, user);");
+    s.line("    return user;");
+    s.line("  }");
+    s.line("");
+
+    s.line("  @Override");
+    s.line("  public void load(ResultSet res, int offset, User user) throws SQLException {");
+    s.line("    " + className + " u = (" + className + ") user;");
+    int index = 2;
+    for (Field f : fields) {
+      if (f.read) {
+        f.read(s, "offset + " + index++);
+      }
+    }
+    s.line("  }");
+    s.line("");
+
+    s.line("  @Override");
+    s.line("  public void bindInsert(PreparedStatement stmt, User user) throws SQLException {");
+    s.line("    " + className + " u = (" + className + ") user;");
+    s.line("    stmt.setLong(1, u.id);");
+    index = 2;
+    for (Field f : fields) {
+      f.bind(s, index++);
+    }
+    s.line("  }");
+    s.line("");
+
+    s.line("  @Override");
+    s.line("  public String identifierOf(User user) {");
+    s.line("    return ((" + className + ") user)." + identifierField.name + ";");
+    s.line("  }");
+
+    for (Codec c : codecs.values()) {
+      c.write(s);
+    }
+    s.line("}");
+
+    try (Writer w = processingEnv.getFiler().createSourceFile(pkg + "." + mapperName, type).openWriter()) {
+      w.write(s.toString());
+    }
+  }
+
+  /**
+   * Scrive l'elenco dei mapper generati
+   */
+  private void writeIndex() throws IOException {
+    Source s = new Source();
+    s.line("// Generato da " + UserMapperProcessor.class.getName() + ", non modificare");
+    s.line("package " + pkg + ";");
+    s.line("");
+    s.line("final class " + INDEX + " {");
+    s.line("");
+    s.line("  static final UserMapper[] MAPPERS = {");
+    for (String m : mappers) {
+      s.line("    new " + m + "(),");
+    }
+    s.line("  };");
+    s.line("");
+    s.line("  private " + INDEX + "() {");
+    s.line("  }");
+    s.line("}");
+
+    try (Writer w = processingEnv.getFiler().createSourceFile(pkg + "." + INDEX).openWriter()) {
+      w.write(s.toString());
+    }
+  }
+
+  /**
+   * Costruisce il convertitore di un enum, dai valori DbValue delle costanti
+   */
+  private Codec codec(Element field, TypeElement enumType, String javaType) {
+    Codec codec = new Codec(enumType.getSimpleName().toString(), javaType);
+    for (VariableElement c : ElementFilter.fieldsIn(enumType.getEnclosedElements())) {
+      if (c.getKind() != ElementKind.ENUM_CONSTANT) {
+        continue;
+      }
+      AnnotationMirror v = annotation(c, DB_VALUE);
+      if (v == null) {
+        error(field, "Missing @DbValue on " + javaType + "." + c.getSimpleName());
+        return null;
+      }
+      String name = c.getSimpleName().toString();
+      codec.values.put(name, (String) value(v, "value"));
+      if ((Boolean) value(v, "fallback")) {
+        codec.fallback = name;
+      }
+    }
+    return codec;
+  }
+
+  private boolean hasDefaultConstructor(TypeElement type) {
+    for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static AnnotationMirror annotation(Element e, String name) {
+    for (AnnotationMirror m : e.getAnnotationMirrors()) {
+      if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  private Object value(AnnotationMirror m, String name) {
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv.getElementUtils().getElementValuesWithDefaults(m).entrySet()) {
+      if (e.getKey().getSimpleName().contentEquals(name)) {
+        return e.getValue().getValue();
+      }
+    }
+    return null;
+  }
+
+  private void error(Element e, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+  }
+
+  private static void constant(Source s, String name, String value) {
+    s.line("  private static final String " + name + " =");
+    s.line("          " + literal(value) + ";");
+    s.line("");
+  }
+
+  private static void getter(Source s, String type, String name, String value) {
+    s.line("  @Override");
+    s.line("  public " + type + " " + name + "() {");
+    s.line("    return " + value + ";");
+    s.line("  }");
+    s.line("");
+  }
+
+  static String literal(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * I tipi di campo gestiti
+   */
+  private enum Kind {
+    STRING, LONG, BOXED_LONG, INT, BOXED_INT, ENUM
+  }
+
+  /**
+   * Un campo annotato con MappedColumn
+   */
+  private final class Field {
+
+    final String name;
+    final String column;
+    final String write;
+    final boolean read;
+    final Kind kind;
+    final String javaType;
+    Codec codec;
+
+    Field(VariableElement f, String column, String write, boolean read) {
+      this.name = f.getSimpleName().toString();
+      this.column = column;
+      this.write = write;
+      this.read = read;
+
+      TypeMirror t = f.asType();
+      String java = t.toString();
+      Kind k = null;
+      switch(t.getKind()) {
+        case LONG:
+          k = Kind.LONG;
+          break;
+        case INT:
+          k = Kind.INT;
+          break;
+        case DECLARED:
+          Element e = ((DeclaredType) t).asElement();
+          if (e.getKind() == ElementKind.ENUM) {
+            k = Kind.ENUM;
+            // Il nome relativo al package, per gli enum annidati
+            String qualified = ((TypeElement) e).getQualifiedName().toString();
+            java = qualified.substring(processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().length() + 1);
+          } else if (java.equals("java.lang.String")) {
+            k = Kind.STRING;
+            java = "String";
+          } else if (java.equals("java.lang.Long")) {
+            k = Kind.BOXED_LONG;
+            java = "Long";
+          } else if (java.equals("java.lang.Integer")) {
+            k = Kind.BOXED_INT;
+            java = "Integer";
+          }
+          break;
+        default:
+          break;
+      }
+      this.kind = k;
+      this.javaType = java;
+    }
+
+    /**
+     * Scrive la lettura del campo dalla colonna indicata
+     */
+    void read(Source s, String index) {
+      switch(kind) {
+        case STRING:
+          s.line("    u." + name + " = res.getString(" + index + ");");
+          break;
+        case LONG:
+          s.line("    u." + name + " = res.getLong(" + index + ");");
+          break;
+        case INT:
+          s.line("    u." + name + " = res.getInt(" + index + ");");
+          break;
+        case BOXED_LONG:
+          s.line("    long " + name + " = res.getLong(" + index + ");");
+          s.line("    u." + name + " = res.wasNull() ? null : " + name + ";");
+          break;
+        case BOXED_INT:
+          s.line("    int " + name + " = res.getInt(" + index + ");");
+          s.line("    u." + name + " = res.wasNull() ? null : " + name + ";");
+          break;
+        case ENUM:
+          s.line("    u." + name + " = decode" + codec.name + "(res.getString(" + index + "));");
+          break;
+      }
+    }
+
+    /**
+     * Scrive l'impostazione del parametro dell'INSERT
+     */
+    void bind(Source s, int index) {
+      switch(kind) {
+        case STRING:
+          s.line("    stmt.setString(" + index + ", u." + name + ");");
+          break;
+        case LONG:
+          s.line("    stmt.setLong(" + index + ", u." + name + ");");
+          break;
+        case INT:
+          s.line("    stmt.setInt(" + index + ", u." + name + ");");
+          break;
+        case BOXED_LONG:
+        case BOXED_INT:
+          s.line("    if (u." + name + " != null) {");
+          s.line("      stmt." + (kind == Kind.BOXED_LONG ? "setLong" : "setInt") + "(" + index + ", u." + name + ");");
+          s.line("    } else {");
+          s.line("      stmt.setNull(" + index + ", Types." + (kind == Kind.BOXED_LONG ? "BIGINT" : "INTEGER") + ");");
+          s.line("    }");
+          break;
+        case ENUM:
+          s.line("    stmt.setString(" + index + ", encode" + codec.name + "(u." + name + "));");
+          break;
+      }
+    }
+  }
+
+  /**
+   * Conversione fra le costanti di un enum e i valori della colonna
+   */
+  private static final class Codec {
+
+    final String name;
+    final String javaType;
+    final Map<String, String> values = new LinkedHashMap<>();
+    String fallback;
+
+    Codec(String name, String javaType) {
+      this.name = name;
+      this.javaType = javaType;
+    }
+
+    void write(Source s) {
+      s.line("");
+      s.line("  static " + javaType + " decode" + name + "(String value) {");
+      s.line("    if (value == null) {");
+      s.line("      return " + (fallback != null ? javaType + "." + fallback : "null") + ";");
+      s.line("    }");
+      s.line("    switch(value) {");
+      for (Map.Entry<String, String> e : values.entrySet()) {
+        s.line("      case " + literal(e.getValue()) + ":");
+        s.line("        return " + javaType + "." + e.getKey() + ";");
+      }
+      s.line("      default:");
+      if (fallback != null) {
+        s.line("        return " + javaType + "." + fallback + ";");
+      } else {
+        s.line("        throw new IllegalArgumentException(\"Invalid " + name + ": \" + value);");
+      }
+      s.line("    }");
+      s.line("  }");
+      s.line("");
+      s.line("  static String encode" + name + "(" + javaType + " value) {");
+      s.line("    if (value == null) {");
+      s.line("      return " + (fallback != null ? literal(values.get(fallback)) : "null") + ";");
+      s.line("    }");
+      s.line("    switch(value) {");
+      for (Map.Entry<String, String> e : values.entrySet()) {
+        s.line("      case " + e.getKey() + ":");
+        s.line("        return " + literal(e.getValue()) + ";");
+      }
+      s.line("      default:");
+      s.line("        throw new IllegalArgumentException(\"Invalid " + name + ": \" + value);");
+      s.line("    }");
+      s.line("  }");
+    }
+  }
+
+  /**
+   * Testo di un sorgente generato
+   */
+  private static final class Source {
+
+    private final StringBuilder text = new StringBuilder();
+
+    void line(String line) {
+      text.append(line).append('\n');
+    }
+
+    @Override
+    public String toString() {
+      return text.toString();
+    }
+  }
+}
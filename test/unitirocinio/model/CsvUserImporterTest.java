@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Luca Gambetta.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Esegue il testing della classe CsvUserImporter.
+ * 
+ * @author Luca Gambetta
+ */
+public class CsvUserImporterTest {
+  
+  static Connection conn;
+  
+  @BeforeClass
+  public static void setUpClass() {
+    try{
+      Class.forName(UserManagerTest.DB_DRIVER);
+      conn = DriverManager.getConnection(UserManagerTest.DB_URL);
+    }
+    catch(Exception ex) {
+      System.err.println(ex);
+    }
+  }
+  
+  @AfterClass
+  public static void tearDownClass() {
+    try{
+      if (conn != null) {
+        conn.close();
+      }
+    }
+    catch(Exception ex) {
+      System.err.println(ex);
+    }
+  }
+  
+  @After
+  public void tearDown() {
+    // Ripulisce il database dopo ogni test
+    try {
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate("DELETE FROM aziende");
+      stmt.executeUpdate("DELETE FROM studenti");
+      stmt.executeUpdate("DELETE FROM utenti");
+    }
+    catch(SQLException ex) {
+    }
+  }
+  
+  /**
+   * Importa studenti validi e non validi
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testImportStudenti() throws Exception {
+    System.out.println("importStudenti");
+    
+    String csv = "login,email,nome,cognome,matricola\n" +
+            "s1@bar.com,s1@bar.com,John,Doe,M1\n" +
+            "s2@bar.com,s2@bar.com,\"Doe, Jr\",Doe,M2\n" +
+            "s3@bar.com,not-an-email,John,Doe,M3\n" +
+            "s4@bar.com,s4@bar.com,John,Doe,M1\n" +
+            "s5@bar.com,s5@bar.com,John,Doe,M5\n";
+    
+    UserManager um = UserManager.getInstance(conn);
+    CsvUserImporter importer = new CsvUserImporter(um);
+    importer.setBlockSize(2);
+    StringWriter errors = new StringWriter();
+    
+    CsvUserImporter.Result result = importer.importCsv(CsvUserImporter.Format.STUDENTI, new StringReader(csv), errors);
+    
+    assertEquals(5L, result.getRead());
+    assertEquals(3L, result.getImported());
+    assertEquals(2L, result.getRejected());
+    assertTrue(errors.toString().contains("4,Invalid email"));
+    assertTrue(errors.toString().contains("\n5,"));
+    assertEquals("Doe, Jr", um.findByLogin("s2@bar.com").getNome());
+    assertNotNull(um.findByLogin("s5@bar.com"));
+    assertNull(um.findByLogin("s4@bar.com"));
+  }
+  
+  /**
+   * Importa un'azienda
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testImportAziende() throws Exception {
+    System.out.println("importAziende");
+    
+    String csv = "login,email,nome,cognome,partita_iva,nome_rappresentante,cognome_rappresentante," +
+            "stato_convenzione,rif_convenzione,data_convenzione,indirizzo_sede_legale,citta_sede_legale,password\n" +
+            "az@bar.com,az@bar.com,ACME,SpA,123456789,Mario,Rossi,attiva,1234,2017-12-27,Via Roma 1,Salerno,segreta\n" +
+            "az2@bar.com,az2@bar.com,ACME,SpA,987654321,Mario,Rossi,sospesa,1234,2017-12-27,Via Roma 1,Salerno,\n";
+    
+    UserManager um = UserManager.getInstance(conn);
+    StringWriter errors = new StringWriter();
+    CsvUserImporter.Result result = new CsvUserImporter(um).importCsv(CsvUserImporter.Format.AZIENDE, new StringReader(csv), errors);
+    
+    assertEquals(1L, result.getImported());
+    assertEquals(1L, result.getRejected());
+    Azienda azienda = (Azienda) um.findByLogin("az@bar.com");
+    assertEquals("Salerno", azienda.getCittaSedeLegale());
+    assertEquals(Azienda.StatoConvenzione.ATTIVA, azienda.getStatoConvenzione());
+    assertTrue(errors.toString().startsWith("3,Invalid stato_convenzione"));
+  }
+}
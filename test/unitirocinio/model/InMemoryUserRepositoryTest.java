@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Luca Gambetta <l.gambetta@studenti.unisa.it>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package unitirocinio.model;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Esegue il testing della classe InMemoryUserRepository.
+ * 
+ * @author Luca Gambetta
+ */
+public class InMemoryUserRepositoryTest {
+  
+  private static Studente newStudente(String login, String matricola) {
+    Studente user = new Studente(login, login, matricola, 0L);
+    user.setPassword("password");
+    user.setNome("John");
+    user.setCognome("Doe");
+    return user;
+  }
+  
+  @Test
+  public void testSaveAndFind() throws Exception {
+    System.out.println("saveAndFind");
+    
+    UserRepository repo = new InMemoryUserRepository();
+    Studente usr_a = newStudente("foo@bar.com", "0512345");
+    repo.save(usr_a);
+    assertEquals(Long.valueOf(1L), usr_a.getId());
+    
+    User usr_b = repo.find(usr_a.getId());
+    assertTrue(usr_b instanceof Studente);
+    assertNotSame(usr_a, usr_b);
+    assertEquals("0512345", ((Studente) usr_b).getMatricola());
+    
+    // Le modifiche alla copia restituita non toccano quella salvata
+    usr_b.setNome("Changed");
+    assertEquals("John", repo.findByLogin("foo@bar.com").getNome());
+    assertEquals(usr_a.getId(), repo.findByLogin("FOO@bar.com").getId());
+    
+    assertNull(repo.find(2L));
+    assertNull(repo.find(100000L));
+    assertNull(repo.findByLogin("nobody@bar.com"));
+    
+    try {
+      repo.find(0L);
+      fail("Exception expected");
+    }
+    catch(Exception e) {
+      assertEquals("Invalid ID", e.getMessage());
+    }
+    try {
+      repo.save(new Guest());
+      fail("Exception expected");
+    }
+    catch(Exception e) {
+      assertEquals("Invalid object", e.getMessage());
+    }
+  }
+  
+  @Test
+  public void testUniqueness() throws Exception {
+    System.out.println("uniqueness");
+    
+    InMemoryUserRepository repo = new InMemoryUserRepository();
+    repo.save(newStudente("foo@bar.com", "0512345"));
+    
+    try {
+      repo.save(newStudente("Foo@bar.com ", "0599999"));
+      fail("Duplicate login accepted");
+    }
+    catch(SQLIntegrityConstraintViolationException e) {
+      assertEquals(1062, e.getErrorCode());
+    }
+    
+    // La login riservata da un salvataggio fallito torna libera
+    try {
+      repo.save(newStudente("baz@bar.com", "0512345"));
+      fail("Duplicate matricola accepted");
+    }
+    catch(SQLIntegrityConstraintViolationException e) {
+      assertNull(repo.findByLogin("baz@bar.com"));
+    }
+    repo.save(newStudente("baz@bar.com", "0599999"));
+    
+    // Lo stesso codice fiscale può comparire in tabelle diverse
+    repo.save(new TutorAccademico("tutor@bar.com", "tutor@bar.com", "RSSMRA80A01H703X", 0L));
+    repo.save(new OperatoreUfficioTirocinio("op@bar.com", "op@bar.com", "RSSMRA80A01H703X",
+            OperatoreUfficioTirocinio.Ruolo.OPERATORE, 0L));
+    try {
+      repo.save(new TutorAccademico("tutor2@bar.com", "tutor2@bar.com", "rssmra80a01h703x", 0L));
+      fail("Duplicate codice fiscale accepted");
+    }
+    catch(SQLIntegrityConstraintViolationException e) {
+    }
+    
+    repo.save(new Azienda("az@bar.com", "az@bar.com", "01234567890", 0L));
+    try {
+      repo.save(new Azienda("az2@bar.com", "az2@bar.com", "01234567890", 0L));
+      fail("Duplicate partita IVA accepted");
+    }
+    catch(SQLIntegrityConstraintViolationException e) {
+    }
+    
+    assertEquals(5, repo.size());
+  }
+  
+  @Test
+  public void testConcurrentSave() throws Exception {
+    System.out.println("concurrentSave");
+    
+    final InMemoryUserRepository repo = new InMemoryUserRepository();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      // Ogni matricola è contesa da due thread: ne vince esattamente uno
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 2000; i++) {
+        final int n = i;
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            try {
+              repo.save(newStudente("studente" + n + "@bar.com", "M" + (n / 2)));
+              return true;
+            }
+            catch(SQLIntegrityConstraintViolationException e) {
+              return false;
+            }
+          }
+        }));
+      }
+      int saved = 0;
+      for (Future<Boolean> f : results) {
+        if (f.get()) {
+          saved++;
+        }
+      }
+      assertEquals(1000, saved);
+      assertEquals(1000, repo.size());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -23,12 +23,33 @@
  */
 package unitirocinio.model;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -896,6 +917,1413 @@ public class UserManagerTest {
     assertNull(user);
   }
 
+  /**
+   * Verifica che le due modalità di lettura costruiscano lo stesso utente
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testFetchModes() throws Exception {
+    System.out.println("fetchModes");
+    
+    User azienda = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    UserManager um = UserManager.getInstance(conn);
+    
+    um.setFetchMode(UserManager.FetchMode.SEPARATE);
+    Azienda usr_a;
+    try {
+      usr_a = (Azienda) um.find(azienda.getId());
+    }
+    finally {
+      um.setFetchMode(UserManager.FetchMode.JOINED);
+    }
+    Azienda usr_b = (Azienda) um.find(azienda.getId());
+    
+    assertEquals(usr_a.getId(), usr_b.getId());
+    assertEquals(usr_a.getLogin(), usr_b.getLogin());
+    assertEquals(usr_a.getPassword(), usr_b.getPassword());
+    assertEquals(usr_a.getNome(), usr_b.getNome());
+    assertEquals(usr_a.getPartitaIva(), usr_b.getPartitaIva());
+    assertEquals(usr_a.getCittaSedeLegale(), usr_b.getCittaSedeLegale());
+    assertEquals(usr_a.getStatoConvenzione(), usr_b.getStatoConvenzione());
+  }
+  
+  @Test
+  public void testHeaderOnly() throws Exception {
+    System.out.println("headerOnly");
+    
+    User azienda = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    UserManager um = UserManager.getInstance(conn);
+    Studente studente = (Studente) um.save(newStudente(1));
+    Studente altro = (Studente) um.save(newStudente(2));
+    LatencyHistogram hydrate = um.getMetrics().getHistogram(UserManagerMetrics.Operation.HYDRATE);
+    long hydrations = hydrate.getCount();
+    
+    UserCache cache = new UserCache(10, 60000L);
+    um.setUserCache(cache);
+    um.setFetchMode(UserManager.FetchMode.HEADER_ONLY);
+    try {
+      // Le colonne del sottotipo vengono lette al primo accesso
+      Azienda usr_a = (Azienda) um.find(azienda.getId());
+      assertFalse(usr_a.isHydrated());
+      assertEquals(azienda.getLogin(), usr_a.getLogin());
+      assertEquals(azienda.getNome(), usr_a.getNome());
+      assertEquals(0, cache.size());
+      assertEquals(((Azienda) azienda).getPartitaIva(), usr_a.getPartitaIva());
+      assertTrue(usr_a.isHydrated());
+      assertEquals(Azienda.StatoConvenzione.ATTIVA, usr_a.getStatoConvenzione());
+      assertFalse(usr_a.isDirty());
+      assertEquals(hydrations + 1, hydrate.getCount());
+      
+      // Più utenti con una query per tabella, anche in più copie
+      List<User> stubs = new ArrayList<>();
+      stubs.add(um.findByLogin(studente.getLogin()));
+      stubs.add(um.find(altro.getId()));
+      stubs.add(um.find(studente.getId()));
+      stubs.add(um.find(azienda.getId()));
+      stubs.add(usr_a);
+      um.hydrateAll(stubs);
+      assertEquals(hydrations + 2, hydrate.getCount());
+      for (User user : stubs) {
+        assertTrue(user.isHydrated());
+      }
+      assertEquals("M1", ((Studente) stubs.get(0)).getMatricola());
+      assertEquals("M2", ((Studente) stubs.get(1)).getMatricola());
+      assertEquals("M1", ((Studente) stubs.get(2)).getMatricola());
+      assertEquals(((Azienda) azienda).getPartitaIva(), ((Azienda) stubs.get(3)).getPartitaIva());
+      
+      // Un setter del sottotipo legge prima le colonne, poi segna la modifica
+      Studente usr_s = (Studente) um.find(studente.getId());
+      usr_s.setMatricola("M3");
+      assertTrue(usr_s.isHydrated());
+      um.update(usr_s);
+      assertEquals("M3", um.findByMatricola("M3").getMatricola());
+      
+      // Senza la riga del sottotipo la lettura fallisce al primo accesso
+      Studente orphan = (Studente) um.find(altro.getId());
+      conn.createStatement().executeUpdate("DELETE FROM studenti WHERE studente_id = " + altro.getId());
+      try {
+        orphan.getMatricola();
+        fail("IllegalStateException expected");
+      }
+      catch(IllegalStateException e) {
+        assertEquals("Invalid User", e.getCause().getMessage());
+      }
+    }
+    finally {
+      um.setFetchMode(UserManager.FetchMode.JOINED);
+      um.setUserCache(null);
+    }
+  }
+  
+  @Test
+  public void testSummaries() throws Exception {
+    System.out.println("summaries");
+    
+    User azienda = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    UserManager um = UserManager.getInstance(conn);
+    Studente studente1 = (Studente) um.save(newStudente(1));
+    um.save(newStudente(2));
+    Studente studente3 = (Studente) um.save(newStudente(3));
+    
+    List<UserSummary> all = um.listSummaries(null, null, 10);
+    assertEquals(4, all.size());
+    assertEquals("foo@bar.com", all.get(0).getLogin());
+    assertEquals(TipoUtente.AZIENDA, all.get(0).getTipo());
+    assertEquals("123456789", all.get(0).getIdentificativo());
+    assertEquals(azienda.getId().longValue(), all.get(0).getId());
+    assertEquals(new UserSummary(studente1.getId(), studente1.getLogin(), "John", "Doe", TipoUtente.STUDENTE, "M1"), all.get(1));
+    
+    // Pagine successive dall'ultima login
+    List<UserSummary> page = um.listSummaries(TipoUtente.STUDENTE, null, 2);
+    assertEquals(2, page.size());
+    page = um.listSummaries(TipoUtente.STUDENTE, page.get(1).getLogin(), 2);
+    assertEquals(1, page.size());
+    assertEquals(studente3.getLogin(), page.get(0).getLogin());
+    assertEquals("M3", page.get(0).getIdentificativo());
+    
+    // Ricerca per prefisso, con i caratteri speciali di LIKE presi alla lettera
+    assertEquals(3, um.searchSummaries("studente", null, 10).size());
+    assertEquals(1, um.searchSummaries("studente2", TipoUtente.STUDENTE, 10).size());
+    assertEquals(0, um.searchSummaries("studente", TipoUtente.AZIENDA, 10).size());
+    assertEquals(0, um.searchSummaries("studente_", null, 10).size());
+    assertEquals(0, um.searchSummaries("%", null, 10).size());
+  }
+  
+  @Test
+  public void testSearchIndex() throws Exception {
+    System.out.println("searchIndex");
+    
+    User azienda = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    UserManager um = UserManager.getInstance(conn);
+    Studente studente = newStudente(1);
+    studente.setNome("Niccolò");
+    studente.setCognome("Rossini");
+    studente = (Studente) um.save(studente);
+    um.save(newStudente(2));
+    
+    um.buildSearchIndex();
+    try {
+      assertEquals(3, um.getSearchIndex().size());
+      
+      // Prefissi, accenti ed errori di battitura
+      List<UserSummary> found = um.searchUsers("ross", null, 10);
+      assertEquals(1, found.size());
+      assertEquals(new UserSummary(studente.getId(), studente.getLogin(), "Niccolò", "Rossini", TipoUtente.STUDENTE, "M1"), found.get(0));
+      assertEquals(studente.getId().longValue(), um.searchUsers("niccolo rosini", null, 10).get(0).getId());
+      assertEquals(studente.getId().longValue(), um.searchUsers("Rsosini", TipoUtente.STUDENTE, 10).get(0).getId());
+      assertTrue(um.searchUsers("rossini", TipoUtente.AZIENDA, 10).isEmpty());
+      
+      // Campi dell'azienda e ordinamento per pertinenza
+      found = um.searchUsers("citta", null, 10);
+      assertEquals(1, found.size());
+      assertEquals(azienda.getId().longValue(), found.get(0).getId());
+      assertEquals(2, um.searchUsers("doe", null, 10).size());
+      assertEquals("foo@bar.com", um.searchUsers("doe", null, 1).get(0).getLogin());
+      assertEquals("John", um.searchUsers("studente2", null, 10).get(0).getNome());
+      
+      // Aggiornamento al salvataggio
+      studente.setCognome("Bianchi");
+      um.update(studente);
+      assertTrue(um.searchUsers("rossini", null, 10).isEmpty());
+      assertEquals("M1", um.searchUsers("bianchi", null, 10).get(0).getIdentificativo());
+      um.save(newStudente(3));
+      assertEquals("studente3@bar.com", um.searchUsers("studente3", null, 10).get(0).getLogin());
+    }
+    finally {
+      um.setSearchIndex(null);
+    }
+  }
+  
+  @Test
+  public void testRelations() throws Exception {
+    System.out.println("relations");
+    
+    Azienda azienda = (Azienda) prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    UserManager um = UserManager.getInstance(conn);
+    List<User> tutors = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      TutorAziendale tutor = new TutorAziendale("tutor" + i + "@bar.com", "tutor" + i + "@bar.com", "CF" + i, azienda.getId(), 0L);
+      tutor.setPassword( um.encryptPassword("password") );
+      tutor.setNome("John");
+      tutor.setCognome("Doe");
+      tutor.setTelefono("12345");
+      tutors.add(um.save(tutor));
+    }
+    // Un utente di altro tipo viene ignorato
+    tutors.add(um.save(newStudente(1)));
+    
+    SqlTracer tracer = new SqlTracer();
+    um.setSqlTracer(tracer);
+    try {
+      // Una query per tutte le aziende dei tutor
+      Map<Long, Azienda> aziende = um.prefetchAziende(tutors);
+      assertEquals(1L, tracer.getStatementCount());
+      assertEquals(1, aziende.size());
+      assertEquals("123456789", aziende.get(azienda.getId()).getPartitaIva());
+      
+      // Una query per tutti i tutor delle aziende
+      Map<Long, List<TutorAziendale>> byAzienda = um.prefetchTutors(Collections.singletonList(azienda));
+      assertEquals(2L, tracer.getStatementCount());
+      assertEquals(3, byAzienda.get(azienda.getId()).size());
+      assertEquals(tutors.get(0).getId(), byAzienda.get(azienda.getId()).get(0).getId());
+      assertEquals("CF3", byAzienda.get(azienda.getId()).get(2).getCodiceFiscale());
+      
+      assertEquals(azienda.getId(), um.findAzienda((TutorAziendale) tutors.get(1)).getId());
+      assertEquals(3, um.findTutors(azienda).size());
+      assertTrue(um.prefetchTutors(Collections.singletonList(tutors.get(3))).isEmpty());
+      assertEquals(4L, tracer.getStatementCount());
+    }
+    finally {
+      um.setSqlTracer(null);
+    }
+  }
+  
+  @Test
+  public void testAuthentication() throws Exception {
+    System.out.println("authentication");
+    
+    UserManager um = UserManager.getInstance(conn);
+    Studente studente = (Studente) um.save(newStudente(1));
+    AuthenticationService auth = new AuthenticationService(um, 60000L, 2);
+    try {
+      assertNull(auth.login(studente.getLogin(), "wrong"));
+      assertNull(auth.login("nobody@bar.com", "password"));
+      assertEquals(2L, auth.getFailures());
+      
+      String token = auth.login(studente.getLogin(), "password");
+      assertEquals(43, token.length());
+      assertNull(auth.authenticate("not a token"));
+      User user = auth.authenticate(token);
+      assertEquals(studente.getId(), user.getId());
+      
+      // Le sessioni seguono le modifiche all'utente
+      studente.setNome("Jane");
+      um.update(studente);
+      assertEquals("Jane", auth.authenticate(token).getNome());
+      
+      // Il cambio di password chiude le sessioni
+      String other = auth.login(studente.getLogin(), "password");
+      assertNotEquals(token, other);
+      studente.setPassword(um.encryptPassword("changed"));
+      um.update(studente);
+      assertNull(auth.authenticate(token));
+      assertNull(auth.authenticate(other));
+      assertEquals(0, auth.size());
+      
+      // Oltre il limite si chiudono le sessioni più vecchie
+      String first = auth.login(studente.getLogin(), "changed");
+      String second = auth.login(studente.getLogin(), "changed");
+      String third = auth.login(studente.getLogin(), "changed");
+      assertEquals(2, auth.size());
+      assertEquals(1L, auth.getEvictions());
+      assertNull(auth.authenticate(first));
+      assertNotNull(auth.authenticate(second));
+      assertTrue(auth.logout(third));
+      assertNull(auth.authenticate(third));
+      
+      // Le credenziali si verificano sul primario, non su una copia in cache superata
+      um.setUserCache(new UserCache(100, 60000L));
+      um.findByLogin(studente.getLogin());
+      conn.createStatement().executeUpdate("UPDATE utenti SET password = '" + um.encryptPassword("other")
+              + "' WHERE id = " + studente.getId());
+      assertNull(auth.login(studente.getLogin(), "changed"));
+      assertNotNull(auth.login(studente.getLogin(), "other"));
+    }
+    finally {
+      um.setUserCache(null);
+      auth.close();
+    }
+    
+    // Un cambio di password salvato durante la verifica chiude la sessione nascente
+    final Studente current = (Studente) um.find(studente.getId());
+    final String replaced = um.encryptPassword("replaced");
+    final AtomicBoolean changed = new AtomicBoolean();
+    um.setPasswordHasher(new PasswordHasher(PasswordHasher.MIN_ITERATIONS, 1, 1, 1000) {
+      @Override
+      public boolean verify(String password, String stored) {
+        boolean ok = super.verify(password, stored);
+        if (!changed.getAndSet(true)) {
+          try {
+            current.setPassword(replaced);
+            um.update(current);
+          }
+          catch(Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+        return ok;
+      }
+    });
+    AuthenticationService racing = new AuthenticationService(um, 60000L, 10);
+    try {
+      assertNull(racing.login(studente.getLogin(), "other"));
+      assertEquals(0, racing.size());
+      assertNotNull(racing.login(studente.getLogin(), "replaced"));
+    }
+    finally {
+      racing.close();
+      um.setPasswordHasher(null);
+    }
+    
+    // Le sessioni inattive scadono
+    AuthenticationService shortLived = new AuthenticationService(um, 50L, 10);
+    try {
+      String token = shortLived.login(studente.getLogin(), "replaced");
+      assertNotNull(shortLived.authenticate(token));
+      Thread.sleep(100);
+      assertNull(shortLived.authenticate(token));
+    }
+    finally {
+      shortLived.close();
+    }
+  }
+  
+  /**
+   * Crea uno studente non ancora salvato
+   * 
+   * @param n numero usato per rendere univoci login e matricola
+   * @return lo studente
+   */
+  public Studente newStudente(int n) {
+    Studente user = new Studente("studente" + n + "@bar.com", "studente" + n + "@bar.com", "M" + n, 0L);
+    user.setPassword( UserManager.getInstance().encryptPassword("password") );
+    user.setNome("John");
+    user.setCognome("Doe");
+    return user;
+  }
+  
+  /**
+   * Verifica il salvataggio a blocchi di più utenti
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testSaveAll() throws Exception {
+    System.out.println("saveAll");
+    
+    UserManager um = UserManager.getInstance(conn);
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      users.add(newStudente(i));
+    }
+    User azienda = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    TutorAziendale tutor = new TutorAziendale("tutor@bar.com", "tutor@bar.com", "123456789", azienda.getId(), 0L);
+    tutor.setPassword( um.encryptPassword("password") );
+    tutor.setNome("John");
+    tutor.setCognome("Doe");
+    tutor.setTelefono("12345");
+    users.add(tutor);
+    
+    um.setBatchSize(2);
+    try {
+      um.saveAll(users);
+    }
+    finally {
+      um.setBatchSize(UserManager.DEFAULT_BATCH_SIZE);
+    }
+    
+    for (User usr_a : users) {
+      assertNotEquals(0L, (long) usr_a.getId());
+      User usr_b = um.find(usr_a.getId());
+      assertNotNull(usr_b);
+      assertEquals(usr_a.getLogin(), usr_b.getLogin());
+      assertEquals(usr_a.getClass(), usr_b.getClass());
+    }
+    assertEquals("M3", ((Studente) um.find(users.get(3).getId())).getMatricola());
+  }
+  
+  /**
+   * Verifica che un blocco con un utente non valido venga scartato per intero
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testSaveAllRejected() throws Exception {
+    System.out.println("saveAllRejected");
+    
+    UserManager um = UserManager.getInstance(conn);
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      users.add(newStudente(i));
+    }
+    // Matricola duplicata nel secondo blocco
+    ((Studente) users.get(3)).setMatricola("M2");
+    
+    um.setBatchSize(2);
+    BatchSaveException error = null;
+    try {
+      um.saveAll(users);
+    }
+    catch(BatchSaveException ex) {
+      error = ex;
+    }
+    finally {
+      um.setBatchSize(UserManager.DEFAULT_BATCH_SIZE);
+    }
+    
+    assertNotNull(error);
+    assertEquals(users.subList(2, 4), error.getRejectedUsers());
+    assertEquals(0L, (long) users.get(2).getId());
+    assertNotNull(um.find(users.get(0).getId()));
+    assertNull(um.findByLogin(users.get(2).getLogin()));
+  }
+  
+  /**
+   * Verifica la cache degli utenti e che restituisca copie
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testUserCache() throws Exception {
+    System.out.println("userCache");
+    
+    User usr_a = prepareFindStudente();
+    UserManager um = UserManager.getInstance(conn);
+    UserCache cache = new UserCache(10, 60000L);
+    um.setUserCache(cache);
+    try {
+      User usr_b = um.find(usr_a.getId());
+      assertEquals(0L, cache.getHits());
+      assertEquals(1L, cache.getMisses());
+      
+      // Modifica la copia ottenuta: quella in cache non deve cambiare
+      usr_b.setNome("Changed");
+      
+      User usr_c = um.findByLogin(usr_a.getLogin());
+      assertEquals(1L, cache.getHits());
+      assertNotSame(usr_b, usr_c);
+      assertEquals("John", usr_c.getNome());
+      assertEquals(usr_a.getId(), usr_c.getId());
+      
+      // Superato il limite viene rimosso l'utente più vecchio
+      UserCache small = new UserCache(1, 60000L);
+      small.put(usr_a);
+      small.put(um.save(newStudente(1)));
+      assertEquals(1, small.size());
+      assertEquals(1L, small.getEvictions());
+      assertNull(small.getById(usr_a.getId()));
+      
+      // Una lettura iniziata prima di un'invalidazione non riempie la cache
+      UserCache fill = new UserCache(10, 60000L);
+      long generation = fill.getGeneration();
+      fill.invalidate(usr_a.getId());
+      assertFalse(fill.put(usr_a, generation));
+      assertNull(fill.getById(usr_a.getId()));
+      assertTrue(fill.put(usr_a, fill.getGeneration()));
+      assertNotNull(fill.getById(usr_a.getId()));
+    }
+    finally {
+      um.setUserCache(null);
+    }
+  }
+  
+  /**
+   * Verifica che le letture ripetute riusino lo statement in cache
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testAvailability() throws Exception {
+    System.out.println("availability");
+    
+    UserManager um = UserManager.getInstance(conn);
+    User usr_a = um.save(newStudente(1));
+    
+    // Senza indice la verifica avviene sempre sul database
+    assertFalse(um.isLoginAvailable(usr_a.getLogin()));
+    assertTrue(um.isAvailable(UniqueKey.MATRICOLA, "M2"));
+    
+    um.buildAvailabilityIndex();
+    try {
+      AvailabilityIndex index = um.getAvailabilityIndex();
+      assertNotNull(index);
+      assertFalse(index.mightBeTaken(UniqueKey.MATRICOLA, "M2"));
+      assertTrue(index.mightBeTaken(UniqueKey.MATRICOLA, "M1"));
+      
+      // Il confronto segue la collation del database
+      assertFalse(um.isLoginAvailable(usr_a.getLogin().toUpperCase()));
+      assertFalse(um.isAvailable(UniqueKey.MATRICOLA, "m1 "));
+      assertTrue(um.isAvailable(UniqueKey.PARTITA_IVA, "M1"));
+      
+      // Gli utenti salvati vengono aggiunti all'indice
+      assertTrue(um.isAvailable(UniqueKey.MATRICOLA, "M2"));
+      um.save(newStudente(2));
+      assertTrue(index.mightBeTaken(UniqueKey.MATRICOLA, "M2"));
+      assertFalse(um.isAvailable(UniqueKey.MATRICOLA, "M2"));
+      assertFalse(um.isLoginAvailable("studente2@bar.com"));
+      
+      // Un valore aggiunto durante la verifica non viene ricordato libero
+      long epoch = index.epoch(UniqueKey.MATRICOLA, "M1");
+      index.add(UniqueKey.MATRICOLA, "M1");
+      index.confirmFree(UniqueKey.MATRICOLA, "M1", epoch);
+      assertTrue(index.mightBeTaken(UniqueKey.MATRICOLA, "M1"));
+    }
+    finally {
+      um.setAvailabilityIndex(null);
+    }
+    
+    // Salvataggi e verifiche concorrenti: un valore scritto sul database
+    // non deve mai risultare libero nell'indice
+    AvailabilityIndex index = new AvailabilityIndex(1000);
+    Map<String, Boolean> db = new ConcurrentHashMap<>();
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    int rounds = 2000;
+    Thread saver = new Thread(() -> {
+      try {
+        for (int i = 0; i < rounds; i++) {
+          barrier.await();
+          db.put("V" + i, true);
+          index.add(UniqueKey.MATRICOLA, "V" + i);
+        }
+      }
+      catch(Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    saver.start();
+    for (int i = 0; i < rounds; i++) {
+      String v = "V" + i;
+      // Il filtro segnala il valore come prima di ogni verifica sul database
+      index.add(UniqueKey.MATRICOLA, v);
+      barrier.await();
+      long epoch = index.epoch(UniqueKey.MATRICOLA, v);
+      if (!db.containsKey(v)) {
+        index.confirmFree(UniqueKey.MATRICOLA, v, epoch);
+      }
+    }
+    saver.join();
+    for (int i = 0; i < rounds; i++) {
+      assertTrue(index.mightBeTaken(UniqueKey.MATRICOLA, "V" + i));
+    }
+  }
+  
+  @Test
+  public void testBloomFilter() {
+    System.out.println("bloomFilter");
+    
+    BloomFilter filter = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("value" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("value" + i));
+    }
+    
+    int falsePositives = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (filter.mightContain("value" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300);
+  }
+  
+  @Test
+  public void testList() throws Exception {
+    System.out.println("list");
+    
+    UserManager um = UserManager.getInstance(conn);
+    List<User> studenti = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      studenti.add(newStudente(i));
+    }
+    um.saveAll(studenti);
+    User tutor = prepareFindTutorAccademico();
+    
+    // Pagine di due studenti, in ordine di ID
+    UserFilter filter = new UserFilter(TipoUtente.STUDENTE);
+    List<User> read = new ArrayList<>();
+    UserPage page = um.list(filter, 0, 2);
+    read.addAll(page.getUsers());
+    assertEquals(2, page.getUsers().size());
+    assertTrue(page.hasMore());
+    page = um.list(filter, page.getLastId(), 2);
+    read.addAll(page.getUsers());
+    assertTrue(page.hasMore());
+    page = um.list(filter, page.getLastId(), 2);
+    read.addAll(page.getUsers());
+    assertEquals(1, page.getUsers().size());
+    assertFalse(page.hasMore());
+    
+    assertEquals(5, read.size());
+    for (int i = 0; i < 5; i++) {
+      assertTrue(read.get(i) instanceof Studente);
+      assertEquals(studenti.get(i).getId(), read.get(i).getId());
+      assertEquals("M" + i, ((Studente) read.get(i)).getMatricola());
+    }
+    
+    // Senza filtro sul tipo compare anche il tutor
+    final List<User> all = new ArrayList<>();
+    um.setFetchSize(2);
+    try {
+      um.forEach(new UserFilter(), new UserVisitor() {
+        @Override
+        public void visit(User user) {
+          all.add(user);
+        }
+      });
+    }
+    finally {
+      um.setFetchSize(UserManager.DEFAULT_FETCH_SIZE);
+    }
+    assertEquals(6, all.size());
+    assertEquals(tutor.getId(), all.get(5).getId());
+    assertTrue(all.get(5) instanceof TutorAccademico);
+    
+    // Intervallo di iscrizione
+    long now = all.get(0).getDataIscrizione();
+    filter.setIscrittoDal(now - 3600);
+    filter.setIscrittoAl(now + 3600);
+    assertEquals(5, um.list(filter, 0, 10).getUsers().size());
+    filter.setIscrittoDal(now + 3600);
+    filter.setIscrittoAl(null);
+    assertTrue(um.list(filter, 0, 10).getUsers().isEmpty());
+  }
+  
+  @Test
+  public void testMetrics() throws Exception {
+    System.out.println("metrics");
+    
+    UserManager um = UserManager.getInstance(conn);
+    UserManagerMetrics metrics = um.getMetrics();
+    metrics.resetWindow();
+    long rollbacks = metrics.getRollbacks();
+    long invalid = metrics.getInvalidUsers();
+    
+    User usr_a = um.save(newStudente(1));
+    um.find(usr_a.getId());
+    um.findByLogin(usr_a.getLogin());
+    assertEquals(1L, metrics.getHistogram(UserManagerMetrics.Operation.SAVE).getCount());
+    assertEquals(1L, metrics.getHistogram(UserManagerMetrics.Operation.SAVE, TipoUtente.STUDENTE).getCount());
+    assertEquals(1L, metrics.getHistogram(UserManagerMetrics.Operation.FIND, TipoUtente.STUDENTE).getCount());
+    assertEquals(0L, metrics.getHistogram(UserManagerMetrics.Operation.FIND, TipoUtente.AZIENDA).getCount());
+    assertEquals(1L, metrics.getHistogram(UserManagerMetrics.Operation.COMMIT).getCount());
+    assertEquals(2L, metrics.getHistogram(UserManagerMetrics.Operation.QUERY_UTENTI).getCount());
+    assertTrue(metrics.getHistogram(UserManagerMetrics.Operation.FIND).getP99Millis() > 0);
+    
+    // Un secondo salvataggio con la stessa matricola viene annullato
+    try {
+      um.save(newStudente(1));
+      fail("Duplicate user saved");
+    }
+    catch(SQLException e) {
+    }
+    assertEquals(rollbacks + 1, metrics.getRollbacks());
+    
+    // Un utente senza la riga del sottotipo
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("DELETE FROM studenti WHERE studente_id = " + usr_a.getId());
+    try {
+      um.find(usr_a.getId());
+      fail("Invalid user found");
+    }
+    catch(Exception e) {
+      assertEquals("Invalid User", e.getMessage());
+    }
+    assertEquals(invalid + 1, metrics.getInvalidUsers());
+    
+    // Pubblicazione via JMX
+    um.registerMBeans();
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("unitirocinio:type=UserManagerLatency,operation=save,tipo=studente");
+      assertEquals(2L, mbs.getAttribute(name, "Count"));
+      mbs.invoke(new ObjectName("unitirocinio:type=UserManagerMetrics"), "resetWindow", null, null);
+      assertEquals(0L, mbs.getAttribute(name, "Count"));
+    }
+    finally {
+      um.unregisterMBeans();
+    }
+  }
+  
+  @Test
+  public void testSqlTracer() throws Exception {
+    System.out.println("sqlTracer");
+    
+    BitSet redact = SqlTracer.passwordPlaceholders(
+            "INSERT INTO utenti (data_iscrizione, login, password, email) VALUES ( NOW(), ?, ?, CONCAT(?, '@', ?) )");
+    assertEquals(1, redact.cardinality());
+    assertTrue(redact.get(2));
+    redact = SqlTracer.passwordPlaceholders("UPDATE utenti SET email = ?, u.password= ? WHERE id = ?");
+    assertEquals(1, redact.cardinality());
+    assertTrue(redact.get(2));
+    
+    final List<String> messages = new ArrayList<>();
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        messages.add(record.getLevel() + " " + record.getMessage());
+      }
+      
+      @Override
+      public void flush() {
+      }
+      
+      @Override
+      public void close() {
+      }
+    };
+    SqlTracer.LOG.addHandler(handler);
+    
+    UserManager um = UserManager.getInstance(conn);
+    SqlTracer tracer = new SqlTracer(0, 1.0);
+    um.setSqlTracer(tracer);
+    um.setFetchMode(UserManager.FetchMode.SEPARATE);
+    try {
+      User usr_a = um.save(newStudente(1));
+      um.find(usr_a.getId());
+      
+      // INSERT in utenti e studenti, SELECT su utenti e studenti
+      assertEquals(4L, tracer.getStatementCount());
+      assertEquals(4L, tracer.getSlowLoggedCount());
+      assertTrue(messages.get(0), messages.get(0).startsWith("WARNING Slow SQL "));
+      assertTrue(messages.get(0), messages.get(0).contains("UserManager.save > saveUser: INSERT INTO utenti"));
+      assertTrue(messages.get(0), messages.get(0).contains("2=<redacted>"));
+      assertFalse(messages.get(0), messages.get(0).contains(PasswordHasher.ALGORITHM));
+      assertTrue(messages.get(2), messages.get(2).contains("1 row, UserManager.find > read > loadById > userFactory"));
+      
+      // Nessuna query lenta campionata
+      tracer.setSlowThreshold(0);
+      tracer.setSampleRate(0.0);
+      um.find(usr_a.getId());
+      assertEquals(6L, tracer.getSlowCount());
+      assertEquals(4L, tracer.getSlowLoggedCount());
+      assertEquals(4, messages.size());
+      
+      // Gli INSERT a blocchi riportano il numero di righe del batch
+      tracer.setSampleRate(1.0);
+      um.saveAll(Arrays.asList(newStudente(2), newStudente(3)));
+      assertTrue(messages.toString(), messages.get(4).contains("] batch of 2"));
+    }
+    finally {
+      um.setSqlTracer(null);
+      um.setFetchMode(UserManager.FetchMode.JOINED);
+      SqlTracer.LOG.removeHandler(handler);
+    }
+  }
+  
+  @Test
+  public void testAsync() throws Exception {
+    System.out.println("async");
+    
+    UserManager um = UserManager.getInstance(conn);
+    User usr_a = um.saveAsync(newStudente(1)).get();
+    assertNotNull(usr_a.getId());
+    assertEquals(usr_a.getLogin(), um.findAsync(usr_a.getId()).get().getLogin());
+    assertEquals(usr_a.getId(), um.findByLoginAsync(usr_a.getLogin()).get().getId());
+    assertNull(um.findAsync(usr_a.getId() + 1000).get());
+    
+    try {
+      um.findAsync(-1L).get();
+      fail("Invalid ID accepted");
+    }
+    catch(ExecutionException e) {
+      assertEquals("Invalid ID", e.getCause().getMessage());
+    }
+    
+    // Un timeout interrompe lo statement in corso, l'operazione in coda non parte
+    AsyncExecutor executor = new AsyncExecutor(1);
+    final PreparedStatement sleep = conn.prepareStatement("SELECT SLEEP(30)");
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicBoolean started = new AtomicBoolean();
+    CompletableFuture<Boolean> slow = executor.submit(() -> {
+      try {
+        AsyncExecutor.statementPrepared(sleep);
+        try (ResultSet res = sleep.executeQuery()) {
+          return res.next();
+        }
+      }
+      finally {
+        done.countDown();
+      }
+    });
+    CompletableFuture<Boolean> queued = executor.submit(() -> started.getAndSet(true));
+    assertEquals(1, executor.getQueueLength());
+    queued.cancel(true);
+    
+    slow.orTimeout(500, TimeUnit.MILLISECONDS);
+    try {
+      slow.get();
+      fail("Timeout not reported");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    sleep.close();
+    assertTrue(queued.isCancelled());
+    assertFalse(started.get());
+    assertTrue(executor.submit(() -> true).get(5, TimeUnit.SECONDS));
+    
+    // Un annullamento dopo il commit, mentre la connessione serve già altre
+    // operazioni, non ha effetto: il future riporta l'utente salvato
+    final CountDownLatch saved = new CountDownLatch(1);
+    final CountDownLatch resume = new CountDownLatch(1);
+    UserListener listener = user -> {
+      saved.countDown();
+      try {
+        resume.await(10, TimeUnit.SECONDS);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    um.addUserListener(listener);
+    try {
+      CompletableFuture<User> saving = um.saveAsync(newStudente(2));
+      assertTrue(saved.await(10, TimeUnit.SECONDS));
+      assertFalse(saving.cancel(true));
+      saving.orTimeout(1, TimeUnit.MILLISECONDS);
+      Thread.sleep(50);
+      assertEquals("studente2@bar.com", um.findByLogin("studente2@bar.com").getLogin());
+      resume.countDown();
+      assertEquals("studente2@bar.com", saving.get(10, TimeUnit.SECONDS).getLogin());
+      assertFalse(saving.isCompletedExceptionally());
+    }
+    finally {
+      resume.countDown();
+      um.removeUserListener(listener);
+    }
+  }
+  
+  @Test
+  public void testPublish() throws Exception {
+    System.out.println("publish");
+    
+    UserManager um = UserManager.getInstance(conn);
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      users.add(newStudente(i));
+    }
+    um.saveAll(users);
+    prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    
+    // Consegna solo quanto richiesto
+    CollectingSubscriber s = new CollectingSubscriber();
+    um.publish(TipoUtente.STUDENTE).subscribe(s);
+    s.subscription.request(2);
+    assertTrue(s.awaitReceived(2));
+    Thread.sleep(100);
+    assertEquals(2, s.received.size());
+    assertFalse(s.completed.getCount() == 0);
+    s.subscription.request(10);
+    assertTrue(s.completed.await(5, TimeUnit.SECONDS));
+    assertEquals(5, s.received.size());
+    assertEquals(users.get(4).getId(), s.received.get(4).getId());
+    assertNull(s.error);
+    
+    // Tutti i tipi
+    s = new CollectingSubscriber();
+    um.publish(null).subscribe(s);
+    s.subscription.request(Long.MAX_VALUE);
+    assertTrue(s.completed.await(5, TimeUnit.SECONDS));
+    assertEquals(6, s.received.size());
+    
+    // L'annullamento restituisce la connessione condivisa
+    s = new CollectingSubscriber();
+    um.publish(null).subscribe(s);
+    s.subscription.request(1);
+    assertTrue(s.awaitReceived(1));
+    s.subscription.cancel();
+    assertNotNull(um.findAsync(users.get(0).getId()).get(5, TimeUnit.SECONDS));
+    assertEquals(1, s.received.size());
+    
+    s = new CollectingSubscriber();
+    um.publish(null).subscribe(s);
+    s.subscription.request(0);
+    assertTrue(s.completed.await(5, TimeUnit.SECONDS));
+    assertTrue(s.error instanceof IllegalArgumentException);
+    
+    // Un'operazione asincrona in attesa della connessione condivisa non
+    // blocca le richieste e l'annullamento della sottoscrizione
+    s = new CollectingSubscriber();
+    um.publish(null).subscribe(s);
+    s.subscription.request(1);
+    assertTrue(s.awaitReceived(1));
+    CompletableFuture<User> waiting = um.findAsync(users.get(0).getId());
+    Thread.sleep(100);
+    assertFalse(waiting.isDone());
+    s.subscription.request(1);
+    assertTrue(s.awaitReceived(2));
+    s.subscription.cancel();
+    assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+    assertEquals(2, s.received.size());
+    
+    // In onNext le operazioni sincrone falliscono invece di attendere per sempre
+    List<Exception> nested = Collections.synchronizedList(new ArrayList<Exception>());
+    CollectingSubscriber reentrant = new CollectingSubscriber() {
+      @Override
+      public void onNext(User item) {
+        super.onNext(item);
+        try {
+          um.find(item.getId());
+        }
+        catch(Exception e) {
+          nested.add(e);
+        }
+        subscription.cancel();
+      }
+    };
+    um.publish(null).subscribe(reentrant);
+    reentrant.subscription.request(1);
+    assertTrue(reentrant.awaitReceived(1));
+    long end = System.currentTimeMillis() + 5000;
+    while (nested.isEmpty() && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, nested.size());
+    assertTrue(nested.get(0) instanceof SQLException);
+    assertNotNull(um.find(users.get(0).getId()));
+  }
+  
+  /**
+   * Subscriber che raccoglie gli utenti ricevuti
+   */
+  private static class CollectingSubscriber implements Flow.Subscriber<User> {
+    
+    final List<User> received = Collections.synchronizedList(new ArrayList<User>());
+    final CountDownLatch completed = new CountDownLatch(1);
+    volatile Flow.Subscription subscription;
+    volatile Throwable error;
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+    
+    @Override
+    public void onNext(User item) {
+      received.add(item);
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+      completed.countDown();
+    }
+    
+    @Override
+    public void onComplete() {
+      completed.countDown();
+    }
+    
+    boolean awaitReceived(int n) throws InterruptedException {
+      long end = System.currentTimeMillis() + 5000;
+      while (received.size() < n && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      return received.size() >= n;
+    }
+  }
+  
+  @Test
+  public void testFindBySecondaryKey() throws Exception {
+    System.out.println("findBySecondaryKey");
+    
+    UserManager um = UserManager.getInstance(conn);
+    Studente studente = (Studente) um.save(newStudente(1));
+    
+    User tutor = new TutorAccademico("tutor@bar.com", "shared@bar.com", "RSSMRA80A01H501U", 0L);
+    tutor.setPassword( um.encryptPassword("password") );
+    tutor.setNome("John");
+    tutor.setCognome("Doe");
+    um.save(tutor);
+    User operatore = new OperatoreUfficioTirocinio("operatore@bar.com", "shared@bar.com", "RSSMRA80A01H501U",
+            OperatoreUfficioTirocinio.Ruolo.OPERATORE, 0L);
+    operatore.setPassword( um.encryptPassword("password") );
+    operatore.setNome("John");
+    operatore.setCognome("Doe");
+    um.save(operatore);
+    
+    Azienda azienda = (Azienda) prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA);
+    
+    assertEquals(studente.getId(), um.findByMatricola("M1").getId());
+    assertNull(um.findByMatricola("M2"));
+    
+    assertEquals(azienda.getId(), um.findByPartitaIva("123456789").getId());
+    assertEquals("Città sede legale", um.findByPartitaIva("123456789").getCittaSedeLegale());
+    assertNull(um.findByPartitaIva("987654321"));
+    
+    List<User> found = um.findByCodiceFiscale("RSSMRA80A01H501U");
+    assertEquals(2, found.size());
+    boolean foundTutor = false;
+    boolean foundOperatore = false;
+    for (User user : found) {
+      foundTutor |= user instanceof TutorAccademico && user.getId().equals(tutor.getId());
+      foundOperatore |= user instanceof OperatoreUfficioTirocinio && user.getId().equals(operatore.getId());
+    }
+    assertTrue(foundTutor && foundOperatore);
+    assertTrue(um.findByCodiceFiscale("XXXXXX00X00X000X").isEmpty());
+    
+    found = um.findByEmail("shared@bar.com");
+    assertEquals(2, found.size());
+    assertEquals(tutor.getId(), found.get(0).getId());
+    assertEquals(operatore.getId(), found.get(1).getId());
+    assertEquals(1, um.findByEmail("studente1@bar.com").size());
+    
+    try {
+      um.findByEmail(null);
+      fail("Null email accepted");
+    }
+    catch(NullPointerException e) {
+    }
+  }
+  
+  @Test
+  public void testUpdate() throws Exception {
+    System.out.println("update");
+    
+    UserManager um = UserManager.getInstance(conn);
+    Azienda azienda = (Azienda) um.find(prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA).getId());
+    assertFalse(azienda.isDirty());
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("UPDATE aziende SET data_convenzione = '2017-03-01' WHERE azienda_id = " + azienda.getId());
+    
+    SqlTracer tracer = new SqlTracer();
+    um.setSqlTracer(tracer);
+    try {
+      // Nessuna modifica, nessuno statement
+      azienda.setIndirizzoSedeLegale(azienda.getIndirizzoSedeLegale());
+      assertFalse(azienda.isDirty());
+      um.update(azienda);
+      assertEquals(0L, tracer.getStatementCount());
+      
+      // Solo la tabella del sottotipo, più la versione su utenti
+      azienda.setIndirizzoSedeLegale("Via Roma 1");
+      azienda.setStatoConvenzione(Azienda.StatoConvenzione.NON_ATTIVA);
+      assertTrue(azienda.isDirty());
+      um.update(azienda);
+      assertFalse(azienda.isDirty());
+      assertEquals(2L, tracer.getStatementCount());
+      assertEquals(1L, azienda.getVersion());
+      
+      // Solo utenti
+      azienda.setNome("Mario");
+      um.update(azienda);
+      assertEquals(3L, tracer.getStatementCount());
+      assertEquals(2L, azienda.getVersion());
+    }
+    finally {
+      um.setSqlTracer(null);
+    }
+    
+    Azienda reloaded = (Azienda) um.find(azienda.getId());
+    assertEquals("Via Roma 1", reloaded.getIndirizzoSedeLegale());
+    assertEquals("Città sede legale", reloaded.getCittaSedeLegale());
+    assertEquals("Mario", reloaded.getNome());
+    assertEquals(Azienda.StatoConvenzione.NON_ATTIVA, reloaded.getStatoConvenzione());
+    assertEquals("Cognome rappresentante", reloaded.getCognomeRappresentanteLegale());
+    assertEquals(2L, reloaded.getVersion());
+    
+    // Le colonne non modificate restano quelle del database
+    ResultSet res = stmt.executeQuery("SELECT data_convenzione FROM aziende WHERE azienda_id = " + azienda.getId());
+    assertTrue(res.next());
+    assertEquals("2017-03-01", res.getString(1));
+    res.close();
+    
+    // Un utente non salvato o cancellato
+    try {
+      um.update(newStudente(1));
+      fail("Unsaved user updated");
+    }
+    catch(Exception e) {
+      assertEquals("User not saved", e.getMessage());
+    }
+    stmt.executeUpdate("DELETE FROM utenti WHERE id = " + azienda.getId());
+    azienda.setEmail("nuova@bar.com");
+    try {
+      um.update(azienda);
+      fail("Deleted user updated");
+    }
+    catch(SQLException e) {
+      assertEquals("User not updated", e.getMessage());
+    }
+  }
+  
+  @Test
+  public void testUpdateConflict() throws Exception {
+    System.out.println("updateConflict");
+    
+    UserManager um = UserManager.getInstance(conn);
+    long id = prepareFindAzienda(Azienda.StatoConvenzione.ATTIVA).getId();
+    Azienda operatore = (Azienda) um.find(id);
+    Azienda azienda = (Azienda) um.find(id);
+    long conflicts = um.getMetrics().getConflicts();
+    
+    operatore.setStatoConvenzione(Azienda.StatoConvenzione.NON_ATTIVA);
+    um.update(operatore);
+    
+    // La seconda modifica parte da una versione superata e non scrive niente
+    azienda.setRifConvenzione("5678");
+    azienda.setEmail("azienda@bar.com");
+    try {
+      um.update(azienda);
+      fail("Stale update accepted");
+    }
+    catch(UserConflictException e) {
+      assertSame(azienda, e.getStaleUser());
+      Azienda current = (Azienda) e.getCurrentUser();
+      assertEquals(1L, current.getVersion());
+      assertEquals(Azienda.StatoConvenzione.NON_ATTIVA, current.getStatoConvenzione());
+      assertEquals("1234", current.getRifConvenzione());
+      assertFalse(current.isDirty());
+      
+      // Nuovo tentativo sullo stato attuale
+      current.setRifConvenzione("5678");
+      um.update(current);
+    }
+    assertEquals(conflicts + 1, um.getMetrics().getConflicts());
+    
+    Azienda reloaded = (Azienda) um.find(id);
+    assertEquals(2L, reloaded.getVersion());
+    assertEquals("5678", reloaded.getRifConvenzione());
+    assertEquals(Azienda.StatoConvenzione.NON_ATTIVA, reloaded.getStatoConvenzione());
+    assertEquals("foo@bar.com", reloaded.getEmail());
+  }
+  
+  @Test
+  public void testReplicas() throws Exception {
+    System.out.println("replicas");
+    
+    // La replica è un secondo database sullo stesso server, allineato a mano
+    String[] tables = { "utenti", "studenti", "operatori_ufficio_tirocinio", "aziende", "tutor_aziendali", "tutor_accademici" };
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("DROP DATABASE IF EXISTS unitirocinio_replica");
+    stmt.executeUpdate("CREATE DATABASE unitirocinio_replica");
+    for (String table : tables) {
+      stmt.executeUpdate("CREATE TABLE unitirocinio_replica." + table + " LIKE " + table);
+    }
+    
+    com.mysql.jdbc.jdbc2.optional.MysqlDataSource primary = new com.mysql.jdbc.jdbc2.optional.MysqlDataSource();
+    primary.setURL(DB_URL);
+    com.mysql.jdbc.jdbc2.optional.MysqlDataSource replica = new com.mysql.jdbc.jdbc2.optional.MysqlDataSource();
+    replica.setURL(DB_URL.replace("/unitirocinio?", "/unitirocinio_replica?"));
+    com.mysql.jdbc.jdbc2.optional.MysqlDataSource down = new com.mysql.jdbc.jdbc2.optional.MysqlDataSource();
+    down.setURL("jdbc:mysql://127.0.0.1:1/unitirocinio?user=root&password=&connectTimeout=1000");
+    
+    UserManager um = UserManager.getInstance(conn);
+    um.setDataSource(primary, 2);
+    um.setReplicas(java.util.Arrays.<javax.sql.DataSource>asList(replica, down), 2);
+    try {
+      ReplicaRouter router = um.getReplicaRouter();
+      User usr_a = um.save(newStudente(1));
+      
+      // Subito dopo la scrittura la sessione legge dal primario
+      assertNotNull(um.find(usr_a.getId()));
+      assertEquals(1L, router.getPrimaryReads());
+      
+      // Poi dalle repliche: la replica non è ancora allineata, l'altra non risponde
+      router.setStickyWindow(0);
+      assertNull(um.find(usr_a.getId()));
+      assertNull(um.findByLogin(usr_a.getLogin()));
+      assertEquals(2L, router.getReads(0));
+      assertFalse(router.isHealthy(1));
+      assertEquals(1, router.getHealthyCount());
+      assertEquals(0, router.getPool(0).getActiveCount());
+      
+      for (String table : tables) {
+        stmt.executeUpdate("INSERT INTO unitirocinio_replica." + table + " SELECT * FROM " + table);
+      }
+      assertEquals(usr_a.getId(), um.findByLogin(usr_a.getLogin()).getId());
+      assertEquals(1, um.findByEmail(usr_a.getEmail()).size());
+      
+      // Un'altra sessione non risente delle scritture di questa
+      router.setStickyWindow(60000);
+      UserManager.bindSession("altra");
+      try {
+        um.save(newStudente(2));
+      }
+      finally {
+        UserManager.unbindSession();
+      }
+      long primaryReads = router.getPrimaryReads();
+      um.find(usr_a.getId());
+      assertEquals(primaryReads, router.getPrimaryReads());
+      UserManager.bindSession("altra");
+      try {
+        um.findAsync(usr_a.getId()).get();
+      }
+      finally {
+        UserManager.unbindSession();
+      }
+      assertEquals(primaryReads + 1, router.getPrimaryReads());
+      
+      // Le letture dalle repliche non entrano nella cache, che è consultata
+      // prima di scegliere la replica: chi ha scritto rilegge la propria scrittura
+      um.setUserCache(new UserCache(100, 60000L));
+      try {
+        Studente writer = (Studente) um.find(usr_a.getId());
+        writer.setNome("Jane");
+        um.update(writer);
+        UserManager.bindSession("terza");
+        try {
+          assertEquals("John", um.find(usr_a.getId()).getNome());
+        }
+        finally {
+          UserManager.unbindSession();
+        }
+        Studente reread = (Studente) um.find(usr_a.getId());
+        assertEquals("Jane", reread.getNome());
+        reread.setNome("Joan");
+        um.update(reread);
+      }
+      finally {
+        um.setUserCache(null);
+      }
+      
+      // Senza repliche disponibili si legge dal primario
+      router.setStickyWindow(0);
+      stmt.executeUpdate("DROP DATABASE unitirocinio_replica");
+      router.checkHealth();
+      assertEquals(0, router.getHealthyCount());
+      assertEquals(usr_a.getId(), um.find(usr_a.getId()).getId());
+      
+      router.setPolicy(ReplicaRouter.Policy.LEAST_LOADED);
+      assertEquals(usr_a.getId(), um.find(usr_a.getId()).getId());
+    }
+    finally {
+      um.setReplicas(null);
+      um.setDataSource(null);
+      stmt.executeUpdate("DROP DATABASE IF EXISTS unitirocinio_replica");
+    }
+    assertNull(um.getReplicaRouter());
+  }
+  
+  @Test
+  public void testUserMappers() throws Exception {
+    System.out.println("userMappers");
+    
+    // Ogni tipo ha il suo mapper, trovato anche dalle sottoclassi
+    for (TipoUtente tipo : TipoUtente.values()) {
+      UserMapper mapper = UserMappers.of(tipo);
+      assertNotNull(tipo.toString(), mapper);
+      assertSame(mapper, UserMappers.of(tipo.getValue()));
+    }
+    assertNull(UserMappers.of("guest"));
+    assertNull(UserMappers.of(new Guest()));
+    assertSame(TipoUtente.STUDENTE, TipoUtente.of(new Studente("foo", "foo@bar.com", "0512345678", 0L) { }));
+    assertEquals("INSERT INTO studenti (studente_id, matricola) VALUES (?, ?)", UserMappers.of(TipoUtente.STUDENTE).insertSql());
+    
+    // Conversioni degli enum, con i valori sconosciuti sulla costante di riserva
+    for (OperatoreUfficioTirocinio.Ruolo r : OperatoreUfficioTirocinio.Ruolo.values()) {
+      assertSame(r, OperatoreUfficioTirocinioMapper.decodeRuolo(OperatoreUfficioTirocinioMapper.encodeRuolo(r)));
+    }
+    assertEquals("direttore_dip", OperatoreUfficioTirocinioMapper.encodeRuolo(OperatoreUfficioTirocinio.Ruolo.DIRETTORE_DIPARTIMENTO));
+    assertSame(OperatoreUfficioTirocinio.Ruolo.OPERATORE, OperatoreUfficioTirocinioMapper.decodeRuolo("sconosciuto"));
+    assertSame(Azienda.StatoConvenzione.NON_ATTIVA, AziendaMapper.decodeStatoConvenzione(null));
+    
+    // Un tutor senza azienda viene salvato e riletto con l'ID dell'azienda nullo
+    UserManager um = UserManager.getInstance(conn);
+    TutorAziendale tutor = new TutorAziendale("tutor@bar.com", "tutor@bar.com", "RSSMRA80A01H501U", null, 0L);
+    tutor.setTelefono("0891234567");
+    tutor.setPassword( um.encryptPassword("password") );
+    tutor.setNome("John");
+    tutor.setCognome("Doe");
+    um.save(tutor);
+    TutorAziendale found = (TutorAziendale) um.find(tutor.getId());
+    assertNull(found.getIdAzienda());
+    assertEquals("RSSMRA80A01H501U", found.getCodiceFiscale());
+    assertFalse(found.isDirty());
+  }
+  
+  @Test
+  public void testLatencyHistogram() {
+    System.out.println("latencyHistogram");
+    
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0L, h.getValueAtPercentile(99));
+    
+    // Da 1 µs a 10 ms
+    for (long i = 1; i <= 10000; i++) {
+      h.record(i * 1000);
+    }
+    assertEquals(10000L, h.getCount());
+    assertEquals(5000000, h.getValueAtPercentile(50), 5000000 * 0.035);
+    assertEquals(9900000, h.getValueAtPercentile(99), 9900000 * 0.035);
+    assertEquals(10000000L, h.getValueAtPercentile(100));
+    assertEquals(10.0, h.getMaxMillis(), 0.0);
+    assertEquals(5.0005, h.getMeanMillis(), 0.0001);
+    
+    h.resetWindow();
+    assertEquals(0L, h.getCount());
+    assertEquals(0.0, h.getP99Millis(), 0.0);
+  }
+  
+  @Test
+  public void testStatementCache() throws Exception {
+    System.out.println("statementCache");
+    
+    User usr_a = prepareFindStudente();
+    UserManager um = UserManager.getInstance(conn);
+    um.find(usr_a.getId());
+    
+    long hits = um.getStatementCacheStatistics().getHits();
+    long misses = um.getStatementCacheStatistics().getMisses();
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(um.find(usr_a.getId()));
+    }
+    
+    assertEquals(hits + 3, um.getStatementCacheStatistics().getHits());
+    assertEquals(misses, um.getStatementCacheStatistics().getMisses());
+    
+    // Una cache troppo piccola lascerebbe aperti gli statement non tenuti
+    try {
+      um.setStatementCacheSize(0);
+      fail("Statement cache size 0 accepted");
+    }
+    catch(IllegalArgumentException e) {
+      // Atteso
+    }
+    
+    // Uno statement con il ResultSet aperto non viene chiuso per far posto ad altri
+    StatementCache cache = new StatementCache(conn, StatementCache.MIN_SIZE, new StatementCache.Statistics());
+    try {
+      PreparedStatement outer = cache.prepare("SELECT id FROM utenti");
+      try (ResultSet res = outer.executeQuery()) {
+        for (int i = 0; i < StatementCache.MIN_SIZE; i++) {
+          cache.prepare("SELECT " + i).executeQuery().close();
+        }
+        assertFalse(outer.isClosed());
+        assertTrue(res.next());
+      }
+      cache.prepare("SELECT 0").executeQuery().close();
+      assertTrue(outer.isClosed());
+      assertEquals(StatementCache.MIN_SIZE, cache.size());
+    }
+    finally {
+      cache.close();
+    }
+  }
+  
+  /**
+   * Testa salvataggio e lettura usando un pool di connessioni
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testConnectionPool() throws Exception {
+    System.out.println("connectionPool");
+    
+    com.mysql.jdbc.jdbc2.optional.MysqlDataSource ds = new com.mysql.jdbc.jdbc2.optional.MysqlDataSource();
+    ds.setURL(DB_URL);
+    
+    UserManager um = UserManager.getInstance(conn);
+    um.setDataSource(ds, 2);
+    try {
+      User usr_a = prepareFindStudente();
+      User usr_b = um.findByLogin(usr_a.getLogin());
+      assertNotNull(usr_b);
+      assertEquals(usr_a.getId(), usr_b.getId());
+      
+      ConnectionPool pool = um.getConnectionPool();
+      assertNotNull(pool);
+      assertEquals(0, pool.getActiveCount());
+      assertEquals(1, pool.getIdleCount());
+      assertEquals(2L, pool.getBorrowCount());
+      
+      // Una connessione in uso torna al pool da cui è stata presa, anche se
+      // nel frattempo il pool è stato sostituito
+      Connection c = um.acquireConnection();
+      um.setDataSource(ds, 2);
+      um.releaseConnection(c);
+      assertEquals(0, pool.getActiveCount());
+      assertTrue(c.isClosed());
+      assertEquals(0, um.getConnectionPool().getActiveCount());
+      
+      c = um.acquireConnection();
+      um.setDataSource(null);
+      um.releaseConnection(c);
+      assertTrue(c.isClosed());
+    }
+    finally {
+      um.setDataSource(null);
+    }
+    
+    assertNull(um.getConnectionPool());
+    
+    // Il cambio della connessione condivisa attende l'operazione in corso,
+    // che restituisce la connessione presa
+    Connection other = DriverManager.getConnection(DB_URL);
+    try {
+      Connection c = um.acquireConnection();
+      Thread swap = new Thread(() -> um.setConnection(other));
+      swap.start();
+      swap.join(200);
+      assertTrue(swap.isAlive());
+      assertSame(conn, um.getConnection());
+      um.releaseConnection(c);
+      swap.join(5000);
+      assertFalse(swap.isAlive());
+      assertSame(other, um.getConnection());
+      assertNotNull(um.find(um.save(newStudente(1)).getId()));
+    }
+    finally {
+      um.setConnection(conn);
+      other.close();
+    }
+  }
+
   /**
    * Test of encryptPassword method, of class UserManager.
    */
@@ -904,10 +2332,98 @@ public class UserManagerTest {
     System.out.println("encryptPassword");
     String plainPassword = "password";
     UserManager instance = UserManager.getInstance();
-    String expResult = "password";
     String result = instance.encryptPassword(plainPassword);
-    assertEquals(expResult, result);
+    assertNotEquals(plainPassword, result);
+    assertTrue(result.startsWith(PasswordHasher.ALGORITHM + "$"));
+    
+    // Il salt cambia a ogni hash
+    assertNotEquals(result, instance.encryptPassword(plainPassword));
+    
+    Studente user = newStudente(1);
+    user.setPassword(result);
+    assertTrue(instance.verifyPassword(user, plainPassword));
+    assertFalse(instance.verifyPassword(user, "Password"));
+    assertFalse(instance.needsRehash(user));
+    
+    // Le password salvate in chiaro vengono ancora accettate, ma vanno ricalcolate
+    user.setPassword(plainPassword);
+    assertTrue(instance.verifyPassword(user, plainPassword));
+    assertTrue(instance.needsRehash(user));
   }
+  
+  /**
+   * Testa la calibrazione, la verifica e il limite di coda dell'hasher delle
+   * password
+   * 
+   * @throws Exception 
+   */
+  @Test
+  public void testPasswordHasher() throws Exception {
+    System.out.println("passwordHasher");
+    
+    assertTrue(PasswordHasher.calibrate(10) >= PasswordHasher.MIN_ITERATIONS);
+    
+    // Un hash più debole resta valido ma va ricalcolato
+    PasswordHasher weak = new PasswordHasher(PasswordHasher.MIN_ITERATIONS, 1, 1, 1000);
+    PasswordHasher strong = new PasswordHasher(2 * PasswordHasher.MIN_ITERATIONS, 1, 1, 1000);
+    try {
+      String hash = weak.hash("secret");
+      assertTrue(hash.startsWith(PasswordHasher.ALGORITHM + "$" + PasswordHasher.MIN_ITERATIONS + "$"));
+      assertTrue(strong.verify("secret", hash));
+      assertTrue(strong.needsRehash(hash));
+      assertFalse(weak.needsRehash(hash));
+      assertFalse(strong.verify("secret", "!placeholder"));
+      
+      // Un hash con Base64 non valido non corrisponde a nessuna password
+      String prefix = PasswordHasher.ALGORITHM + "$" + PasswordHasher.MIN_ITERATIONS + "$";
+      assertFalse(strong.verify("secret", prefix + "not*base64$" + hash.split("\\$")[3]));
+      assertFalse(strong.verify("secret", prefix + hash.split("\\$")[2] + "$not*base64"));
+      assertFalse(strong.verify("secret", prefix + "$" + hash.split("\\$")[3]));
+    }
+    finally {
+      weak.shutdown();
+      strong.shutdown();
+    }
+    
+    // Con thread e coda occupati le richieste vengono rifiutate
+    PasswordHasher busy = new PasswordHasher(2000000, 1, 0, 10);
+    try {
+      busy.hashAsync("one");
+      try {
+        busy.hashAsync("two");
+        fail("RejectedExecutionException expected");
+      }
+      catch(RejectedExecutionException e) {
+        assertEquals(1L, busy.getRejectedCount());
+      }
+    }
+    finally {
+      busy.shutdown();
+    }
+    
+    // Nell'importazione una password rifiutata scarta solo la sua riga
+    UserManager um = UserManager.getInstance(conn);
+    PasswordHasher overloaded = new PasswordHasher(PasswordHasher.MIN_ITERATIONS, 1, 0, 10);
+    um.setPasswordHasher(overloaded);
+    try {
+      CsvUserImporter importer = new CsvUserImporter(um);
+      importer.setParallelism(1);
+      StringBuilder csv = new StringBuilder("login,email,nome,cognome,matricola,password\n");
+      for (int i = 1; i <= 20; i++) {
+        csv.append("s").append(i).append("@bar.com,s").append(i).append("@bar.com,John,Doe,M").append(i).append(",secret\n");
+      }
+      java.io.StringWriter errors = new java.io.StringWriter();
+      CsvUserImporter.Result result = importer.importCsv(CsvUserImporter.Format.STUDENTI, new java.io.StringReader(csv.toString()), errors);
+      assertEquals(20L, result.getRead());
+      assertEquals(20L, result.getImported() + result.getRejected());
+      assertEquals(overloaded.getRejectedCount(), result.getRejected());
+      assertTrue(result.getImported() > 0);
+    }
+    finally {
+      um.setPasswordHasher(null);
+    }
+  }
+
 
   
 }
@@ -39,7 +39,15 @@ CREATE TABLE utenti (
   nome VARCHAR(100) NOT NULL,
   cognome VARCHAR(100) NOT NULL,
   tipo_utente ENUM('studente','operatore','tutor_accademico','tutor_aziendale','azienda') NOT NULL,
-  data_iscrizione DATETIME NOT NULL
+  data_iscrizione DATETIME NOT NULL,
+  -- Incrementata a ogni UPDATE, per il controllo delle modifiche concorrenti
+  version INTEGER UNSIGNED NOT NULL DEFAULT 0,
+  -- Elenchi per tipo e per data di iscrizione, paginati per id
+  INDEX utenti_email (email),
+  INDEX utenti_tipo_utente (tipo_utente, id),
+  INDEX utenti_data_iscrizione (data_iscrizione),
+  -- Riepiloghi in ordine di login letti solo dall'indice
+  INDEX utenti_summary (login, nome, cognome, tipo_utente)
 );
 
 -- Tabella con le info aggiuntive per gli studenti
@@ -77,7 +85,8 @@ CREATE TABLE tutor_aziendali (
   tutor_id INTEGER UNSIGNED PRIMARY KEY REFERENCES utenti(id) ON DELETE CASCADE ON UPDATE CASCADE,
   azienda_id INTEGER UNSIGNED REFERENCES aziende(azienda_id) ON DELETE CASCADE ON UPDATE CASCADE,
   codice_fiscale CHAR(16) UNIQUE NOT NULL,
-  telefono VARCHAR(30) NOT NULL
+  telefono VARCHAR(30) NOT NULL,
+  INDEX tutor_aziendali_azienda (azienda_id)
 );
 
 -- Tabella contenente le info aggiuntive per i tutor accademici